@@ -0,0 +1,112 @@
+package whiteboard.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+
+/***
+ *
+ * @author Afton
+ * Measures packing and parsing an attribute block, with the old string format
+ * (HashMap.toString() cut up by regex, and split apart again) against the binary
+ * block BytePacker now writes. Prints the time and, where the JVM can count it, the
+ * memory allocated per pack-and-parse, for a few rounds so the later ones are warm.
+ *
+ * It lives under bench/, outside the application's source tree, so it isn't shipped.
+ * Compile it against the whiteboard classes, then
+ * run with: java whiteboard.bench.AttributeBenchmark [iterations]
+ */
+public class AttributeBenchmark {
+	private static final int DEFAULT_ITERATIONS = 1000000;
+	private static final int ROUNDS = 3;
+
+	/***
+	 * The old BytePacker.packAttributes(): the attribute count, then the map as a string
+	 */
+	private static byte[] packOld(HashMap<String, String> attributes)
+	{
+		String asString = attributes.toString();
+		asString = asString.replaceAll("\\} \\{", "\0");
+		asString = asString.replaceAll("[\\{\\}]", "");
+		byte[] chars = asString.getBytes();
+		byte[] packed = new byte[ShapeConstants.INTEGER_BYTE_SIZE + chars.length];
+		BytePacker.convertIntToBytes(attributes.size(), packed, 0);
+		System.arraycopy(chars, 0, packed, ShapeConstants.INTEGER_BYTE_SIZE, chars.length);
+		return packed;
+	}
+
+	/***
+	 * The old BytePacker.extractKeyVals()
+	 * @return the index just past the attributes
+	 */
+	private static int extractOld(byte[] data, int start, HashMap<String, String> attributes)
+	{
+		int count = BytePacker.convertBytesToInt(data, start);
+		start += ShapeConstants.INTEGER_BYTE_SIZE;
+		String[] pairs = new String(data, start, data.length - start).split("\0");
+		for (int i = 0; i < count; ++i)
+		{
+			start += pairs[i].toCharArray().length;
+			String[] keyVal = pairs[i].split("=");
+			if (keyVal.length == 2)
+				attributes.put(keyVal[0], keyVal[1]);
+		}
+		return start;
+	}
+
+	private static byte[] packNew(HashMap<String, String> attributes)
+	{
+		byte[] packed = new byte[BytePacker.getPackedAttributesSize(attributes)];
+		BytePacker.packAttributes(attributes, ByteBuffer.wrap(packed));
+		return packed;
+	}
+
+	/***
+	 * @return the bytes this thread has allocated so far, or -1 if the JVM doesn't say
+	 */
+	private static long allocated()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private static String perOp(long total, int iterations)
+	{
+		return (total < 0) ? "?" : Long.toString(total / iterations);
+	}
+
+	public static void main(String[] args)
+	{
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put(ShapeConstants.COLOUR, "-16711936");
+
+		// keeps the work from being optimised away
+		long sink = 0;
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			long bytes0 = allocated(), time0 = System.nanoTime();
+			for (int i = 0; i < iterations; ++i)
+			{
+				sink += extractOld(packOld(attributes), 0, new HashMap<String, String>());
+			}
+			long time1 = System.nanoTime(), bytes1 = allocated();
+			for (int i = 0; i < iterations; ++i)
+			{
+				sink += BytePacker.extractKeyVals(packNew(attributes), 0, new HashMap<String, String>());
+			}
+			long time2 = System.nanoTime(), bytes2 = allocated();
+
+			System.out.println("round " + (round + 1)
+					+ "  old: " + (time1 - time0) / iterations + " ns/op, " + perOp((bytes0 < 0) ? -1 : bytes1 - bytes0, iterations) + " B/op"
+					+ "  new: " + (time2 - time1) / iterations + " ns/op, " + perOp((bytes1 < 0) ? -1 : bytes2 - bytes1, iterations) + " B/op");
+		}
+		System.out.println("(" + sink + ")");
+	}
+}
@@ -33,6 +33,8 @@ public class Configuration {
 	private int defaultHostPort;
 	/** randomly assigned user colour */
 	private Color userColour;
+	/** how far, in pixels, freehand strokes may be simplified. 0 leaves them as drawn */
+	private double strokeTolerance;
 
 	/** constructor */
 	public Configuration() {
@@ -54,6 +56,7 @@ public class Configuration {
 		//set the default host options
 		defaultHost = "";
 		defaultHostPort = MarsProtocol.PORT;
+		strokeTolerance = 0;
 	}
 
 	/** load settings from settings.cfg file */
@@ -73,6 +76,7 @@ public class Configuration {
 		this.defaultHost = config.getDefaultHost();
 		this.defaultHostPort = config.getDefaultHostPort();
 		this.userColour = config.getUserColour();
+		this.strokeTolerance = config.getStrokeTolerance();
 	}
 
 	/** save settings to settings.cfg file */
@@ -135,4 +139,12 @@ public class Configuration {
 	public void setUserColour(Color userColour) {
 		this.userColour = userColour;
 	}
+
+	public double getStrokeTolerance() {
+		return strokeTolerance;
+	}
+
+	public void setStrokeTolerance(double strokeTolerance) {
+		this.strokeTolerance = strokeTolerance;
+	}
 }
\ No newline at end of file
@@ -55,6 +55,7 @@ public class WhiteboardConfiguration extends Configuration {
 		setDefaultListenPort(config.getDefaultListenPort());
 		setDefaultHost(config.getDefaultHost());
 		setDefaultHostPort(config.getDefaultHostPort());
+		setStrokeTolerance(config.getStrokeTolerance());
 		permissionLevel = core.getPermissionLevel();
 		name = core.getName();
 		head = core.getHead();
@@ -1,38 +1,302 @@
 package whiteboard.core.entities;
 
 import java.awt.Point;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import whiteboard.core.transaction.ShapePacket;
 
 public class BytePacker {
 
-	private static String seperator = "\\} \\{";
+	/** the bytes in front of each attribute key and value that hold its length */
+	private static final int LENGTH_SIZE = ShapeConstants.INTEGER_BYTE_SIZE;
 	
-	public static List<Byte> packAttributes(List<Byte> contents, HashMap<String, String> attributes)
+	/***
+	 * 
+	 * @param attributes the attributes to pack
+	 * @return the number of bytes packAttributes() will write, including the 
+	 * version and the attribute count
+	 */
+	public static int getPackedAttributesSize(HashMap<String, String> attributes)
 	{
-		int numAtts = attributes.entrySet().size();
-		contents.addAll(convertIntToBytes(numAtts));
-		
-		if (numAtts > 0)
+		int size = 2*ShapeConstants.INTEGER_BYTE_SIZE;
+		for (Map.Entry<String, String> att : attributes.entrySet())
 		{
-			String attPairs = attributes.toString();
-			attPairs = attPairs.replaceAll(seperator, "\0"); // all seperators
-			attPairs = attPairs.replaceAll("[\\{\\}]","");// get rid of leading/trailing braces
-			byte[] attsAsBytes = attPairs.getBytes();
-			
-			for ( int i = 0; i < attsAsBytes.length; ++i)
+			size += 1;
+			if (getAttributeKeyId(att.getKey()) == 0)
 			{
-				contents.add(attsAsBytes[i]);
+				size += LENGTH_SIZE + getUTF8Length(att.getKey());
 			}
+			size += LENGTH_SIZE + getUTF8Length(att.getValue());
 		}
-
-		return contents;
+		return size;
+	}
+	
+	/***
+	 * Writes a version 1 attribute block: the version, the number of attributes,
+	 * then for each attribute a one byte key id (0 if the key is spelled out), 
+	 * the length-prefixed UTF-8 key if it has no id, and the length-prefixed 
+	 * UTF-8 value.
+	 * 
+	 * @param attributes the attributes to pack
+	 * @param out the buffer to write to. PRE: out.remaining() >= getPackedAttributesSize(attributes)
+	 */
+	public static void packAttributes(HashMap<String, String> attributes, ByteBuffer out)
+	{
+		out.putInt(ShapeConstants.ATTRIBUTE_BLOCK_V1);
+		out.putInt(attributes.size());
+		for (Map.Entry<String, String> att : attributes.entrySet())
+		{
+			int keyId = getAttributeKeyId(att.getKey());
+			out.put((byte) keyId);
+			if (keyId == 0)
+			{
+				putUTF8(att.getKey(), out);
+			}
+			putUTF8(att.getValue(), out);
+		}
+	}
+	
+	/***
+	 * 
+	 * @param key
+	 * @return the wire id for a well known key, or 0 if it has to be spelled out
+	 */
+	private static int getAttributeKeyId(String key)
+	{
+		for (int i = 1; i < ShapeConstants.ATTRIBUTE_KEYS.length; ++i)
+		{
+			if (ShapeConstants.ATTRIBUTE_KEYS[i].equals(key))
+				return i;
+		}
+		return 0;
+	}
+	
+	/***
+	 * 
+	 * @param str
+	 * @return the number of bytes str takes up in UTF-8
+	 */
+	private static int getUTF8Length(String str)
+	{
+		int length = 0;
+		for (int i = 0; i < str.length(); ++i)
+		{
+			char c = str.charAt(i);
+			if (c < 0x80)
+				length += 1;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && (i+1 < str.length()) && Character.isLowSurrogate(str.charAt(i+1)))
+			{
+				length += 4;
+				++i;
+			}
+			else
+				length += 3;
+		}
+		return length;
+	}
+	
+	/***
+	 * Writes the length of str in UTF-8 followed by str in UTF-8. 
+	 * The chars are encoded straight into the buffer.
+	 */
+	private static void putUTF8(String str, ByteBuffer out)
+	{
+		out.putInt(getUTF8Length(str));
+		for (int i = 0; i < str.length(); ++i)
+		{
+			char c = str.charAt(i);
+			if (c < 0x80)
+			{
+				out.put((byte) c);
+			}
+			else if (c < 0x800)
+			{
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && (i+1 < str.length()) && Character.isLowSurrogate(str.charAt(i+1)))
+			{
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else
+			{
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
+	/***
+	 * Reads a string written by putUTF8()
+	 */
+	private static String getUTF8(ByteBuffer in)
+	{
+		int length = in.getInt();
+		String str;
+		try {
+			str = new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM has UTF-8
+			throw new IllegalStateException(e.getMessage());
+		}
+		in.position(in.position() + length);
+		return str;
 	}
 
-
+	/***
+	 * 
+	 * @param coords points as x0, y0, x1, y1, ...
+	 * @param from the index of the first point to pack
+	 * @param to one past the index of the last point to pack
+	 * @return the number of bytes packPath() will write
+	 */
+	public static int getPackedPathSize(int[] coords, int from, int to)
+	{
+		int size = getVarIntSize(to - from);
+		int x = 0, y = 0;
+		for (int i = 2*from; i < 2*to; i += 2)
+		{
+			size += getVarIntSize(zigZag(coords[i] - x)) + getVarIntSize(zigZag(coords[i+1] - y));
+			x = coords[i];
+			y = coords[i+1];
+		}
+		return size;
+	}
+	
+	/***
+	 * Packs points as compact geometry (see ShapeConstants.COMPACT_GEOMETRY). Neighbouring 
+	 * points in a stroke are a few pixels apart, so most coordinates take a single byte.
+	 * @param coords points as x0, y0, x1, y1, ...
+	 * @param from the index of the first point to pack
+	 * @param to one past the index of the last point to pack
+	 * @param out PRE: out.remaining() >= getPackedPathSize(coords, from, to)
+	 */
+	public static void packPath(int[] coords, int from, int to, ByteBuffer out)
+	{
+		putVarInt(to - from, out);
+		int x = 0, y = 0;
+		for (int i = 2*from; i < 2*to; i += 2)
+		{
+			putVarInt(zigZag(coords[i] - x), out);
+			putVarInt(zigZag(coords[i+1] - y), out);
+			x = coords[i];
+			y = coords[i+1];
+		}
+	}
+	
+	/***
+	 * Reads points packed by packPath()
+	 * @param in positioned at the number of points. On return it is positioned just past the points.
+	 * @return the points as x0, y0, x1, y1, ...
+	 * @throws BufferUnderflowException if in holds fewer points than it says it does
+	 */
+	public static int[] extractPath(ByteBuffer in)
+	{
+		int numCoords = getVarInt(in);
+		// every point takes at least two bytes
+		if (numCoords < 0 || numCoords > in.remaining() / 2)
+			throw new BufferUnderflowException();
+		int[] coords = new int[2*numCoords];
+		int x = 0, y = 0;
+		for (int i = 0; i < coords.length; i += 2)
+		{
+			x += unZigZag(getVarInt(in));
+			y += unZigZag(getVarInt(in));
+			coords[i] = x;
+			coords[i+1] = y;
+		}
+		return coords;
+	}
+	
+	/***
+	 * 
+	 * @param points
+	 * @param from the index of the first point to copy
+	 * @return the points as x0, y0, x1, y1, ...
+	 */
+	public static int[] convertPointsToCoords(List<Point> points, int from)
+	{
+		int[] coords = new int[2*(points.size() - from)];
+		for (int i = from; i < points.size(); ++i)
+		{
+			Point xy = points.get(i);
+			coords[2*(i-from)] = xy.x;
+			coords[2*(i-from)+1] = xy.y;
+		}
+		return coords;
+	}
+	
+	/***
+	 * 
+	 * @param val
+	 * @return val with its sign moved to the lowest bit, so small negative numbers are small too
+	 */
+	public static int zigZag(int val)
+	{
+		return (val << 1) ^ (val >> 31);
+	}
+	
+	public static int unZigZag(int val)
+	{
+		return (val >>> 1) ^ -(val & 1);
+	}
+	
+	/***
+	 * 
+	 * @param val treated as unsigned
+	 * @return the number of bytes putVarInt() will write for it
+	 */
+	public static int getVarIntSize(int val)
+	{
+		int size = 1;
+		while ((val & ~0x7F) != 0)
+		{
+			val >>>= 7;
+			++size;
+		}
+		return size;
+	}
+	
+	/***
+	 * Writes an int seven bits at a time, lowest first, with the top bit of each byte set if more follow
+	 * @param val treated as unsigned
+	 * @param out
+	 */
+	public static void putVarInt(int val, ByteBuffer out)
+	{
+		while ((val & ~0x7F) != 0)
+		{
+			out.put((byte) ((val & 0x7F) | 0x80));
+			val >>>= 7;
+		}
+		out.put((byte) val);
+	}
+	
+	public static int getVarInt(ByteBuffer in)
+	{
+		int val = 0;
+		for (int shift = 0; shift < Integer.SIZE; shift += 7)
+		{
+			byte b = in.get();
+			val |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return val;
+		}
+		throw new BufferUnderflowException();
+	}
 
 	public static List<Byte> convertStringToBytes(String str) {
 		ArrayList<Byte> vals = new ArrayList<Byte>(str.length());
@@ -56,20 +320,18 @@ public class BytePacker {
 		return vals;
 	}
 	
-	public static List<Byte> convertPointToBytes(Point xy)
+	/***
+	 * 
+	 * @param val the int to write
+	 * @param bytes PRECONDITION: bytes[index] must have room for 4 bytes
+	 * @param index where to write it
+	 */
+	public static void convertIntToBytes(int val, byte[] bytes, int index)
 	{
-		int x = (int) xy.getX();
-		int y = (int) xy.getY();
-		ArrayList<Byte> vals = new ArrayList<Byte>(8);
-		vals.add((byte) (x >>> 24) );
-		vals.add((byte) (x >>> 16) );
-		vals.add((byte) (x >>> 8) );
-		vals.add((byte) (x >>> 0) );
-		vals.add((byte) (y >>> 24) );
-		vals.add((byte) (y >>> 16) );
-		vals.add((byte) (y >>> 8) );
-		vals.add((byte) (y >>> 0) );
-		return vals;
+		bytes[index]     = (byte) (val >>> 24);
+		bytes[index + 1] = (byte) (val >>> 16);
+		bytes[index + 2] = (byte) (val >>> 8);
+		bytes[index + 3] = (byte) (val >>> 0);
 	}
 	
 	/***
@@ -97,49 +359,78 @@ public class BytePacker {
      */
     public static int extractKeyVals(byte[] data, int start, HashMap<String,String> attributes)
     {
-    	int attNums = convertBytesToInt(data,start);
-    	start += ShapeConstants.INTEGER_BYTE_SIZE;
-
-    	String atts = new String(data, start, data.length-start);
-
-    	String[] attPairs = atts.split("\0");
-    	for(int i = 0; i < attNums; ++i) {
-    		start += attPairs[i].toCharArray().length;
-    		String[] pair = attPairs[i].split("=");
-    		if(pair.length == 2)
-    			attributes.put(pair[0], pair[1]);
-    		else
-    			System.err.println("BytePacker.extractKeyVals: attribute pair not a pair - " + pair);
-    	}
-
-    	return start;
+    	ByteBuffer in = ByteBuffer.wrap(data);
+    	in.position(start);
+    	extractKeyVals(in, attributes);
+    	return in.position();
     }
     
-    /***
+    /**
      * 
-     * @param data
-     * @param start
-     * @param numCoords
-     * @return returns the updated offset 'start'
+     * @param in an array-backed buffer positioned at the attribute block. On return 
+     * 		  it is positioned just past the block. 
+     * @param attributes the hashmap to fill
      */
-    public static int extractPoints(byte[] data, int start, List<Point> coords)
+    public static void extractKeyVals(ByteBuffer in, HashMap<String,String> attributes)
     {
-    	coords.clear();
-    	int numCoords = convertBytesToInt(data, start);
-    	start += ShapeConstants.INTEGER_BYTE_SIZE; // skip past the int
+    	int version = in.getInt();
+    	if (version >= 0)
+    	{
+    		// an old packet, so 'version' is really the number of attributes
+    		extractOldKeyVals(in, version, attributes);
+    		return;
+    	}
     	
-	   	for (int i=0; i < numCoords; ++i)
+    	int attNums = in.getInt();
+    	for (int i = 0; i < attNums; ++i)
     	{
+    		int keyId = in.get();
+    		String key;
+    		if (keyId > 0 && keyId < ShapeConstants.ATTRIBUTE_KEYS.length)
+    			key = ShapeConstants.ATTRIBUTE_KEYS[keyId];
+    		else
+    			key = getUTF8(in);
+    		attributes.put(key, getUTF8(in));
+    	}
+    }
 
-    		int x1 = convertBytesToInt(data, start);
-    		start += ShapeConstants.INTEGER_BYTE_SIZE;
-    		int y1 = convertBytesToInt(data, start);
-    		start += ShapeConstants.INTEGER_BYTE_SIZE;
+    /**
+     * Reads the attributes of packets made before the versioned attribute block.
+     * These were HashMap.toString() with the braces stripped, e.g. "k1=v1, k2=v2",
+     * with no terminator. The first 0 byte is in the int that follows, so we read 
+     * up to it.
+     * 
+     * @param in positioned just past the attribute count
+     * @param attNums the number of attributes
+     * @param attributes the hashmap to fill
+     */
+    private static void extractOldKeyVals(ByteBuffer in, int attNums, HashMap<String,String> attributes)
+    {
+    	if (attNums == 0)
+    		return;
+    	
+    	int start = in.position();
+    	int end = start;
+    	while (end < in.limit() && in.get(end) != 0)
+    		++end;
+    	in.position(end);
+    	
+    	String atts = new String(in.array(), in.arrayOffset() + start, end - start);
+    	int pairStart = 0;
+    	for (int i = 0; i < attNums && pairStart < atts.length(); ++i)
+    	{
+    		int pairEnd = (i == attNums-1) ? atts.length() : atts.indexOf(", ", pairStart);
+    		if (pairEnd < 0)
+    			pairEnd = atts.length();
     		
-    		coords.add(new Point(x1,y1));  		
+    		int equals = atts.indexOf('=', pairStart);
+    		if (equals >= 0 && equals < pairEnd)
+    			attributes.put(atts.substring(pairStart, equals), atts.substring(equals+1, pairEnd));
+    		else
+    			System.err.println("BytePacker.extractKeyVals: attribute pair not a pair - " + atts.substring(pairStart, pairEnd));
+    		pairStart = pairEnd + 2;
     	}
-    	return start;
-    }    
+    }
     
 	/***
 	 * 
@@ -161,52 +452,7 @@ public class BytePacker {
 	}
 
 	public static WB_Shape createWB_ShapeFromPacket(byte[] packet, int offset) {
-		WB_Shape WB_data = null;
-		Byte type = packet[offset++];
-		ShapeConstants.SHAPE_TYPE pType = ShapeConstants.SHAPE_TYPE.values()[type.intValue()];
-		
-		HashMap<String,String> atts = new HashMap<String,String>();
-		offset = extractKeyVals(packet, offset, atts);
-		switch(pType) {
-			case POINT_TYPE:
-				List<Point> coords = new ArrayList<Point>(1);
-				extractPoints(packet,offset, coords);
-				WB_data = new WB_Point(coords.get(0));
-				WB_data.setAttributes(atts);
-				break;
-			case LINE_TYPE:
-				coords = new ArrayList<Point>(2);
-				extractPoints(packet, offset, coords);
-				WB_data = new WB_Line(coords.get(0), coords.get(1));
-				WB_data.setAttributes(atts);
-				break;
-			case POLYLINE_TYPE:
-				coords = new ArrayList<Point>();
-				extractPoints(packet,offset, coords);
-				WB_data = new WB_Polyline(coords);
-				WB_data.setAttributes(atts);
-				break;
-			case POLYGON_TYPE:
-				coords = new ArrayList<Point>();
-				extractPoints(packet,offset, coords);
-				WB_data = new WB_Polygon(coords);
-				WB_data.setAttributes(atts);
-				break;
-			case TEXT_TYPE:
-				coords = new ArrayList<Point>(1);
-				int numChars = convertBytesToInt(packet, offset); offset += ShapeConstants.INTEGER_BYTE_SIZE;
-				String text = new String(packet, offset, numChars); 
-				offset += numChars;
-
-				extractPoints(packet, offset, coords);
-				WB_data = new WB_Text(coords.get(0), text);
-				WB_data.setAttributes(atts);
-				break;
-			default:
-				return null;
-		}
-		
-		return WB_data;
+		return ShapeDecoder.decode(packet, offset);
 	}
 	
 	public static byte[] convertTo_byte_Array(List<Byte> bytes)
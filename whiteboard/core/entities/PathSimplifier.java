@@ -0,0 +1,75 @@
+package whiteboard.core.entities;
+
+import java.awt.Point;
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ *
+ * @author Afton
+ * Douglas-Peucker simplification of a path: a point is dropped when it is within
+ * the tolerance of the line between the points that are kept on either side of it.
+ * The first and last points are always kept, so simplified pieces of a path still
+ * join up. Used on freehand strokes, which have far more points than they need.
+ */
+public class PathSimplifier {
+
+	/***
+	 *
+	 * @param path
+	 * @param tolerance how far, in pixels, a dropped point may be from the simplified path.
+	 * 		  Nothing is dropped if it is 0 or less.
+	 * @return the points that are kept, in order. The same Point objects as in path.
+	 */
+	public static List<Point> simplify(List<Point> path, double tolerance)
+	{
+		if (tolerance <= 0 || path.size() < 3)
+			return new ArrayList<Point>(path);
+
+		boolean[] keep = new boolean[path.size()];
+		keep[0] = true;
+		keep[path.size()-1] = true;
+
+		// (first, last) pairs still to be looked at, instead of recursing on long strokes
+		int[] stack = new int[2*path.size()];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = path.size()-1;
+		while (top > 0)
+		{
+			int last = stack[--top];
+			int first = stack[--top];
+			Point a = path.get(first);
+			Point b = path.get(last);
+
+			int furthest = -1;
+			double furthestDistance = tolerance;
+			for (int i = first + 1; i < last; ++i)
+			{
+				double d = Line2D.ptSegDist(a.x, a.y, b.x, b.y, path.get(i).x, path.get(i).y);
+				if (d > furthestDistance)
+				{
+					furthest = i;
+					furthestDistance = d;
+				}
+			}
+			if (furthest != -1)
+			{
+				keep[furthest] = true;
+				stack[top++] = first;
+				stack[top++] = furthest;
+				stack[top++] = furthest;
+				stack[top++] = last;
+			}
+		}
+
+		List<Point> kept = new ArrayList<Point>();
+		for (int i = 0; i < path.size(); ++i)
+		{
+			if (keep[i])
+				kept.add(path.get(i));
+		}
+		return kept;
+	}
+}
@@ -10,8 +10,36 @@ public class ShapeConstants {
 									POLYGON_TYPE,
 									TEXT_TYPE};
 	
+	/** 
+	 * Set in the packed shape type when the geometry is compact: the number of points as 
+	 * a varint, then each point as zig-zag varint deltas from the one before, the first 
+	 * from (0, 0). Without it the geometry is the number of points, then (x, y) as ints.
+	 */
+	public static final int COMPACT_GEOMETRY = 0x40;
+	/** 
+	 * Set in the packed shape type when the shape has been transformed (see WB_Shape.getTransform()): 
+	 * the six doubles of the transform's flat matrix come between the attributes and the geometry. 
+	 */
+	public static final int TRANSFORMED = 0x20;
+	
 	// This is the key to the text-type string 
 	public static final String TEXT_STRING = "WB_DISPLAY_STRING";
+	// This is the key to the shape's colour, as an RGB int
+	public static final String COLOUR = "WB_COLOUR";
+	// This is the key to the width of the shape's lines, in pixels
+	public static final String STROKE_WIDTH = "WB_STROKE_WIDTH";
+	// This is the key to the shape's font, as understood by Font.decode()
+	public static final String FONT = "WB_FONT";
+	
+	/** 
+	 * Attribute blocks. Old packets start the block with the (non-negative) 
+	 * number of attributes; versioned blocks start with the negated version.
+	 */
+	public static final int ATTRIBUTE_BLOCK_V1 = -1;
+	/** keys that go on the wire as a one byte id. The index is the id. */
+	public static final String[] ATTRIBUTE_KEYS = { null, // 0: the key is spelled out
+													COLOUR,
+													TEXT_STRING };
 	
 	/** The types of request objects */
 	public static enum WB_REQUEST_TYPE { NULL_REQUEST, // keep the ordinal() values correct
@@ -24,13 +52,24 @@ public class ShapeConstants {
 									CHAT, // the object is chat message
 									WB_COPY_REQUEST, // request the whiteboard/history
 									WB_ELECTION,
-									WB_PERM_CHANGE};
+									WB_PERM_CHANGE,
+									SEQUENCE_RANGE_REQUEST, // ask one peer for a list of (epoch, sequence) ranges
+									SEQUENCE_BATCH, // that peer's answer: the packets it has, in one message
+									MULTI_GEOM_MODIFICATION, // one geometric transformation of several objects
+									HISTORY_WATERMARK, // starts a compacted epoch in a history transfer: its sequence number is where the snapshot was folded up to
+									PROCESSED_THROUGH}; // how far through each epoch a peer has processed, so the others know what they may fold
 									
 	/** the classes of a chat */
 	public static enum CHAT_TYPE {CHAT_PUBLIC, CHAT_PRIVATE};
 
-	/** the types of geometric transformation we might allow */
-	public static enum GEOM_TRANSFORM_TYPE { TRANSLATION, SCALE, ROTATION };
+	/** 
+	 * the types of geometric transformation we might allow. APPEND_POINTS adds points to the 
+	 * end of a polyline that is still being drawn, as compact geometry (see COMPACT_GEOMETRY).
+	 * The arguments of a SCALE are the x and y factors, and the first argument of a ROTATION
+	 * is the clockwise angle in degrees, all times TRANSFORM_UNIT
+	 */
+	public static enum GEOM_TRANSFORM_TYPE { TRANSLATION, SCALE, ROTATION, APPEND_POINTS };
+	public static final int TRANSFORM_UNIT = 1000;
 	
 	// Data Protocol elements
 	public static final Integer PACKET_TYPE_OFFSET = 0;
@@ -41,6 +80,21 @@ public class ShapeConstants {
 	public static final Integer PACKET_OBJECT_ID_OFFSET = 17;	
 	public static final Integer PACKET_BASE_HEADER_OFFSET = 9;
 	public static final Integer PACKET_EXP_HEADER_OFFSET = 17;
+	/** a SEQUENCE_RANGE_REQUEST gives its epoch, the number of ranges, then (first, count) for each */
+	public static final Integer PACKET_RANGE_LIST_SIZE = 5;
+	public static final Integer PACKET_RANGE_LIST = 9;
+	/** a SEQUENCE_BATCH gives the number of packets, then (length, packet) for each */
+	public static final Integer PACKET_BATCH_SIZE = 1;
+	public static final Integer PACKET_BATCH = 5;
+	/** a PROCESSED_THROUGH gives the number of epochs, then (epoch, last sequence processed) for each */
+	public static final Integer PACKET_PROCESSED_SIZE = 1;
+	public static final Integer PACKET_PROCESSED = 5;
+	/** 
+	 * a MULTI_GEOM_MODIFICATION is laid out as an OBJECT_GEOM_MODIFICATION of its first object, then
+	 * gives the number of other objects, then their references. Its creation epoch and sequence are the first object's
+	 */
+	public static final Integer PACKET_MULTI_TARGET_COUNT = 30;
+	public static final Integer PACKET_MULTI_TARGETS = 34;
 
 	public static final int INTEGER_BYTE_SIZE = Integer.SIZE/Byte.SIZE;
 }
@@ -0,0 +1,161 @@
+package whiteboard.core.entities;
+
+import java.awt.Point;
+import java.awt.geom.AffineTransform;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/***
+ * 
+ * @author Afton
+ * Rebuilds shapes from their packed wire format (see ShapeEncoder). Coordinates
+ * are read straight out of the packet into the new shape; nothing is copied 
+ * into intermediate lists first. Polylines and polygons may have either the
+ * compact geometry or the older fixed-size one, as the shape type says, and 
+ * any shape may carry a transform.
+ * 
+ */
+public class ShapeDecoder {
+
+	/***
+	 * 
+	 * @param packet the packed shape
+	 * @param offset the index of the shape type, i.e. just past the object reference
+	 * @return the equivalent shape, or null if the type is unknown
+	 */
+	public static WB_Shape decode(byte[] packet, int offset)
+	{
+		ByteBuffer in = ByteBuffer.wrap(packet);
+		in.position(offset);
+		return decode(in);
+	}
+	
+	/***
+	 * Reads the points of an APPEND_POINTS modification (see ShapeEncoder.encodeAppendedPoints())
+	 * @param packet
+	 * @param offset the index of the number of points, i.e. just past the transformation type
+	 * @return the points, or an empty list if the packet is too short to hold them
+	 */
+	public static List<Point> decodeAppendedPoints(byte[] packet, int offset)
+	{
+		ByteBuffer in = ByteBuffer.wrap(packet);
+		in.position(Math.min(offset, packet.length));
+		int[] coords;
+		try {
+			coords = BytePacker.extractPath(in);
+		} catch (BufferUnderflowException e) {
+			return new ArrayList<Point>(0);
+		}
+		List<Point> points = new ArrayList<Point>(coords.length/2);
+		for (int i = 0; i < coords.length; i += 2)
+		{
+			points.add(new Point(coords[i], coords[i+1]));
+		}
+		return points;
+	}
+	
+	/***
+	 * 
+	 * @param in an array-backed buffer positioned at the shape type. On return 
+	 * 		  it is positioned just past the shape. 
+	 * @return the equivalent shape, or null if the type is unknown
+	 */
+	public static WB_Shape decode(ByteBuffer in)
+	{
+		int typeByte = in.get();
+		boolean compact = (typeByte & ShapeConstants.COMPACT_GEOMETRY) != 0;
+		boolean transformed = (typeByte & ShapeConstants.TRANSFORMED) != 0;
+		ShapeConstants.SHAPE_TYPE type = ShapeConstants.SHAPE_TYPE.values()[typeByte & ~(ShapeConstants.COMPACT_GEOMETRY | ShapeConstants.TRANSFORMED)];
+		
+		HashMap<String,String> atts = new HashMap<String,String>();
+		BytePacker.extractKeyVals(in, atts);
+		
+		AffineTransform transform = null;
+		if (transformed)
+		{
+			double[] matrix = new double[6];
+			for (int i = 0; i < matrix.length; ++i)
+			{
+				matrix[i] = in.getDouble();
+			}
+			transform = new AffineTransform(matrix);
+		}
+		
+		WB_Shape shape;
+		switch(type) {
+			case POINT_TYPE:
+			{
+				in.getInt(); // always 1
+				shape = new WB_Point(in.getInt(), in.getInt());
+				break;
+			}
+			case LINE_TYPE:
+			{
+				in.getInt(); // always 2
+				shape = new WB_Line(in.getInt(), in.getInt(), in.getInt(), in.getInt());
+				break;
+			}
+			case POLYLINE_TYPE:
+			{
+				WB_Polyline polyline;
+				if (compact)
+				{
+					polyline = new WB_Polyline(BytePacker.extractPath(in));
+				}
+				else
+				{
+					polyline = new WB_Polyline();
+					int numCoords = in.getInt();
+					// the count is only a hint until the points have actually been read
+					polyline.ensureCapacity(Math.min(numCoords, in.remaining() / (2*ShapeConstants.INTEGER_BYTE_SIZE)));
+					for (int i = 0; i < numCoords; ++i)
+					{
+						polyline.addPoint(in.getInt(), in.getInt());
+					}
+				}
+				shape = polyline;
+				break;
+			}
+			case POLYGON_TYPE:
+			{
+				WB_Polygon polygon;
+				if (compact)
+				{
+					polygon = new WB_Polygon(BytePacker.extractPath(in));
+				}
+				else
+				{
+					polygon = new WB_Polygon();
+					int numCoords = in.getInt();
+					// the count is only a hint until the points have actually been read
+					polygon.ensureCapacity(Math.min(numCoords, in.remaining() / (2*ShapeConstants.INTEGER_BYTE_SIZE)));
+					for (int i = 0; i < numCoords; ++i)
+					{
+						polygon.addPoint(in.getInt(), in.getInt());
+					}
+				}
+				shape = polygon;
+				break;
+			}
+			case TEXT_TYPE:
+			{
+				int numBytes = in.getInt();
+				String text = new String(in.array(), in.arrayOffset() + in.position(), numBytes);
+				in.position(in.position() + numBytes);
+				in.getInt(); // always 1
+				shape = new WB_Text(new Point(in.getInt(), in.getInt()), text);
+				break;
+			}
+			default:
+				return null;
+		}
+		
+		shape.setAttributes(atts);
+		if (transform != null)
+			shape.setTransform(transform);
+		return shape;
+	}
+}
@@ -0,0 +1,94 @@
+package whiteboard.core.entities;
+
+import java.awt.Point;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/***
+ * 
+ * @author Afton
+ * Writes shapes into their packed wire format. The size of the packed shape is
+ * worked out up front, so everything is written straight into the destination
+ * buffer with no intermediate lists or copies. 
+ * 
+ * The layout is: object reference, shape type, the attribute block (see 
+ * BytePacker.packAttributes()), the transform if the shape has one (see 
+ * ShapeConstants.TRANSFORMED), and then the geometry as written by 
+ * WB_Shape.packGeometry().
+ */
+public class ShapeEncoder {
+
+	/** object reference and the shape type byte */
+	private static final int PREAMBLE_SIZE = ShapeConstants.INTEGER_BYTE_SIZE + 1;
+	/** the flat matrix of a transform */
+	private static final int TRANSFORM_SIZE = 6*Double.SIZE/Byte.SIZE;
+	
+	/***
+	 * 
+	 * @param shape the shape to pack
+	 * @return the packed shape, sized exactly
+	 */
+	public static byte[] encode(WB_Shape shape)
+	{
+		byte[] packed = new byte[getPackedSize(shape)];
+		encode(shape, ByteBuffer.wrap(packed));
+		return packed;
+	}
+	
+	/***
+	 * 
+	 * @param shape the shape to pack
+	 * @param out the buffer to pack into, starting at its current position. 
+	 * 		  PRE: out.remaining() >= getPackedSize(shape)
+	 */
+	public static void encode(WB_Shape shape, ByteBuffer out)
+	{
+		out.putInt(shape.hashCode());
+		int type = shape.getShapeType().ordinal();
+		if (shape.hasCompactGeometry())
+			type |= ShapeConstants.COMPACT_GEOMETRY;
+		boolean transformed = shape.isTransformed();
+		if (transformed)
+			type |= ShapeConstants.TRANSFORMED;
+		out.put((byte) type);
+		BytePacker.packAttributes(shape.getAttributes(), out);
+		if (transformed) {
+			double[] matrix = new double[6];
+			shape.getTransform().getMatrix(matrix);
+			for (double m : matrix)
+				out.putDouble(m);
+		}
+		shape.packGeometry(out);
+	}
+	
+	/***
+	 * Packs points added to the end of a polyline that is still being drawn, as the 
+	 * contents of an OBJECT_GEOM_MODIFICATION: object reference, APPEND_POINTS, then 
+	 * the points as compact geometry.
+	 * @param objectReference the polyline's
+	 * @param points the polyline's points
+	 * @param from the index of the first point to pack
+	 * @return the packed points, sized exactly
+	 */
+	public static byte[] encodeAppendedPoints(int objectReference, List<Point> points, int from)
+	{
+		int[] coords = BytePacker.convertPointsToCoords(points, from);
+		int count = coords.length/2;
+		ByteBuffer out = ByteBuffer.allocate(PREAMBLE_SIZE + BytePacker.getPackedPathSize(coords, 0, count));
+		out.putInt(objectReference);
+		out.put((byte) ShapeConstants.GEOM_TRANSFORM_TYPE.APPEND_POINTS.ordinal());
+		BytePacker.packPath(coords, 0, count, out);
+		return out.array();
+	}
+	
+	/***
+	 * 
+	 * @param shape
+	 * @return the number of bytes encode() will write for this shape
+	 */
+	public static int getPackedSize(WB_Shape shape)
+	{
+		return PREAMBLE_SIZE + BytePacker.getPackedAttributesSize(shape.getAttributes()) 
+			+ (shape.isTransformed() ? TRANSFORM_SIZE : 0) + shape.getPackedGeometrySize();
+	}
+}
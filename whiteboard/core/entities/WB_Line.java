@@ -3,8 +3,9 @@ package whiteboard.core.entities;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.geom.Line2D;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 public class WB_Line extends WB_Shape {
 	
@@ -28,21 +29,24 @@ public class WB_Line extends WB_Shape {
 		this(new Point(x0,y0), new Point(x1, y1));
 	}
 
-	public ArrayList<Byte> pack()
+	public ShapeConstants.SHAPE_TYPE getShapeType()
+	{
+		return ShapeConstants.SHAPE_TYPE.LINE_TYPE;
+	}
+	
+	protected int getPackedGeometrySize()
+	{
+		return 5*ShapeConstants.INTEGER_BYTE_SIZE;
+	}
+	
+	protected void packGeometry(ByteBuffer out)
 	{
-		// pack up base class and set to this.type
-		ArrayList<Byte> contents = new ArrayList<Byte>();
-		contents.addAll(BytePacker.convertIntToBytes(hashCode()));
-		contents.add(new Integer(ShapeConstants.SHAPE_TYPE.LINE_TYPE.ordinal()).byteValue());
-		BytePacker.packAttributes(contents, getAttributes());
-		
-		// add additions to base class
 		// 2 == number of points. begin, end
-		contents.addAll(BytePacker.convertIntToBytes(2));
-		contents.addAll(BytePacker.convertPointToBytes(start));
-		contents.addAll(BytePacker.convertPointToBytes(end));
-				
-		return contents;
+		out.putInt(2);
+		out.putInt(start.x);
+		out.putInt(start.y);
+		out.putInt(end.x);
+		out.putInt(end.y);
 	}
 	
 
@@ -51,16 +55,20 @@ public class WB_Line extends WB_Shape {
 	}
 
 
-	public boolean isOnPerimeter(Point p) {
+	protected boolean localIsOnPerimeter(Point p) {
 		return isOnLine(p, start, end);
 	}
 
 
-	public boolean intersects(Rectangle r) { 
-		return r.intersectsLine(new Line2D.Double(start, end)) || r.contains(this.getBounds());
+	protected boolean localIntersects(Rectangle r) { 
+		return r.intersectsLine(new Line2D.Double(start, end)) || r.contains(this.getLocalBounds());
 	}
 	
-	public Rectangle getBounds() {
+	protected Shape getOutline() {
+		return new Line2D.Double(start, end);
+	}
+	
+	protected Rectangle getLocalBounds() {
 		if((start == null) || (end == null)) {
 			return null;
 		}
@@ -69,16 +77,10 @@ public class WB_Line extends WB_Shape {
 		return new Rectangle(Math.min(start.x, end.x), Math.min(start.y, end.y), width, height);
 	}
 
-	@Override
-	public void translate(int dx, int dy) {
-		start.translate(dx, dy);
-		end.translate(dx, dy);
-	}
-
 	@Override
 	public String toString()
 	{
-		return "[[LINE: start: " + start +", end: " + end +", Attributes: " + this.getAttributes().toString() + "]]";
+		return "[[LINE: start: " + start +", end: " + end +", Attributes: " + this.getAttributes().toString() + getTransformString() + "]]";
 	}
 	
 	@Override
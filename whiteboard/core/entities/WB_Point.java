@@ -4,7 +4,9 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.awt.Shape;
+import java.awt.geom.GeneralPath;
+import java.nio.ByteBuffer;
 
 /***
  * 
@@ -29,21 +31,25 @@ public class WB_Point extends WB_Shape {
 	public void setPoint(Point p)
 	{
 		loc = new Point(p);
+		geometryChanged();
 	}
 	
-	public ArrayList<Byte> pack()
+	public ShapeConstants.SHAPE_TYPE getShapeType()
+	{
+		return ShapeConstants.SHAPE_TYPE.POINT_TYPE;
+	}
+	
+	protected int getPackedGeometrySize()
+	{
+		return 3*ShapeConstants.INTEGER_BYTE_SIZE;
+	}
+	
+	protected void packGeometry(ByteBuffer out)
 	{
-		// pack up base class and set to this.type
-		ArrayList<Byte> contents = new ArrayList<Byte>();
-		contents.addAll(BytePacker.convertIntToBytes(hashCode()));
-		contents.add(new Integer(ShapeConstants.SHAPE_TYPE.POINT_TYPE.ordinal()).byteValue());
-		BytePacker.packAttributes(contents, getAttributes());
-		
 		// redundant, but makes it consistent with other shapes
-		contents.addAll(BytePacker.convertIntToBytes(1));
-		contents.addAll(BytePacker.convertPointToBytes(loc));
-		
-		return contents;
+		out.putInt(1);
+		out.putInt(loc.x);
+		out.putInt(loc.y);
 	}	
 
 	public void localDraw(Graphics2D g) 
@@ -51,28 +57,29 @@ public class WB_Point extends WB_Shape {
 			g.fillOval(loc.x, loc.y, 3,3);
 	}
 
-	public boolean isOnPerimeter(Point p) {
+	protected boolean localIsOnPerimeter(Point p) {
 		// recall that the bounds for a point are larger than the point for UIs sake.
-		return getBounds().contains(p);
+		return getLocalBounds().contains(p);
 	}
 
-	public boolean intersects(Rectangle r) {		
+	protected boolean localIntersects(Rectangle r) {		
 		return r.contains(loc);
 	}
-
-	public Rectangle getBounds() {
-		return new Rectangle(loc.x - 2, loc.y - 2, 5, 5);
+	
+	protected Shape getOutline() {
+		GeneralPath outline = new GeneralPath();
+		outline.moveTo(loc.x, loc.y);
+		return outline;
 	}
 
-	@Override
-	public void translate(int dx, int dy) {
-		loc.translate(dx, dy);
+	protected Rectangle getLocalBounds() {
+		return new Rectangle(loc.x - 2, loc.y - 2, 5, 5);
 	}
 	
 	@Override
 	public String toString()
 	{
-		return "[[POINT Loc: " + loc + ", Attributes: " + this.getAttributes().toString() + "]]";
+		return "[[POINT Loc: " + loc + ", Attributes: " + this.getAttributes().toString() + getTransformString() + "]]";
 	}
 	
 
@@ -3,7 +3,9 @@ package whiteboard.core.entities;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.awt.Shape;
+import java.awt.geom.GeneralPath;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -21,87 +23,121 @@ public class WB_Polygon extends WB_Shape {
 	// points are held by the polygon
 	//Polygon poly = new Polygon();
 	
-	private WB_Polyline perimeter = new WB_Polyline();
+	private WB_Polyline perimeter;
 	
 	public WB_Polygon()
 	{
 		setHashCode(super.hashCode());
+		perimeter = new WB_Polyline();
 	}
 	
 	public WB_Polygon(List<Point> ps)
 	{
-		this();
-		if(ps != null) {
-			for (Point p : ps) {
-				perimeter.addPoint(p);
-			}
-		}
+		setHashCode(super.hashCode());
+		perimeter = (ps == null) ? new WB_Polyline() : new WB_Polyline(ps);
+	}
+	
+	/***
+	 * 
+	 * @param coords the corners as x0, y0, x1, y1, ... The polygon takes the array over.
+	 */
+	WB_Polygon(int[] coords)
+	{
+		setHashCode(super.hashCode());
+		perimeter = new WB_Polyline(coords);
 	}
 	
 	public void addPoint(Point p)
 	{
-		perimeter.addPoint(p);
+		addPoint(p.x, p.y);
 		//poly.addPoint(p.x, p.y);
 	}
 	
-	public ArrayList<Byte> pack()
+	public void addPoint(int x, int y)
 	{
-		// pack up base class and set to this.type
-		ArrayList<Byte> contents = new ArrayList<Byte>();
-		contents.addAll(BytePacker.convertIntToBytes(hashCode()));
-		contents.add(new Integer(ShapeConstants.SHAPE_TYPE.POLYGON_TYPE.ordinal()).byteValue());
-		BytePacker.packAttributes(contents, getAttributes());
+		perimeter.addPoint(x, y);
+		geometryChanged();
+	}
 	
-		// add additions to base class		
-		contents.addAll(BytePacker.convertIntToBytes(perimeter.path.size()));
-		
-		for (Point p : perimeter.path)
-		{
-			contents.addAll(BytePacker.convertPointToBytes(p));
-		}		
-		return contents;
+	/***
+	 * Makes room for a number of corners
+	 * @param points
+	 */
+	public void ensureCapacity(int points)
+	{
+		perimeter.ensureCapacity(points);
+	}
+	
+	public ShapeConstants.SHAPE_TYPE getShapeType()
+	{
+		return ShapeConstants.SHAPE_TYPE.POLYGON_TYPE;
+	}
+	
+	protected int getPackedGeometrySize()
+	{
+		// the same layout as the perimeter
+		return perimeter.getPackedGeometrySize();
+	}
+	
+	protected void packGeometry(ByteBuffer out)
+	{
+		perimeter.packGeometry(out);
+	}
+	
+	@Override
+	protected boolean hasCompactGeometry()
+	{
+		return perimeter.hasCompactGeometry();
 	}
 
 
 	public void localDraw(Graphics2D g) {
 		perimeter.draw(g);
-		Point start = perimeter.path.get(0);
-		Point end = perimeter.path.get(perimeter.path.size()-1);
-		g.drawLine(end.x, end.y, start.x, start.y);
+		int last = perimeter.getPointCount()-1;
+		g.drawLine(perimeter.getX(last), perimeter.getY(last), perimeter.getX(0), perimeter.getY(0));
 		
 	}
 
-	public boolean isOnPerimeter(Point p) {
+	protected boolean localIsOnPerimeter(Point p) {
 		// tests is p is the perimeter by testing the polyline
 		// and then testing the closing line.
-		return perimeter.isOnPerimeter(p) || isOnLine(p,
-					perimeter.path.get(perimeter.path.size()-1), 
-					perimeter.path.get(0));		
+		int last = perimeter.getPointCount()-1;
+		return perimeter.localIsOnPerimeter(p) || isOnLine(p,
+					perimeter.getX(last), perimeter.getY(last), 
+					perimeter.getX(0), perimeter.getY(0));		
 	}
 
 	/***
 	 * As with isOnPerimeter, most of the work is delegated to the polyline
 	 */
-	public boolean intersects(Rectangle r) {
-		return perimeter.intersects(r) ||
-			(new WB_Line(perimeter.path.get(perimeter.path.size()-1), 
-					perimeter.path.get(0)).intersects(r));
+	protected boolean localIntersects(Rectangle r) {
+		int last = perimeter.getPointCount()-1;
+		return perimeter.localIntersects(r) || (last >= 0 &&
+			r.intersectsLine(perimeter.getX(last), perimeter.getY(last), 
+					perimeter.getX(0), perimeter.getY(0)));
 		
 	}
 
-	public Rectangle getBounds() {
-		return perimeter.getBounds();
+	protected Shape getOutline() {
+		GeneralPath outline = new GeneralPath(perimeter.getOutline());
+		outline.closePath();
+		return outline;
 	}
 
-	@Override
-	public void translate(int dx, int dy) {
-		perimeter.translate(dx, dy);
+	protected Rectangle getLocalBounds() {
+		return perimeter.getLocalBounds();
 	}
 	
+	@Override
+	protected boolean boundsContain(Point p) {
+		return perimeter.boundsContain(p);
+	}
+
 	@Override
 	public String toString()
 	{
 		String asString = perimeter.toString();
+		asString = asString.substring(0, asString.length() - 2) + getTransformString() + "]]";
 		return asString.replaceFirst("POLYLINE", "POLYGON");
 
 	}
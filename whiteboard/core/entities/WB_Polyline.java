@@ -3,139 +3,250 @@ package whiteboard.core.entities;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.geom.Line2D;
+import java.awt.Shape;
+import java.awt.geom.GeneralPath;
 import java.awt.geom.Point2D;
-import java.awt.geom.Rectangle2D;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /***
- * 
+ *
  * @author Afton
- * 
  *
+ * The points are held in a single int array, x and y interleaved, rather than
+ * as a Point object each: a stroke can have thousands of them. The bounds are
+ * kept up to date as points are added, so bounds checks and hit tests don't walk 
+ * the path or allocate. Moving the path doesn't touch the points (see WB_Shape).
  */
 public class WB_Polyline extends WB_Shape {
 
-	protected ArrayList<Point> path = new ArrayList<Point>();
-	
+	/** the points, as x0, y0, x1, y1, ... */
+	private int[] coords;
+	/** the number of points */
+	private int size = 0;
+	/** the bounds of the points. Meaningless while there are none */
+	private int minX, minY, maxX, maxY;
 
 	public WB_Polyline()
 	{
 		setHashCode(super.hashCode());
+		coords = new int[16];
 	}
-	
+
 	public WB_Polyline(List<Point> ps)
 	{
 		this();
-		path.addAll(ps);
+		ensureCapacity(ps.size());
+		for (Point p : ps)
+		{
+			addPoint(p.x, p.y);
+		}
 	}
-	
+
+	/***
+	 *
+	 * @param coords the points as x0, y0, x1, y1, ... The polyline takes the array over.
+	 */
+	WB_Polyline(int[] coords)
+	{
+		setHashCode(super.hashCode());
+		this.coords = coords;
+		for (int i = 0; i < coords.length/2; ++i)
+		{
+			includeInBounds(coords[2*i], coords[2*i+1]);
+			++size;
+		}
+	}
+
 	public void addPoint(Point p)
 	{
-		this.path.add(p);
+		addPoint(p.x, p.y);
+	}
+
+	public void addPoint(int x, int y)
+	{
+		ensureCapacity(size + 1);
+		coords[2*size] = x;
+		coords[2*size+1] = y;
+		includeInBounds(x, y);
+		++size;
+		geometryChanged();
 	}
 	
+	/***
+	 * Adds a point to the end of the path, given where it is on the board rather 
+	 * than in the path's own coordinates
+	 * @param p
+	 */
+	public void appendPoint(Point p)
+	{
+		Point local = toLocal(p);
+		if (local != null)
+			addPoint(local.x, local.y);
+	}
+
+	/***
+	 * Makes room for a number of points, so adding that many doesn't have to grow the path again
+	 * @param points
+	 */
+	public void ensureCapacity(int points)
+	{
+		if (2*points <= coords.length)
+			return;
+		int[] grown = new int[Math.max(2*points, 2*coords.length)];
+		System.arraycopy(coords, 0, grown, 0, 2*size);
+		coords = grown;
+	}
 
-	public ArrayList<Byte> pack()
-	{
-		// pack up base class and set to this.type
-		ArrayList<Byte> contents = new ArrayList<Byte>();
-		contents.addAll(BytePacker.convertIntToBytes(hashCode()));
-		contents.add(new Integer(ShapeConstants.SHAPE_TYPE.POLYLINE_TYPE.ordinal()).byteValue());
-		BytePacker.packAttributes(contents, getAttributes());
-		
-		// add additions to base class
-		int path_size = path.size();
-		contents.addAll(BytePacker.convertIntToBytes(path_size));
-		for (Point xy : path)
+	private void includeInBounds(int x, int y)
+	{
+		if (size == 0)
 		{
-			contents.addAll(BytePacker.convertPointToBytes(xy));
+			minX = maxX = x;
+			minY = maxY = y;
+			return;
 		}
-		
-		return contents;
+		if (x < minX)
+			minX = x;
+		if (x > maxX)
+			maxX = x;
+		if (y < minY)
+			minY = y;
+		if (y > maxY)
+			maxY = y;
+	}
+
+	public int getPointCount()
+	{
+		return size;
+	}
+
+	/***
+	 * PRE: 0 <= i < getPointCount()
+	 */
+	public int getX(int i)
+	{
+		return coords[2*i];
+	}
+
+	/***
+	 * PRE: 0 <= i < getPointCount()
+	 */
+	public int getY(int i)
+	{
+		return coords[2*i+1];
+	}
+
+	/***
+	 * @return where the end of the path is on the board, or null if it has no points
+	 */
+	public Point getLastPoint()
+	{
+		if (size == 0)
+			return null;
+		Point last = new Point(coords[2*size-2], coords[2*size-1]);
+		if (!isTransformed())
+			return last;
+		Point2D onBoard = getTransform().transform(last, null);
+		return new Point((int) Math.round(onBoard.getX()), (int) Math.round(onBoard.getY()));
+	}
+
+
+	public ShapeConstants.SHAPE_TYPE getShapeType()
+	{
+		return ShapeConstants.SHAPE_TYPE.POLYLINE_TYPE;
+	}
+
+	protected int getPackedGeometrySize()
+	{
+		return BytePacker.getPackedPathSize(coords, 0, size);
+	}
+
+	protected void packGeometry(ByteBuffer out)
+	{
+		BytePacker.packPath(coords, 0, size, out);
+	}
+
+	@Override
+	protected boolean hasCompactGeometry()
+	{
+		return true;
 	}
 
 	/* (non-Javadoc)
 	 * @see whiteboard.core.entities.WB_DisplayObject#intersects(java.awt.geom.Rectangle2D)
 	 */
-	public boolean intersects(Rectangle r)
+	protected boolean localIntersects(Rectangle r)
 	{
-		boolean result = false;
-		for (int i=0; i<path.size()-1 && result == false; ++i)
+		// nothing to test if the path is nowhere near
+		if (size < 2 || maxX < r.x || minX > r.x + r.width || maxY < r.y || minY > r.y + r.height)
+			return false;
+		for (int i = 0; i < size-1; ++i)
 		{
-			Point p1 = path.get(i);
-			Point p2 = path.get(i+1);
-			if (new Line2D.Double(p1,p2).intersects(r))
-			{
-				result = true;
-			}
+			if (r.intersectsLine(coords[2*i], coords[2*i+1], coords[2*i+2], coords[2*i+3]))
+				return true;
 		}
-		return result;
+		return false;
 	}
 
-	
-	public Rectangle getBounds() {
-		if (path.isEmpty())
-			return null;
-		else if (path.size() == 1) 
-			return new Rectangle2D.Double(path.get(0).getX(),path.get(0).getX(),0,0).getBounds();
-		else
+
+	protected Shape getOutline()
+	{
+		GeneralPath outline = new GeneralPath(GeneralPath.WIND_EVEN_ODD, Math.max(size, 1));
+		for (int i = 0; i < size; ++i)
 		{
-			// collect the upper-left, lower-right corners of the bound
-			int x0=Integer.MAX_VALUE, y0=Integer.MAX_VALUE, x1=Integer.MIN_VALUE, y1=Integer.MIN_VALUE;
-			for (Point p : path)
-			{
-				int x = (int) p.getX();
-				int y = (int) p.getY();
-				
-				if (x < x0)
-					x0 = x;
-				else if (x > x1)
-					x1 = x;
-				
-				if (y < y0)
-					y0 = y;
-				else if (y > y1)
-					y1 = y;
-			}
-			return new Rectangle(x0,y0, (x1-x0), (y1-y0)).getBounds();
+			if (i == 0)
+				outline.moveTo(coords[0], coords[1]);
+			else
+				outline.lineTo(coords[2*i], coords[2*i+1]);
 		}
+		return outline;
+	}
+
+	protected Rectangle getLocalBounds() {
+		if (size == 0)
+			return null;
+		return new Rectangle(minX, minY, maxX-minX, maxY-minY);
 	}
 
 	@Override
-	public void translate(int dx, int dy) {
-		for (Point p : path)
-		{
-			p.translate(dx, dy);
-		}
+	protected boolean boundsContain(Point p)
+	{
+		// as getBounds().contains(p), which excludes the right and bottom edges
+		return size > 0 && p.x >= minX && p.x < maxX && p.y >= minY && p.y < maxY;
 	}
 
 	public void localDraw(Graphics2D g) {
-		for (int i=0; i< path.size()-1; ++i)
+		for (int i=0; i< size-1; ++i)
 		{
-			Point2D p0 = path.get(i);
-			Point2D p1 = path.get(i+1);
-			g.drawLine((int)p0.getX(), (int)p0.getY(), (int)p1.getX(), (int)p1.getY());			
+			g.drawLine(coords[2*i], coords[2*i+1], coords[2*i+2], coords[2*i+3]);
 		}
 	}
 
-	
-	public boolean isOnPerimeter(Point p) {
+
+	protected boolean localIsOnPerimeter(Point p) {
 		boolean result = false;
-		for (int i=0; i< path.size()-1 && !result ; ++i)
+		for (int i=0; i< size-1 && !result ; ++i)
 		{
-			result = isOnLine(p, path.get(i), path.get(i+1));
+			result = isOnLine(p, coords[2*i], coords[2*i+1], coords[2*i+2], coords[2*i+3]);
 		}
 		return result;
 	}
-	
+
 	@Override
 	public String toString()
 	{
-		return "[[POLYLINE: Path: " + path.toString() + ", Attributes: " + this.getAttributes().toString() + "]]";
+		StringBuffer path = new StringBuffer("[");
+		for (int i = 0; i < size; ++i)
+		{
+			if (i > 0)
+				path.append(", ");
+			path.append(new Point(coords[2*i], coords[2*i+1]));
+		}
+		path.append("]");
+		return "[[POLYLINE: Path: " + path + ", Attributes: " + this.getAttributes().toString() + getTransformString() + "]]";
 	}
-	
+
 
 	@Override
 	public int hashCode()
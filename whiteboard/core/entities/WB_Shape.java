@@ -4,18 +4,34 @@
 package whiteboard.core.entities;
 
 
+import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 
 /**
  * @author Afton
  *
+ * The attributes that affect drawing (colour, stroke width, font) are parsed once, 
+ * when they're set, into typed fields that draw() reads without parsing or locking.
+ * The attribute map is what goes on the wire, and holds anything else a shape is given.
+ * 
+ * A shape's geometry is in its own coordinates, and its transform maps them onto the 
+ * board. Translating, scaling and rotating only change the transform, which is applied 
+ * when the shape is drawn, and undone on the point or rectangle when it's hit-tested.
+ * The bounds on the board are worked out when they're next asked for.
  */
 public abstract class WB_Shape {
 	
@@ -24,23 +40,56 @@ public abstract class WB_Shape {
 	protected static final float LINE_SELECT_SENSITIVITY = 0.35f;
 	
 	protected boolean isOnLine(Point test, Point start, Point end)
+	{
+		return isOnLine(test, start.x, start.y, end.x, end.y);
+	}
+	
+	/***
+	 * As isOnLine(Point, Point, Point), for the line from (x0, y0) to (x1, y1)
+	 */
+	protected boolean isOnLine(Point test, int x0, int y0, int x1, int y1)
 	{
 		// special case: slope = infinity
-		if(start.x == end.x) {
+		if(x0 == x1) {
 			//return true if point on line between two y values
-			return ((test.x == start.x) && (test.y <= Math.max(start.y, end.y)) && (test.y >= Math.min(start.y, end.y))) ? true : false;
-		} else if(getBounds().contains(test)) {
+			return ((test.x == x0) && (test.y <= Math.max(y0, y1)) && (test.y >= Math.min(y0, y1))) ? true : false;
+		} else if(boundsContain(test)) {
 			//point is within bounds of line, so
 			//using parametric equations, determine if point is on the line
 			//P = start + t(end - start)    0 <= t <= 1
-			float tx = ((float) (test.x - start.x)) / ((float) (end.x - start.x));
-			float ty = ((float) (test.y - start.y)) / ((float) (end.y - start.y));
+			float tx = ((float) (test.x - x0)) / ((float) (x1 - x0));
+			float ty = ((float) (test.y - y0)) / ((float) (y1 - y0));
 			return ((Math.abs(tx) <= 1) && (Math.abs(ty) <= 1) && (Math.abs(tx - ty) < LINE_SELECT_SENSITIVITY)) ? true : false;
 		}
 		return false;
 	}
 	
+	/***
+	 * 
+	 * @param p in the shape's own coordinates
+	 * @return true if p is within getLocalBounds(). Shapes that keep their bounds can answer 
+	 * 		   without building a Rectangle.
+	 */
+	protected boolean boundsContain(Point p)
+	{
+		Rectangle r = getLocalBounds();
+		return r != null && r.contains(p);
+	}
+	
 	private HashMap<String, String> attributes = new LinkedHashMap<String,String>();
+	/** the COLOUR attribute, or null if there isn't one (or it isn't a colour) */
+	private volatile Color colour = null;
+	/** the stroke for the STROKE_WIDTH attribute, or null if there isn't one */
+	private volatile Stroke stroke = null;
+	/** the FONT attribute, or null if there isn't one */
+	private volatile Font font = null;
+	/** 
+	 * maps the shape's own coordinates onto the board, or null if they're the same. It's 
+	 * replaced rather than changed, so draw() can use it without locking
+	 */
+	private volatile AffineTransform transform = null;
+	/** the bounds on the board, or null until they're next asked for */
+	private Rectangle bounds = null;
 	/** hashcode for this shape */
 	protected int hcode;
 
@@ -58,11 +107,138 @@ public abstract class WB_Shape {
 	}
 
 	/**
-	 * move all points by specified dx and dy
+	 * move the shape by specified dx and dy. Takes the same time however many points it has
 	 * @param dx - amount to move in x axis
 	 * @param dy - amount to move in y axis
 	 */
-	public abstract void translate(int dx, int dy);
+	public final void translate(int dx, int dy) {
+		AffineTransform t = getTransform();
+		t.preConcatenate(AffineTransform.getTranslateInstance(dx, dy));
+		replaceTransform(t);
+	}
+	
+	/***
+	 * Scales the shape along its own axes, about its centre (see getLocalCentre())
+	 * PRE: neither factor is 0
+	 * @param sx
+	 * @param sy
+	 */
+	public final void scale(double sx, double sy) {
+		Point2D c = getLocalCentre();
+		AffineTransform t = getTransform();
+		t.translate(c.getX(), c.getY());
+		t.scale(sx, sy);
+		t.translate(-c.getX(), -c.getY());
+		replaceTransform(t);
+	}
+	
+	/***
+	 * Rotates the shape about its centre (see getLocalCentre())
+	 * @param theta the angle in radians, clockwise as the board is drawn
+	 */
+	public final void rotate(double theta) {
+		AffineTransform t = getTransform();
+		Point2D c = t.transform(getLocalCentre(), null);
+		t.preConcatenate(AffineTransform.getRotateInstance(theta, c.getX(), c.getY()));
+		replaceTransform(t);
+	}
+	
+	/***
+	 * Applies a geometric transformation with its arguments as they're sent 
+	 * (see ShapeConstants.GEOM_TRANSFORM_TYPE)
+	 * @param transType a GEOM_TRANSFORM_TYPE ordinal
+	 * @param arg1
+	 * @param arg2
+	 * @return false if it isn't a TRANSLATION, SCALE or ROTATION, or is a scale by 0 (which couldn't be undone)
+	 */
+	public final boolean applyTransform(int transType, int arg1, int arg2) {
+		if (ShapeConstants.GEOM_TRANSFORM_TYPE.TRANSLATION.ordinal() == transType) {
+			translate(arg1, arg2);
+		} else if (ShapeConstants.GEOM_TRANSFORM_TYPE.SCALE.ordinal() == transType) {
+			if (arg1 == 0 || arg2 == 0)
+				return false;
+			scale((double) arg1 / ShapeConstants.TRANSFORM_UNIT, (double) arg2 / ShapeConstants.TRANSFORM_UNIT);
+		} else if (ShapeConstants.GEOM_TRANSFORM_TYPE.ROTATION.ordinal() == transType) {
+			rotate(Math.toRadians((double) arg1 / ShapeConstants.TRANSFORM_UNIT));
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	/***
+	 * 
+	 * @return a copy of the transform from the shape's own coordinates onto the board
+	 */
+	public final AffineTransform getTransform() {
+		AffineTransform t = transform;
+		return (t == null) ? new AffineTransform() : new AffineTransform(t);
+	}
+	
+	/***
+	 * 
+	 * @return false if the shape's own coordinates are where it is on the board
+	 */
+	public final boolean isTransformed() {
+		return transform != null;
+	}
+	
+	/***
+	 * 
+	 * @param t replaces the shape's transform; it's copied
+	 */
+	public final void setTransform(AffineTransform t) {
+		replaceTransform(new AffineTransform(t));
+	}
+	
+	private synchronized void replaceTransform(AffineTransform t) {
+		transform = t.isIdentity() ? null : t;
+		bounds = null;
+	}
+	
+	/***
+	 * Must be called whenever the shape's own geometry changes, so its bounds are worked out again
+	 */
+	protected final synchronized void geometryChanged() {
+		bounds = null;
+	}
+	
+	/***
+	 * 
+	 * @return the point the shape is scaled and rotated about, in its own coordinates: 
+	 * 		   the centre of its bounds, unless it knows better
+	 */
+	protected Point2D getLocalCentre() {
+		Rectangle r = getLocalBounds();
+		return (r == null) ? new Point2D.Double() : new Point2D.Double(r.getCenterX(), r.getCenterY());
+	}
+	
+	/***
+	 * 
+	 * @param p a point on the board
+	 * @return where p is in the shape's own coordinates, or null if the transform can't be undone
+	 */
+	protected final Point toLocal(Point p) {
+		AffineTransform t = transform;
+		if (t == null)
+			return p;
+		try {
+			Point2D local = t.inverseTransform(p, null);
+			return new Point((int) Math.round(local.getX()), (int) Math.round(local.getY()));
+		} catch (NoninvertibleTransformException e) {
+			return null;
+		}
+	}
+	
+	/***
+	 * 
+	 * @return true if t only moves by whole pixels, so rectangles can be mapped through it exactly
+	 */
+	private static boolean isWholeTranslation(AffineTransform t) {
+		return (t.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0
+			&& t.getTranslateX() == Math.rint(t.getTranslateX())
+			&& t.getTranslateY() == Math.rint(t.getTranslateY());
+	}
 	
 	
 	/***
@@ -73,23 +249,110 @@ public abstract class WB_Shape {
 
 	
 	public void draw(Graphics2D g) {
-		boolean coloured = containsAttribute("WB_COLOUR");
+		Color col = colour;
+		Stroke str = stroke;
+		Font fnt = font;
+		AffineTransform t = transform;
 		
-		if (coloured) {
-			synchronized (this) {
-			Color col = g.getColor();
-			g.setColor(new Color( Integer.parseInt(getAttribute("WB_COLOUR")))) ;
-			localDraw(g);	
+		if (col == null && str == null && fnt == null && t == null) {
+			localDraw(g);
+			return;
+		}
+		
+		Color oldColour = g.getColor();
+		Stroke oldStroke = g.getStroke();
+		Font oldFont = g.getFont();
+		AffineTransform oldTransform = g.getTransform();
+		if (col != null)
 			g.setColor(col);
+		if (str != null)
+			g.setStroke(str);
+		if (fnt != null)
+			g.setFont(fnt);
+		if (t != null)
+			g.transform(t);
+		localDraw(g);
+		g.setColor(oldColour);
+		g.setStroke(oldStroke);
+		g.setFont(oldFont);
+		g.setTransform(oldTransform);
+	}
+	
+	/***
+	 * 
+	 * @return the shape's colour, or null if it doesn't have one
+	 */
+	public final Color getColour() {
+		return colour;
+	}
+	
+	public final void setColour(Color colour) {
+		putAttribute(ShapeConstants.COLOUR, Integer.toString(colour.getRGB()));
+	}
+	
+	/***
+	 * 
+	 * @return the width of the shape's lines, or 0 if it uses the default
+	 */
+	public final float getStrokeWidth() {
+		Stroke s = stroke;
+		return (s instanceof BasicStroke) ? ((BasicStroke) s).getLineWidth() : 0;
+	}
+	
+	public final void setStrokeWidth(float width) {
+		putAttribute(ShapeConstants.STROKE_WIDTH, Float.toString(width));
+	}
+	
+	/***
+	 * 
+	 * @return the shape's font, or null if it uses the default
+	 */
+	public final Font getFont() {
+		return font;
+	}
+	
+	public final void setFont(Font font) {
+		String style = font.isBold() ? (font.isItalic() ? "BOLDITALIC" : "BOLD") : (font.isItalic() ? "ITALIC" : "PLAIN");
+		putAttribute(ShapeConstants.FONT, font.getName() + "-" + style + "-" + font.getSize());
+	}
+	
+	/***
+	 * Updates the typed field for an attribute that affects drawing
+	 * @param key
+	 * @param val the new value, or null if the attribute has gone
+	 */
+	private void cacheAttribute(String key, String val) {
+		if (ShapeConstants.COLOUR.equals(key)) {
+			Color c = null;
+			if (val != null) {
+				try {
+					c = new Color(Integer.parseInt(val));
+				} catch (NumberFormatException e) {
+					// not a colour, so draw with the default
+				}
 			}
-		} else {
-			localDraw(g);
+			colour = c;
+		} else if (ShapeConstants.STROKE_WIDTH.equals(key)) {
+			Stroke s = null;
+			if (val != null) {
+				try {
+					float width = Float.parseFloat(val);
+					if (width > 0 && !Float.isInfinite(width))
+						s = new BasicStroke(width);
+				} catch (NumberFormatException e) {
+					// not a width, so draw with the default
+				}
+			}
+			stroke = s;
+		} else if (ShapeConstants.FONT.equals(key)) {
+			font = (val == null) ? null : Font.decode(val);
 		}
 	}
 	
 	/***
 	 * 
-	 * @return all the attributes in Map form. 
+	 * @return all the attributes in Map form. Change them through putAttribute() and 
+	 * 		   removeAttribute(), or the typed attributes won't follow.
 	 */
 	public final HashMap<String, String> getAttributes() {
 		return attributes;
@@ -103,6 +366,16 @@ public abstract class WB_Shape {
 	 */
 	public final void putAttribute(String key, String val) {
 		attributes.put(key, val);
+		cacheAttribute(key, val);
+	}
+	
+	/***
+	 * 
+	 * @param key the attribute to remove
+	 */
+	public final void removeAttribute(String key) {
+		attributes.remove(key);
+		cacheAttribute(key, null);
 	}
 	
 	/***
@@ -127,30 +400,160 @@ public abstract class WB_Shape {
 	/***
 	 * 
 	 * @return The object shrunken to a byte-array following some fairly particular rules
-	 * 			This is why single inheritance sucks monkey butt. 
+	 * 			This is why single inheritance sucks monkey butt. See ShapeEncoder.
+	 */
+	public final byte[] pack() {
+		return ShapeEncoder.encode(this);
+	}
+	
+	/***
+	 * 
+	 * @return the type tag written into the packed shape
+	 */
+	public abstract ShapeConstants.SHAPE_TYPE getShapeType();
+	
+	/***
+	 * 
+	 * @return the number of bytes packGeometry() will write
+	 */
+	protected abstract int getPackedGeometrySize();
+	
+	/***
+	 * 
+	 * @param out the buffer to write everything that follows the attributes into
+	 */
+	protected abstract void packGeometry(ByteBuffer out);
+	
+	/***
+	 * 
+	 * @return true if packGeometry() writes compact geometry (see ShapeConstants.COMPACT_GEOMETRY)
 	 */
-	public abstract ArrayList<Byte> pack();
+	protected boolean hasCompactGeometry() {
+		return false;
+	}
 		
 
 	public final void setAttributes(HashMap<String, String> attributes) {
 		this.attributes = attributes;
+		cacheAttribute(ShapeConstants.COLOUR, attributes.get(ShapeConstants.COLOUR));
+		cacheAttribute(ShapeConstants.STROKE_WIDTH, attributes.get(ShapeConstants.STROKE_WIDTH));
+		cacheAttribute(ShapeConstants.FONT, attributes.get(ShapeConstants.FONT));
 	}
 	
 	/***
 	 * 
-	 * @param p
+	 * @param p a point on the board
 	 * @return true if the point p is inside/on the WB_displayObject
 	 */
-	public abstract boolean isOnPerimeter(Point p);
+	public final boolean isOnPerimeter(Point p) {
+		Point local = toLocal(p);
+		return local != null && localIsOnPerimeter(local);
+	}
+	
+	/***
+	 * As isOnPerimeter(), in the shape's own coordinates
+	 */
+	protected abstract boolean localIsOnPerimeter(Point p);
 
 	/***
 	 * 
-	 * @param r
+	 * @param r a rectangle on the board
 	 * @return true iff the rectangle intersects with the geometry. 
 	 */
-	public abstract boolean intersects(Rectangle r);
+	public final boolean intersects(Rectangle r) {
+		AffineTransform t = transform;
+		if (t == null)
+			return localIntersects(r);
+		if (isWholeTranslation(t)) {
+			Rectangle local = new Rectangle(r);
+			local.translate(-(int) t.getTranslateX(), -(int) t.getTranslateY());
+			return localIntersects(local);
+		}
+		// scaled or rotated, so the rectangle isn't one in the shape's coordinates: follow the outline on the board instead
+		return outlineIntersects(getOutline().getPathIterator(t), r);
+	}
+	
+	/***
+	 * As intersects(), in the shape's own coordinates
+	 */
+	protected abstract boolean localIntersects(Rectangle r);
 	
-	public abstract Rectangle getBounds();
+	/***
+	 * 
+	 * @return the lines of the shape, in its own coordinates. A point on its own stands for itself.
+	 */
+	protected abstract Shape getOutline();
+	
+	/***
+	 * 
+	 * @param outline straight lines, and points on their own
+	 * @param r
+	 * @return true if r crosses one of the lines or contains one of the points
+	 */
+	private static boolean outlineIntersects(PathIterator outline, Rectangle r) {
+		double[] coords = new double[6];
+		double startX = 0, startY = 0, lastX = 0, lastY = 0;
+		// true while the last point moved to has no lines from it
+		boolean alone = false;
+		for (; !outline.isDone(); outline.next()) {
+			switch (outline.currentSegment(coords)) {
+			case PathIterator.SEG_MOVETO:
+				if (alone && r.contains(lastX, lastY))
+					return true;
+				startX = lastX = coords[0];
+				startY = lastY = coords[1];
+				alone = true;
+				break;
+			case PathIterator.SEG_CLOSE:
+				if (r.intersectsLine(lastX, lastY, startX, startY))
+					return true;
+				lastX = startX;
+				lastY = startY;
+				alone = false;
+				break;
+			case PathIterator.SEG_LINETO:
+				if (r.intersectsLine(lastX, lastY, coords[0], coords[1]))
+					return true;
+				lastX = coords[0];
+				lastY = coords[1];
+				alone = false;
+				break;
+			default:
+				// outlines are straight lines
+				break;
+			}
+		}
+		return alone && r.contains(lastX, lastY);
+	}
+	
+	/***
+	 * 
+	 * @return the bounds of the shape on the board, or null if it doesn't know them. 
+	 * 		   They're worked out again only after the shape has changed.
+	 */
+	public final synchronized Rectangle getBounds() {
+		if (bounds == null) {
+			Rectangle local = getLocalBounds();
+			AffineTransform t = transform;
+			if (local == null || t == null) {
+				bounds = local;
+			} else if (isWholeTranslation(t)) {
+				local.translate((int) t.getTranslateX(), (int) t.getTranslateY());
+				bounds = local;
+			} else {
+				bounds = t.createTransformedShape(local).getBounds();
+			}
+			if (bounds == null)
+				return null;
+		}
+		return new Rectangle(bounds);
+	}
+	
+	/***
+	 * 
+	 * @return the bounds of the shape in its own coordinates, or null if it doesn't know them
+	 */
+	protected abstract Rectangle getLocalBounds();
 	
 	/***
 	 * This draws the "selected" version of the object
@@ -171,6 +574,15 @@ public abstract class WB_Shape {
 	
 	public abstract String toString();
 	
+	/***
+	 * 
+	 * @return the transform, for toString(), or nothing if the shape isn't transformed
+	 */
+	protected final String getTransformString() {
+		AffineTransform t = transform;
+		return (t == null) ? "" : ", Transform: " + t;
+	}
+	
 	public boolean equals(WB_Shape p)
 	{
 		return p.hashCode() == this.hashCode();
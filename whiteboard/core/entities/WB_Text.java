@@ -4,7 +4,8 @@ import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
 
 /***
  * 
@@ -14,6 +15,8 @@ import java.util.ArrayList;
 public class WB_Text extends WB_Point {
 	private FontMetrics fontMetrics;
 	private String text; 
+	/** the text as it goes on the wire, made on first use */
+	private byte[] textBytes = null;
 	
 	public WB_Text(Point p, String init)
 	{
@@ -27,36 +30,66 @@ public class WB_Text extends WB_Point {
 		text = "";
 	}
 
-	public ArrayList<Byte> pack() {
-		ArrayList<Byte> contents = new ArrayList<Byte>();
-		contents.addAll(BytePacker.convertIntToBytes(hashCode()));
-		contents.add(new Integer(ShapeConstants.SHAPE_TYPE.TEXT_TYPE.ordinal()).byteValue());
-		BytePacker.packAttributes(contents, getAttributes());
+	public ShapeConstants.SHAPE_TYPE getShapeType() {
+		return ShapeConstants.SHAPE_TYPE.TEXT_TYPE;
+	}
+	
+	private byte[] getTextBytes() {
+		if (textBytes == null) {
+			textBytes = text.getBytes();
+		}
+		return textBytes;
+	}
+
+	protected int getPackedGeometrySize() {
+		return ShapeConstants.INTEGER_BYTE_SIZE + getTextBytes().length + super.getPackedGeometrySize();
+	}
+
+	protected void packGeometry(ByteBuffer out) {
+		// the length is in bytes, which is what the decoder reads back
+		out.putInt(getTextBytes().length);
+		out.put(getTextBytes());
+		super.packGeometry(out);
+	}
 
-		contents.addAll(BytePacker.convertIntToBytes(text.length()));
-		contents.addAll(BytePacker.convertStringToBytes(text));
-		contents.addAll(BytePacker.convertIntToBytes(1));
-		contents.addAll(BytePacker.convertPointToBytes(loc));
-		
-		return contents;
+	/***
+	 * Lets the text work out its bounds before it's first drawn.
+	 * @param fm the metrics of the font the text will be drawn in
+	 */
+	public void setFontMetrics(FontMetrics fm) {
+		if (fontMetrics == null || !fontMetrics.getFont().equals(fm.getFont()))
+			geometryChanged();
+		fontMetrics = fm;
 	}
 
 	public void localDraw(Graphics2D g)
 	{
-		fontMetrics = g.getFontMetrics();
+		setFontMetrics(g.getFontMetrics());
 		String[] lines = text.split("\n");
 		for(int i = 0; i < lines.length; ++i) {
 			g.drawString(lines[i],loc.x, loc.y + (i+1) * g.getFontMetrics().getHeight());
 		}
 	}
 
-	public boolean isOnPerimeter(@SuppressWarnings("unused") Point p) {
+	protected boolean localIsOnPerimeter(@SuppressWarnings("unused") Point p) {
 		return false; // our live will be so much easier if we only 
 		// allow text selection with a selection rectangle.
 		//return getBounds().contains(p);
 	}
 
-	public Rectangle getBounds() {
+	/***
+	 * The text turns about where it starts rather than the centre of its bounds, which 
+	 * depend on the font it's drawn in, and so can differ between users
+	 */
+	@Override
+	protected Point2D getLocalCentre() {
+		return new Point2D.Double(loc.x, loc.y);
+	}
+
+	protected Rectangle getLocalBounds() {
+		// we only learn the font once we've been drawn; until then all we know is where we are
+		if (fontMetrics == null)
+			return new Rectangle(loc.x, loc.y, 0, 0);
 		String[] textLines = text.split("\n");
 		int width = 0;
 		//get the maximum width of the lines
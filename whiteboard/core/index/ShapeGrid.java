@@ -0,0 +1,207 @@
+package whiteboard.core.index;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whiteboard.core.entities.WB_Shape;
+
+/***
+ * 
+ * @author Afton
+ * A uniform grid over the canvas, keyed by each shape's bounds. Hit tests only
+ * look at the shapes in the cells they touch rather than at every shape on the board. 
+ * 
+ * The grid only narrows things down: callers still have to run the real test
+ * (isOnPerimeter(), intersects()) on the candidates. Whenever a shape's bounds 
+ * change (e.g. translate()) the grid must be told through update().
+ */
+public class ShapeGrid {
+	/** width and height of a cell, in pixels */
+	public static final int CELL_SIZE = 128;
+	/** shapes that would cover more cells than this are kept in a separate list and always tested */
+	public static final int MAX_CELLS_PER_SHAPE = 64;
+	/** how far around a point to look, since selection is a little forgiving */
+	public static final int POINT_TOLERANCE = 2;
+
+	/** what the grid knows about an indexed shape */
+	private static class Entry {
+		final WB_Shape shape;
+		/** when the shape was added; candidates come back in this order */
+		final long order;
+		/** the cells the shape is in, as [x0, y0, x1, y1], or null if it's in the large list */
+		int[] cells;
+
+		Entry(WB_Shape shape, long order) {
+			this.shape = shape;
+			this.order = order;
+		}
+	}
+
+	private static final Comparator<Entry> DRAW_ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return (e1.order < e2.order) ? -1 : ((e1.order == e2.order) ? 0 : 1);
+		}
+	};
+
+	/** the cells, keyed by packed (x, y) cell coordinates */
+	private final HashMap<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+	/** shapes that are too big (or have no bounds) to put in cells */
+	private final List<Entry> large = new ArrayList<Entry>();
+	/** every indexed shape */
+	private final IdentityHashMap<WB_Shape, Entry> entries = new IdentityHashMap<WB_Shape, Entry>();
+	private long nextOrder = 0;
+
+	/***
+	 * 
+	 * @param shape the shape to index. Adding a shape that's already indexed does nothing.
+	 */
+	public synchronized void add(WB_Shape shape) {
+		if (shape == null || entries.containsKey(shape))
+			return;
+		Entry e = new Entry(shape, nextOrder++);
+		entries.put(shape, e);
+		insert(e);
+	}
+
+	/***
+	 * 
+	 * @param shapes shapes to index, in draw order, e.g. everything a chunk of history created
+	 */
+	public synchronized void addAll(List<WB_Shape> shapes) {
+		for (WB_Shape shape : shapes)
+			add(shape);
+	}
+
+	/***
+	 * 
+	 * @param shape the shape to drop from the index
+	 */
+	public synchronized void remove(WB_Shape shape) {
+		if (shape == null)
+			return;
+		Entry e = entries.remove(shape);
+		if (e != null)
+			extract(e);
+	}
+
+	/***
+	 * Re-files a shape whose bounds have changed. It keeps its place in the draw order.
+	 * @param shape
+	 */
+	public synchronized void update(WB_Shape shape) {
+		Entry e = entries.get(shape);
+		if (e == null)
+			return;
+		extract(e);
+		insert(e);
+	}
+
+	public synchronized void clear() {
+		cells.clear();
+		large.clear();
+		entries.clear();
+	}
+
+	/***
+	 * 
+	 * @param r
+	 * @return every shape whose bounds might touch r, in the order they were added
+	 */
+	public synchronized List<WB_Shape> getCandidates(Rectangle r) {
+		List<Entry> found = new ArrayList<Entry>(large);
+		IdentityHashMap<Entry, Entry> seen = new IdentityHashMap<Entry, Entry>();
+		int x0 = cellOf(r.x), y0 = cellOf(r.y);
+		int x1 = cellOf(r.x + r.width), y1 = cellOf(r.y + r.height);
+		for (int x = x0; x <= x1; ++x) {
+			for (int y = y0; y <= y1; ++y) {
+				List<Entry> cell = cells.get(key(x, y));
+				if (cell == null)
+					continue;
+				for (Entry e : cell) {
+					if (seen.put(e, e) == null)
+						found.add(e);
+				}
+			}
+		}
+		return toShapes(found);
+	}
+
+	/***
+	 * 
+	 * @param p
+	 * @return every shape whose bounds might contain p, in the order they were added
+	 */
+	public synchronized List<WB_Shape> getCandidates(Point p) {
+		return getCandidates(new Rectangle(p.x - POINT_TOLERANCE, p.y - POINT_TOLERANCE, 2*POINT_TOLERANCE, 2*POINT_TOLERANCE));
+	}
+
+	private List<WB_Shape> toShapes(List<Entry> found) {
+		Collections.sort(found, DRAW_ORDER);
+		List<WB_Shape> shapes = new ArrayList<WB_Shape>(found.size());
+		for (Entry e : found)
+			shapes.add(e.shape);
+		return shapes;
+	}
+
+	private void insert(Entry e) {
+		Rectangle r = e.shape.getBounds();
+		if (r == null) {
+			e.cells = null;
+			large.add(e);
+			return;
+		}
+		int x0 = cellOf(r.x), y0 = cellOf(r.y);
+		int x1 = cellOf(r.x + r.width), y1 = cellOf(r.y + r.height);
+		if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_SHAPE) {
+			e.cells = null;
+			large.add(e);
+			return;
+		}
+		e.cells = new int[] { x0, y0, x1, y1 };
+		for (int x = x0; x <= x1; ++x) {
+			for (int y = y0; y <= y1; ++y) {
+				Long k = key(x, y);
+				List<Entry> cell = cells.get(k);
+				if (cell == null) {
+					cell = new ArrayList<Entry>(4);
+					cells.put(k, cell);
+				}
+				cell.add(e);
+			}
+		}
+	}
+
+	private void extract(Entry e) {
+		if (e.cells == null) {
+			large.remove(e);
+			return;
+		}
+		for (int x = e.cells[0]; x <= e.cells[2]; ++x) {
+			for (int y = e.cells[1]; y <= e.cells[3]; ++y) {
+				Long k = key(x, y);
+				List<Entry> cell = cells.get(k);
+				if (cell == null)
+					continue;
+				cell.remove(e);
+				if (cell.isEmpty())
+					cells.remove(k);
+			}
+		}
+		e.cells = null;
+	}
+
+	private static int cellOf(int coord) {
+		// round towards negative infinity so negative coordinates land in the right cell
+		return (int) Math.floor((double) coord / CELL_SIZE);
+	}
+
+	private static Long key(int x, int y) {
+		return Long.valueOf((((long) x) << 32) | (y & 0xFFFFFFFFL));
+	}
+}
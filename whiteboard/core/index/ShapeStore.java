@@ -0,0 +1,221 @@
+package whiteboard.core.index;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import whiteboard.core.entities.WB_Shape;
+
+/***
+ * 
+ * @author Afton
+ * The shapes on a board, keyed by object reference (hashCode()) and kept in
+ * draw order. Lookup, add and remove by reference are all constant time.
+ * 
+ * The reference map is an open-addressed int table, so there's no boxing, and
+ * the draw order is a doubly linked list threaded through the map's nodes.
+ * Not thread safe: callers lock around it, as Canvas does.
+ */
+public class ShapeStore implements Iterable<WB_Shape> {
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** a shape, its place in the table and its neighbours in draw order */
+	private static class Node {
+		final int ref;
+		final WB_Shape shape;
+		Node prev, next;
+
+		Node(int ref, WB_Shape shape) {
+			this.ref = ref;
+			this.shape = shape;
+		}
+	}
+
+	/** linear-probing table, always a power of two long and never more than half full */
+	private Node[] table = new Node[INITIAL_CAPACITY];
+	private int size = 0;
+	/** first and last shapes in draw order */
+	private Node head = null, tail = null;
+	/** bumped on every change, so iterators can fail fast */
+	private int modCount = 0;
+
+	/***
+	 * Adds a shape at the end of the draw order.
+	 * @param shape
+	 * @return false if a shape with the same reference is already in the store
+	 */
+	public boolean add(WB_Shape shape) {
+		int ref = shape.hashCode();
+		int i = indexOf(ref);
+		if (table[i] != null)
+			return false;
+		Node n = new Node(ref, shape);
+		table[i] = n;
+		n.prev = tail;
+		if (tail == null)
+			head = n;
+		else
+			tail.next = n;
+		tail = n;
+		++size;
+		++modCount;
+		if (2 * size > table.length)
+			resize(2 * table.length);
+		return true;
+	}
+
+	/***
+	 * 
+	 * @param ref an object reference
+	 * @return the shape with that reference, or null if there isn't one
+	 */
+	public WB_Shape get(int ref) {
+		Node n = table[indexOf(ref)];
+		return (n == null) ? null : n.shape;
+	}
+
+	public boolean contains(int ref) {
+		return table[indexOf(ref)] != null;
+	}
+
+	/***
+	 * 
+	 * @param ref
+	 * @return the shape that was removed, or null if there was none with that reference
+	 */
+	public WB_Shape remove(int ref) {
+		int i = indexOf(ref);
+		Node n = table[i];
+		if (n == null)
+			return null;
+		removeAt(i);
+		return n.shape;
+	}
+
+	/***
+	 * 
+	 * @param shape
+	 * @return true if that exact shape was in the store
+	 */
+	public boolean remove(WB_Shape shape) {
+		if (shape == null)
+			return false;
+		int i = indexOf(shape.hashCode());
+		if (table[i] == null || table[i].shape != shape)
+			return false;
+		removeAt(i);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		table = new Node[INITIAL_CAPACITY];
+		head = tail = null;
+		size = 0;
+		++modCount;
+	}
+
+	/***
+	 * @return the shapes in draw order. The store mustn't change while iterating,
+	 * except through the iterator's own remove().
+	 */
+	public Iterator<WB_Shape> iterator() {
+		return new Iterator<WB_Shape>() {
+			private Node next = head;
+			private Node last = null;
+			private int expected = modCount;
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public WB_Shape next() {
+				if (expected != modCount)
+					throw new ConcurrentModificationException();
+				if (next == null)
+					throw new NoSuchElementException();
+				last = next;
+				next = next.next;
+				return last.shape;
+			}
+
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				if (expected != modCount)
+					throw new ConcurrentModificationException();
+				ShapeStore.this.remove(last.shape);
+				last = null;
+				expected = modCount;
+			}
+		};
+	}
+
+	/***
+	 * 
+	 * @param ref
+	 * @return the slot holding ref, or the empty slot where it would go
+	 */
+	private int indexOf(int ref) {
+		int mask = table.length - 1;
+		int i = mix(ref) & mask;
+		while (table[i] != null && table[i].ref != ref)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/***
+	 * Unlinks the node in slot i, then shifts later nodes in its probe run back so
+	 * lookups never hit a hole (no tombstones needed).
+	 */
+	private void removeAt(int i) {
+		Node n = table[i];
+		if (n.prev == null)
+			head = n.next;
+		else
+			n.prev.next = n.next;
+		if (n.next == null)
+			tail = n.prev;
+		else
+			n.next.prev = n.prev;
+		n.prev = n.next = null;
+
+		int mask = table.length - 1;
+		int hole = i;
+		table[hole] = null;
+		for (int j = (hole + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+			int home = mix(table[j].ref) & mask;
+			// move j into the hole unless its home lies cyclically in (hole, j]
+			boolean stays = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+			if (!stays) {
+				table[hole] = table[j];
+				table[j] = null;
+				hole = j;
+			}
+		}
+		--size;
+		++modCount;
+	}
+
+	private void resize(int capacity) {
+		Node[] old = table;
+		table = new Node[capacity];
+		for (Node n : old) {
+			if (n != null)
+				table[indexOf(n.ref)] = n;
+		}
+	}
+
+	/** spreads the bits of a reference, since identity hash codes aren't well distributed in the low bits */
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -3,50 +3,345 @@ package whiteboard.core.transaction;
 import java.util.*;
 import java.util.PriorityQueue;
 
+import whiteboard.core.entities.ShapeConstants.WB_REQUEST_TYPE;
+
 /***
  * 
  * @author Afton
  * Each epoch holds all the info we need to keep track of missing packets, 
  * including keeping track of packets recieved but that we can't act on yet. 
  *
+ * Processed packets are indexed by sequence number (an array offset from the 
+ * first sequence number) and by object reference (every target, for a packet that 
+ * changes several objects), so lookups don't scan the history.
+ * The history methods are synchronized so it can be streamed to a joining peer while
+ * packets are still being added.
+ *
+ * The history can be compacted (see HistoryCompactor): everything up to a watermark 
+ * sequence number is replaced by a snapshot of the packets still needed to rebuild
+ * the board. Sequence numbers at or below the watermark still count as processed, 
+ * and the last sequence number is kept, so later packets order the same as before.
+ * 
+ * A joining peer is sent the head's snapshot, so its epoch starts out compacted through 
+ * the head's watermark (see startCompacted()). Until the snapshot has arrived, a number 
+ * at or below that watermark only counts as processed once its packet has been received.
  */
 public class Epoch {
 	
 	/** give the epoch some introspection */
 	public final Integer epoch;
 
-	/** Everything goes in the history. Avoids multiply processing the same packet	 */
-	public LinkedList<ShapePacket> processedShapes = new LinkedList<ShapePacket>();
+	/** Everything goes in the history, in the order processed. Avoids multiply processing the same packet	 */
+	private ArrayList<ShapePacket> processedShapes = new ArrayList<ShapePacket>();
+	
+	/** processedShapes above the watermark by sequence number: slot i holds sequence firstSequence+i, null for a gap */
+	private ArrayList<ShapePacket> bySequence = new ArrayList<ShapePacket>();
+	private int firstSequence = 0;
+	
+	/** the packets kept by the last compaction, by sequence number */
+	private HashMap<Integer, ShapePacket> snapshotBySequence = new HashMap<Integer, ShapePacket>();
+	
+	/** object reference -> the packets (creation and modifications) for that object, in order */
+	private HashMap<Integer, List<ShapePacket>> byObject = new HashMap<Integer, List<ShapePacket>>();
+	
+	/** object reference -> the packet that created it */
+	private HashMap<Integer, ShapePacket> creations = new HashMap<Integer, ShapePacket>();
+	
+	/** the highest sequence number processed, null until the first packet */
+	private Integer lastSequence = null;
+	
+	/** every sequence number up to here has been folded into the snapshot, null if never compacted */
+	private Integer compactedThrough = null;
+	
+	/** how many packets the last compaction kept */
+	private int compactedSize = 0;
+	
+	/** the watermark of the snapshot this epoch was started from, null if it wasn't */
+	private Integer joinedThrough = null;
+	
+	/** the sequence numbers at or below joinedThrough whose packets have been received */
+	private BitSet joined = null;
 	
 	/** packets that are waiting for an earlier packet before they can be processed */
-	public PriorityQueue<ShapePacket> pending = new PriorityQueue<ShapePacket>();		
+	private PriorityQueue<ShapePacket> pending = new PriorityQueue<ShapePacket>();		
 		
 	public Epoch (Integer epoch)
 	{
 		this.epoch = new Integer(epoch);
 	}
 
-	// simple linear search
-	// we don't need to the pending packets, just ones that have already been serviced.
-	public List<byte[]> findAll( Integer objId )
+	/***
+	 * Records a packet as processed. Packets are expected in sequence order.
+	 * @param packet
+	 */
+	public synchronized void add(ShapePacket packet)
+	{
+		if (lastSequence == null || packet.sequence > lastSequence)
+			lastSequence = packet.sequence;
+		append(packet);
+	}
+
+	private void append(ShapePacket packet)
 	{
-		List<byte[]> history = new LinkedList<byte[]>();
-		for (ShapePacket p: processedShapes )
+		int seq = packet.sequence;
+		if (isJoinSnapshot(seq))
+			joined.set(seq);
+		if (isCompacted(seq))
 		{
-			if (p.hashCode() == objId.hashCode() )
+			snapshotBySequence.put(seq, packet);
+		}
+		else
+		{
+			if (bySequence.isEmpty())
 			{
-				history.add( p.packet );
+				firstSequence = seq;
 			}
+			else if (seq < firstSequence)
+			{
+				// shouldn't happen, but shift the index rather than lose the packet
+				bySequence.addAll(0, Collections.<ShapePacket>nCopies(firstSequence - seq, null));
+				firstSequence = seq;
+			}
+			int slot = seq - firstSequence;
+			while (bySequence.size() <= slot)
+				bySequence.add(null);
+			bySequence.set(slot, packet);
+		}
+		processedShapes.add(packet);
+
+		if (packet.type != WB_REQUEST_TYPE.NULL_REQUEST)
+		{
+			// a MULTI_GEOM_MODIFICATION is part of every target's history
+			for (int ref : packet.getTargets())
+			{
+				List<ShapePacket> history = byObject.get(ref);
+				if (history == null)
+				{
+					history = new ArrayList<ShapePacket>(2);
+					byObject.put(ref, history);
+				}
+				else if (history.get(history.size() - 1) == packet)
+				{
+					// the same target listed twice
+					continue;
+				}
+				history.add(packet);
+			}
+			if (packet.type == WB_REQUEST_TYPE.OBJECT_CREATION)
+				creations.put(packet.objectReference, packet);
+		}
+	}
+
+	/***
+	 * Replaces the first count processed packets with the given snapshot of them. 
+	 * Packets processed since the snapshot was taken are kept after it.
+	 * @param count how many processed packets the snapshot replaces
+	 * @param snapshot the packets to keep, in the order they should be replayed. 
+	 * 		  Every sequence number must be at or below watermark.
+	 * @param watermark the highest sequence number folded into the snapshot
+	 */
+	public synchronized void compact(int count, List<ShapePacket> snapshot, int watermark)
+	{
+		List<ShapePacket> rest = new ArrayList<ShapePacket>(processedShapes.subList(count, processedShapes.size()));
+		
+		processedShapes = new ArrayList<ShapePacket>(snapshot.size() + rest.size());
+		bySequence = new ArrayList<ShapePacket>(rest.size());
+		snapshotBySequence = new HashMap<Integer, ShapePacket>();
+		byObject = new HashMap<Integer, List<ShapePacket>>();
+		creations = new HashMap<Integer, ShapePacket>();
+		if (compactedThrough == null || watermark > compactedThrough)
+			compactedThrough = watermark;
+		compactedSize = snapshot.size();
+		
+		for (ShapePacket p : snapshot)
+		{
+			append(p);
+		}
+		for (ShapePacket p : rest)
+		{
+			append(p);
+		}
+	}
+
+	/***
+	 * Starts the epoch from a head's snapshot: everything up to the watermark has been 
+	 * folded into the packets that follow in the history, so those are the only ones to 
+	 * wait for, and the next new packet is the one after the watermark. Pending packets 
+	 * at or below the watermark are dropped, since the snapshot accounts for them. Does 
+	 * nothing if the epoch has already been processed that far.
+	 * @param watermark the highest sequence number the head folded into its snapshot
+	 */
+	public synchronized void startCompacted(int watermark)
+	{
+		if (lastSequence != null && lastSequence >= watermark)
+			return;
+		joinedThrough = watermark;
+		joined = new BitSet();
+		compactedThrough = watermark;
+		lastSequence = watermark;
+		
+		// what we've processed is all below the watermark now, so it's part of the snapshot
+		for (ShapePacket p : bySequence)
+		{
+			if (p != null)
+			{
+				snapshotBySequence.put(p.sequence, p);
+				if (p.sequence >= 0)
+					joined.set(p.sequence);
+			}
+		}
+		bySequence = new ArrayList<ShapePacket>();
+		while (!pending.isEmpty() && pending.peek().sequence <= watermark)
+			pending.poll();
+	}
+
+	/***
+	 * 
+	 * @param sequenceNumber
+	 * @return true if the number is part of the snapshot the epoch was started from, 
+	 * 		   and its packet should be processed whenever it arrives
+	 */
+	public synchronized boolean isJoinSnapshot(int sequenceNumber) {
+		return joinedThrough != null && sequenceNumber <= joinedThrough && sequenceNumber >= 0;
+	}
+
+	/***
+	 * 
+	 * @param sequenceNumber
+	 * @return true if the packet with this number has been processed. It may have been
+	 * 		   compacted away since, if its object has been deleted.
+	 */
+	public synchronized boolean isProcessed(int sequenceNumber) {
+		if (isJoinSnapshot(sequenceNumber))
+			return joined.get(sequenceNumber);
+		return isCompacted(sequenceNumber) || findPacket(sequenceNumber) != null;
+	}
+
+	/***
+	 * 
+	 * @return every sequence number up to here has been folded into a snapshot, null if 
+	 * 		   the epoch has never been compacted
+	 */
+	public synchronized Integer getCompactedThrough() {
+		return compactedThrough;
+	}
+
+	/***
+	 * 
+	 * @param sequenceNumber
+	 * @return true if the sequence number was folded away by a compaction. The packet 
+	 * 		   itself may be gone, or rewritten, but it has been processed.
+	 */
+	public synchronized boolean isCompacted(int sequenceNumber) {
+		return compactedThrough != null && sequenceNumber <= compactedThrough;
+	}
+
+	// we don't need to the pending packets, just ones that have already been serviced.
+	public synchronized List<byte[]> findAll( Integer objId )
+	{
+		List<ShapePacket> packets = byObject.get(objId);
+		if (packets == null)
+			return new LinkedList<byte[]>();
+		List<byte[]> history = new ArrayList<byte[]>(packets.size());
+		for (ShapePacket p : packets)
+		{
+			history.add( p.packet );
 		}
 		return history;
 	}
 	
-	// simple linear search
-	public ShapePacket findPacket(Integer sequenceNumber) {
-		for(ShapePacket p : processedShapes) {
-			if(p.sequence.equals(sequenceNumber))
-				return p;
-		}
-		return null;
+	public synchronized ShapePacket findPacket(Integer sequenceNumber) {
+		if (isCompacted(sequenceNumber))
+			return snapshotBySequence.get(sequenceNumber);
+		int slot = sequenceNumber - firstSequence;
+		if (slot < 0 || slot >= bySequence.size())
+			return null;
+		return bySequence.get(slot);
+	}
+
+	/***
+	 * 
+	 * @param objRef
+	 * @return the packet that created the object, or null if it wasn't created in this epoch
+	 */
+	public synchronized ShapePacket findCreation(int objRef) {
+		return creations.get(objRef);
+	}
+
+	/***
+	 * 
+	 * @param packet
+	 * @return true if a packet with the same epoch and sequence number has been processed
+	 */
+	public synchronized boolean contains(ShapePacket packet) {
+		return epoch.equals(packet.epoch) && isProcessed(packet.sequence);
+	}
+
+	/***
+	 * PRE: !isEmpty()
+	 * @return the highest sequence number processed
+	 */
+	public synchronized int getLastSequence() {
+		return lastSequence;
+	}
+
+	/***
+	 * @return true if no packet has been processed in this epoch
+	 */
+	public synchronized boolean isEmpty() {
+		return lastSequence == null;
+	}
+
+	/***
+	 * @return the number of packets held in the history
+	 */
+	public synchronized int size() {
+		return processedShapes.size();
+	}
+
+	/***
+	 * @return the number of packets the last compaction kept, 0 if never compacted
+	 */
+	public synchronized int getCompactedSize() {
+		return compactedSize;
+	}
+
+	/***
+	 * @return a copy of the processed packets, in the order they were processed
+	 */
+	public synchronized List<ShapePacket> getProcessedSnapshot() {
+		return new ArrayList<ShapePacket>(processedShapes);
+	}
+
+	/***
+	 * @param packet a packet that has to wait for an earlier one
+	 */
+	public synchronized void addPending(ShapePacket packet) {
+		pending.add(packet);
+	}
+
+	/***
+	 * @return the lowest pending packet, or null if there are none
+	 */
+	public synchronized ShapePacket peekPending() {
+		return pending.peek();
+	}
+
+	/***
+	 * @return removes and returns the lowest pending packet, or null if there are none
+	 */
+	public synchronized ShapePacket pollPending() {
+		return pending.poll();
+	}
+
+	public synchronized boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/***
+	 * @return a copy of the pending packets, in no particular order
+	 */
+	public synchronized List<ShapePacket> getPendingSnapshot() {
+		return new ArrayList<ShapePacket>(pending);
 	}
 }
@@ -0,0 +1,345 @@
+package whiteboard.core.transaction;
+
+import java.awt.Point;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+import whiteboard.core.entities.ShapeDecoder;
+import whiteboard.core.entities.ShapeEncoder;
+import whiteboard.core.entities.WB_Line;
+import whiteboard.core.entities.WB_Polyline;
+import whiteboard.core.entities.WB_Shape;
+import whiteboard.core.entities.ShapeConstants.GEOM_TRANSFORM_TYPE;
+import whiteboard.core.entities.ShapeConstants.WB_REQUEST_TYPE;
+
+/***
+ *
+ * @author Afton
+ * Builds a history of creations, translations, scales, rotations, appended points,
+ * changes of several shapes at once, attribute changes, deletions and null packets over
+ * two epochs, and checks that replaying it the way the canvas does gives the same board
+ * before and after HistoryCompactor folds it, and again after more is added and it is
+ * folded a second time. Also checks that every epoch keeps its RETAINED_TAIL, that the
+ * fold limits peers report are kept to, and that PROCESSED_THROUGH packets read back as
+ * they were written. Exits with status 1 if anything is wrong.
+ *
+ * Run with: java whiteboard.core.transaction.HistoryCompactionCheck
+ */
+public class HistoryCompactionCheck {
+	/** enough packets per epoch that some are folded past the retained tail */
+	private static final int PACKETS = 3 * HistoryCompactor.RETAINED_TAIL;
+	private static final int EPOCHS = 2;
+
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	/** makes a random, but repeatable, history */
+	private static class Writer {
+		final Random random = new Random(20081018);
+		/** object reference -> (epoch, sequence) of its creation, for the shapes that haven't been deleted */
+		final Map<Integer, int[]> live = new HashMap<Integer, int[]>();
+		final List<Integer> refs = new ArrayList<Integer>();
+		int nextRef = 1000;
+
+		/***
+		 * @return a packet for the slot, chosen to touch shapes old and new
+		 */
+		ShapePacket next(int epoch, int sequence) throws IllegalPacketSizeException {
+			int roll = random.nextInt(100);
+			if (live.size() < 4 || roll < 15)
+				return create(epoch, sequence);
+			int ref = pick();
+			int[] creation = live.get(ref);
+			if (roll < 35)
+				return transform(epoch, sequence, ref, creation, GEOM_TRANSFORM_TYPE.TRANSLATION,
+						random.nextInt(41) - 20, random.nextInt(41) - 20, null);
+			if (roll < 45)
+				return transform(epoch, sequence, ref, creation, GEOM_TRANSFORM_TYPE.ROTATION,
+						random.nextInt(360 * ShapeConstants.TRANSFORM_UNIT), 0, null);
+			if (roll < 50)
+				return transform(epoch, sequence, ref, creation, GEOM_TRANSFORM_TYPE.SCALE,
+						500 + random.nextInt(1000), 500 + random.nextInt(1000), null);
+			if (roll < 65)
+				return append(epoch, sequence, ref, creation);
+			if (roll < 75) {
+				int[] others = new int[1 + random.nextInt(3)];
+				for (int i = 0; i < others.length; ++i) {
+					// now and then, one that has been deleted
+					others[i] = (random.nextInt(20) == 0) ? refs.get(random.nextInt(refs.size())) : pick();
+				}
+				return transform(epoch, sequence, ref, creation, GEOM_TRANSFORM_TYPE.TRANSLATION,
+						random.nextInt(41) - 20, random.nextInt(41) - 20, others);
+			}
+			if (roll < 78)
+				return modify(WB_REQUEST_TYPE.OBJECT_ATTIBUTE_MODIFICATION, epoch, sequence, ref, creation);
+			if (roll < 90) {
+				live.remove(ref);
+				return modify(WB_REQUEST_TYPE.OBJECT_DELETION, epoch, sequence, ref, creation);
+			}
+			return nullPacket(epoch, sequence);
+		}
+
+		int pick() {
+			List<Integer> choices = new ArrayList<Integer>(live.keySet());
+			Collections.sort(choices);
+			// favour the newest shapes, so plenty of them have packets on both sides of the watermark
+			int back = (int) Math.abs(random.nextGaussian() * choices.size() / 3);
+			return choices.get(choices.size() - 1 - Math.min(choices.size() - 1, back));
+		}
+
+		ShapePacket create(int epoch, int sequence) throws IllegalPacketSizeException {
+			int ref = nextRef++;
+			WB_Shape shape;
+			int x = random.nextInt(800), y = random.nextInt(600);
+			if (random.nextBoolean()) {
+				List<Point> points = new ArrayList<Point>();
+				for (int i = 0; i < 2 + random.nextInt(5); ++i) {
+					points.add(new Point(x + random.nextInt(50), y + random.nextInt(50)));
+				}
+				shape = new WB_Polyline(points);
+			} else {
+				shape = new WB_Line(x, y, x + random.nextInt(100), y + random.nextInt(100));
+			}
+			shape.setHashCode(ref);
+			live.put(ref, new int[] { epoch, sequence });
+			refs.add(ref);
+			return packet(WB_REQUEST_TYPE.OBJECT_CREATION, epoch, sequence, epoch, sequence, shape.pack());
+		}
+
+		ShapePacket transform(int epoch, int sequence, int ref, int[] creation, GEOM_TRANSFORM_TYPE transType,
+				int arg1, int arg2, int[] others) throws IllegalPacketSizeException {
+			int size = 3 * ShapeConstants.INTEGER_BYTE_SIZE + 1;
+			if (others != null)
+				size += (1 + others.length) * ShapeConstants.INTEGER_BYTE_SIZE;
+			ByteBuffer contents = ByteBuffer.allocate(size);
+			contents.putInt(ref);
+			contents.put((byte) transType.ordinal());
+			contents.putInt(arg1);
+			contents.putInt(arg2);
+			if (others == null)
+				return packet(WB_REQUEST_TYPE.OBJECT_GEOM_MODIFICATION, epoch, sequence, creation[0], creation[1], contents.array());
+			contents.putInt(others.length);
+			for (int other : others) {
+				contents.putInt(other);
+			}
+			return packet(WB_REQUEST_TYPE.MULTI_GEOM_MODIFICATION, epoch, sequence, creation[0], creation[1], contents.array());
+		}
+
+		ShapePacket append(int epoch, int sequence, int ref, int[] creation) throws IllegalPacketSizeException {
+			List<Point> points = new ArrayList<Point>();
+			for (int i = 0; i < 1 + random.nextInt(4); ++i) {
+				points.add(new Point(random.nextInt(800), random.nextInt(600)));
+			}
+			// appending to a line is ignored, but still has to replay the same
+			return packet(WB_REQUEST_TYPE.OBJECT_GEOM_MODIFICATION, epoch, sequence, creation[0], creation[1],
+					ShapeEncoder.encodeAppendedPoints(ref, points, 0));
+		}
+
+		ShapePacket modify(WB_REQUEST_TYPE type, int epoch, int sequence, int ref, int[] creation) throws IllegalPacketSizeException {
+			byte[] contents = new byte[ShapeConstants.INTEGER_BYTE_SIZE];
+			BytePacker.convertIntToBytes(ref, contents, 0);
+			return packet(type, epoch, sequence, creation[0], creation[1], contents);
+		}
+
+		ShapePacket nullPacket(int epoch, int sequence) throws IllegalPacketSizeException {
+			byte[] contents = new byte[ShapeConstants.INTEGER_BYTE_SIZE];
+			BytePacker.convertIntToBytes(-1, contents, 0);
+			return packet(WB_REQUEST_TYPE.NULL_REQUEST, epoch, sequence, epoch, sequence, contents);
+		}
+	}
+
+	private static ShapePacket packet(WB_REQUEST_TYPE type, int epoch, int sequence, int creationEpoch, int creationSequence,
+			byte[] contents) throws IllegalPacketSizeException {
+		byte[] packet = new byte[ShapeConstants.PACKET_EXP_HEADER_OFFSET + contents.length];
+		packet[0] = (byte) type.ordinal();
+		BytePacker.convertIntToBytes(epoch, packet, ShapeConstants.PACKET_EPOCH_OFFSET);
+		BytePacker.convertIntToBytes(sequence, packet, ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);
+		BytePacker.convertIntToBytes(creationEpoch, packet, ShapeConstants.PACKET_CREATION_EPOCH);
+		BytePacker.convertIntToBytes(creationSequence, packet, ShapeConstants.PACKET_CREATION_SEQUENCE);
+		System.arraycopy(contents, 0, packet, ShapeConstants.PACKET_EXP_HEADER_OFFSET, contents.length);
+		return new ShapePacket(packet);
+	}
+
+	/***
+	 * Replays the processed history of the epochs the way Canvas.applyPacket() does
+	 * @return object reference -> the packed shape, for every shape on the board at the end
+	 */
+	private static Map<Integer, String> replay(List<Epoch> eras) {
+		Map<Integer, WB_Shape> board = new HashMap<Integer, WB_Shape>();
+		for (Epoch era : eras) {
+			for (ShapePacket b : era.getProcessedSnapshot()) {
+				switch (b.type) {
+				case OBJECT_CREATION: {
+					WB_Shape n = BytePacker.createWB_ShapeFromShapePacket(b);
+					if (n != null && !board.containsKey(n.hashCode()))
+						board.put(n.hashCode(), n);
+					break;
+				}
+				case OBJECT_DELETION:
+					board.remove(b.objectReference);
+					break;
+				case OBJECT_GEOM_MODIFICATION:
+				case MULTI_GEOM_MODIFICATION: {
+					int offset = ShapeConstants.PACKET_EXP_HEADER_OFFSET + ShapeConstants.INTEGER_BYTE_SIZE;
+					byte transType = b.packet[offset++];
+					if (GEOM_TRANSFORM_TYPE.APPEND_POINTS.ordinal() == transType) {
+						WB_Shape s = board.get(b.objectReference);
+						if (s instanceof WB_Polyline) {
+							for (Point p : ShapeDecoder.decodeAppendedPoints(b.packet, offset)) {
+								((WB_Polyline) s).appendPoint(p);
+							}
+						}
+						break;
+					}
+					int arg1 = BytePacker.convertBytesToInt(b.packet, offset);
+					int arg2 = BytePacker.convertBytesToInt(b.packet, offset + ShapeConstants.INTEGER_BYTE_SIZE);
+					for (int target : b.getTargets()) {
+						WB_Shape s = board.get(target);
+						if (s != null)
+							s.applyTransform(transType, arg1, arg2);
+					}
+					break;
+				}
+				default:
+					break;
+				}
+			}
+		}
+		Map<Integer, String> packed = new HashMap<Integer, String>();
+		for (Map.Entry<Integer, WB_Shape> e : board.entrySet()) {
+			packed.put(e.getKey(), Arrays.toString(e.getValue().pack()));
+		}
+		return packed;
+	}
+
+	private static int size(List<Epoch> eras) {
+		int size = 0;
+		for (Epoch era : eras) {
+			size += era.size();
+		}
+		return size;
+	}
+
+	/***
+	 * Adds count more packets to each epoch
+	 */
+	private static void write(Writer writer, List<Epoch> eras, int count) throws IllegalPacketSizeException {
+		for (Epoch era : eras) {
+			int first = era.isEmpty() ? 0 : era.getLastSequence() + 1;
+			for (int seq = first; seq < first + count; ++seq) {
+				era.add(writer.next(era.epoch, seq));
+			}
+		}
+	}
+
+	/***
+	 * Folds the history, as a peer alone would, and again after more is added
+	 */
+	private static void checkReplay() throws IllegalPacketSizeException {
+		Writer writer = new Writer();
+		List<Epoch> eras = new ArrayList<Epoch>();
+		for (int i = 0; i < EPOCHS; ++i) {
+			eras.add(new Epoch(i));
+		}
+		write(writer, eras, PACKETS);
+		Map<Integer, String> before = replay(eras);
+		int raw = size(eras);
+
+		HistoryCompactor.compact(eras);
+		check(size(eras) < raw, "compacting shrinks the history (" + raw + " to " + size(eras) + " packets)");
+		check(before.equals(replay(eras)), "the folded history replays to the same board (" + before.size() + " shapes)");
+		boolean tails = true;
+		for (Epoch era : eras) {
+			tails = tails && era.getCompactedThrough() == era.getLastSequence() - HistoryCompactor.RETAINED_TAIL;
+		}
+		check(tails, "every epoch keeps its last " + HistoryCompactor.RETAINED_TAIL + " packets, not just the current one");
+
+		write(writer, eras, PACKETS);
+		before = replay(eras);
+		HistoryCompactor.compact(eras);
+		check(before.equals(replay(eras)), "folding a snapshot again replays to the same board (" + before.size() + " shapes)");
+	}
+
+	/***
+	 * Folds the history with limits, as a peer does when others have reported how far they've got
+	 */
+	private static void checkLimits() throws IllegalPacketSizeException {
+		Writer writer = new Writer();
+		List<Epoch> eras = new ArrayList<Epoch>();
+		for (int i = 0; i < EPOCHS; ++i) {
+			eras.add(new Epoch(i));
+		}
+		write(writer, eras, PACKETS);
+		Map<Integer, String> before = replay(eras);
+
+		// a peer has processed half of epoch 0, and hasn't reported on epoch 1
+		int limit = PACKETS / 2;
+		Map<Integer, Integer> limits = new HashMap<Integer, Integer>();
+		limits.put(0, limit);
+		HistoryCompactor.compact(eras, limits);
+		check(eras.get(0).getCompactedThrough() != null && eras.get(0).getCompactedThrough() == limit,
+				"an epoch is folded no further than every peer has processed");
+		check(eras.get(1).getCompactedThrough() == null, "an epoch a peer hasn't reported on isn't folded");
+		boolean kept = true;
+		for (int seq = limit + 1; seq < PACKETS; ++seq) {
+			kept = kept && eras.get(0).findPacket(seq) != null;
+		}
+		check(kept, "the numbers above the limit can still be sent as they were");
+		check(before.equals(replay(eras)), "the history folded to a limit replays to the same board");
+
+		limits.put(0, limit / 2);
+		HistoryCompactor.compact(eras, limits);
+		check(eras.get(0).getCompactedThrough() == limit, "a lower limit leaves what is already folded as it is");
+		check(before.equals(replay(eras)), "and the history still replays to the same board");
+	}
+
+	/***
+	 * PROCESSED_THROUGH packets, whole and cut short
+	 */
+	private static void checkProcessedPackets() throws IllegalPacketSizeException {
+		List<Epoch> eras = new ArrayList<Epoch>();
+		eras.add(new Epoch(0));
+		eras.add(new Epoch(1));
+		eras.add(new Epoch(2));
+		for (int seq = 0; seq < 10; ++seq) {
+			eras.get(0).add(new Writer().nullPacket(0, seq));
+		}
+		eras.get(2).add(new Writer().nullPacket(2, 0));
+		byte[] report = TransactionManager.createProcessedPacket(eras);
+		Map<Integer, Integer> through = TransactionManager.readProcessedPacket(report);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		expected.put(0, 9);
+		expected.put(2, 0);
+		check(expected.equals(through), "a PROCESSED_THROUGH reads back as written, leaving out an empty epoch");
+
+		boolean refused = true;
+		for (int length = 0; length < report.length; ++length) {
+			byte[] cut = new byte[length];
+			System.arraycopy(report, 0, cut, 0, length);
+			refused = refused && TransactionManager.readProcessedPacket(cut) == null;
+		}
+		check(refused, "a PROCESSED_THROUGH cut short is refused");
+	}
+
+	public static void main(String[] args) throws Exception {
+		checkReplay();
+		checkLimits();
+		checkProcessedPackets();
+
+		System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+}
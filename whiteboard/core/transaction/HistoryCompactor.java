@@ -0,0 +1,376 @@
+package whiteboard.core.transaction;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import whiteboard.core.CloseableThread;
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+import whiteboard.core.entities.ShapeDecoder;
+import whiteboard.core.entities.WB_Polyline;
+import whiteboard.core.entities.WB_Shape;
+import whiteboard.core.entities.ShapeConstants.WB_REQUEST_TYPE;
+
+/***
+ *
+ * @author Afton
+ * Periodically folds the processed history into a snapshot, so the history (and
+ * what a joining peer is sent) grows with what is on the board rather than with
+ * how long the session has run.
+ *
+ * In each epoch, everything up to a watermark is folded: RETAINED_TAIL sequence numbers
+ * behind the last one processed, and no further than every connected peer has said (with
+ * a PROCESSED_THROUGH) it has processed too. What is folded is
+ * one creation packet per live shape,
+ * with its translations, scales, rotations and appended points applied, keeping the creation's 
+ * epoch and sequence number so modifications still find it. Deleted shapes, their modifications, 
+ * and null packets are dropped. Modifications that can't be folded into the creation
+ * (attribute changes) are kept as they were, and a shape that
+ * has one stops having later geometry folded, so the replay order is unchanged.
+ * Packets above the watermark are kept as they are, so recent ones can still be
+ * sent to a peer that missed them. A packet is processed only once every sequence
+ * number before it in its epoch has been, so the folded range has no gaps.
+ *
+ * The snapshot itself does have gaps where packets were folded away. The history sent
+ * to a joiner starts each compacted epoch with a HISTORY_WATERMARK, so the joiner doesn't
+ * wait for them. A peer asking for a folded-away number is sent a NULL_REQUEST, but since
+ * every peer that was connected had already processed it, only one that joined since can
+ * ask, and it has the folded state from its own history transfer.
+ */
+public class HistoryCompactor extends CloseableThread {
+	/** how often to check whether the history is worth compacting */
+	public static final long COMPACTION_INTERVAL_MILLISECONDS = 30000;
+	/** how many of the most recent sequence numbers in the current epoch are never folded */
+	public static final int RETAINED_TAIL = 1024;
+	/** how many packets have to have been added since the last compaction before it's worth doing again */
+	public static final int MIN_NEW_PACKETS = 4096;
+
+	private final TransactionManager man;
+	private volatile boolean isStopped = false;
+
+	public HistoryCompactor(TransactionManager man) {
+		super("HistoryCompactor");
+		this.man = man;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while (!isStopped) {
+			try {
+				sleep(COMPACTION_INTERVAL_MILLISECONDS);
+			} catch (InterruptedException e) {
+				// closed, or asked to compact now
+			}
+			if (isStopped)
+				break;
+			man.reportProcessed();
+			List<Epoch> eras = man.getEpochs();
+			if (getNewPackets(eras) >= MIN_NEW_PACKETS) {
+				compact(eras, man.getFoldLimits());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		isStopped = true;
+		interrupt();
+	}
+
+	/***
+	 * @param eras
+	 * @return how many packets have been added to the history since it was last compacted
+	 */
+	private static int getNewPackets(List<Epoch> eras) {
+		int count = 0;
+		for (Epoch era : eras) {
+			count += era.size() - era.getCompactedSize();
+		}
+		return count;
+	}
+
+	/** what is known about a live shape while folding */
+	private static class Entry {
+		final ShapePacket creation;
+		/** decoded from the creation when the first geometry change is folded in, and changed in place */
+		WB_Shape shape = null;
+		/** false once a packet for this shape has been kept as it is */
+		boolean folding = true;
+		/** false if the shape has packets above a watermark, which the deletion can't take with it */
+		boolean removable = true;
+		/** the kept packets for this shape, creation first */
+		final List<Slot> slots = new ArrayList<Slot>(1);
+
+		Entry(ShapePacket creation) {
+			this.creation = creation;
+		}
+	}
+
+	/** a packet to keep, in replay order */
+	private static class Slot {
+		final ShapePacket packet;
+		final Entry creationOf;
+		boolean dropped = false;
+
+		Slot(ShapePacket packet, Entry creationOf) {
+			this.packet = packet;
+			this.creationOf = creationOf;
+		}
+	}
+
+	/***
+	 * Compacts the history of the given epochs, as if no other peer needed it.
+	 * @param eras the epochs, in ascending order
+	 */
+	public static void compact(List<Epoch> eras) {
+		compact(eras, null);
+	}
+
+	/***
+	 * Compacts the history of the given epochs. Only one compaction may run at a time,
+	 * but packets can be added while it does.
+	 * @param eras the epochs, in ascending order
+	 * @param limits epoch -> the last sequence number that may be folded in it, or null for
+	 * 		  no limit. An epoch that isn't in the map has nothing new folded.
+	 */
+	public static synchronized void compact(List<Epoch> eras, Map<Integer, Integer> limits) {
+		Map<Integer, Entry> live = new HashMap<Integer, Entry>();
+		Set<Integer> deleted = new HashSet<Integer>();
+		List<Slot> slots = new ArrayList<Slot>();
+		int[] counts = new int[eras.size()];
+		int[] watermarks = new int[eras.size()];
+
+		for (int i = 0; i < eras.size(); ++i) {
+			Epoch era = eras.get(i);
+			List<ShapePacket> history = era.getProcessedSnapshot();
+			if (history.isEmpty())
+				continue;
+			int last = Integer.MIN_VALUE;
+			for (ShapePacket p : history) {
+				last = Math.max(last, p.sequence);
+			}
+			// a late packet can still be asked for in any epoch, so every one keeps its tail
+			int watermark = last - RETAINED_TAIL;
+			if (limits != null) {
+				Integer limit = limits.get(era.epoch);
+				watermark = (limit == null) ? Integer.MIN_VALUE : Math.min(watermark, limit);
+			}
+			// what is already in the snapshot stays folded
+			Integer compacted = era.getCompactedThrough();
+			if (compacted != null)
+				watermark = Math.max(watermark, compacted);
+			watermarks[i] = watermark;
+
+			// processed packets are in sequence order after the last snapshot, so the ones to fold are a prefix
+			int count = 0;
+			while (count < history.size() && history.get(count).sequence <= watermarks[i]) {
+				fold(history.get(count++), live, deleted, slots);
+			}
+			counts[i] = count;
+			for (int j = count; j < history.size(); ++j) {
+				pin(history.get(j), live);
+			}
+		}
+
+		// rewrite everything first, so a shape we can't encode leaves the history untouched
+		Map<Integer, List<ShapePacket>> kept = new HashMap<Integer, List<ShapePacket>>();
+		for (Slot slot : slots) {
+			if (slot.dropped)
+				continue;
+			ShapePacket packet = slot.packet;
+			if (slot.creationOf != null && slot.creationOf.shape != null) {
+				packet = rewriteCreation(slot.creationOf);
+				if (packet == null)
+					return;
+			}
+			List<ShapePacket> list = kept.get(packet.epoch);
+			if (list == null) {
+				list = new ArrayList<ShapePacket>();
+				kept.put(packet.epoch, list);
+			}
+			list.add(packet);
+		}
+
+		for (int i = 0; i < eras.size(); ++i) {
+			if (counts[i] == 0)
+				continue;
+			Epoch era = eras.get(i);
+			List<ShapePacket> snapshot = kept.get(era.epoch);
+			if (snapshot == null)
+				snapshot = new ArrayList<ShapePacket>(0);
+			era.compact(counts[i], snapshot, watermarks[i]);
+		}
+	}
+
+	/***
+	 * Folds a packet at or below the watermark into the state of its shape
+	 */
+	private static void fold(ShapePacket p, Map<Integer, Entry> live, Set<Integer> deleted, List<Slot> slots) {
+		Entry e = live.get(p.objectReference);
+		switch (p.type) {
+		case OBJECT_CREATION: {
+			e = new Entry(p);
+			Slot slot = new Slot(p, e);
+			e.slots.add(slot);
+			slots.add(slot);
+			live.put(p.objectReference, e);
+			deleted.remove(p.objectReference);
+			break;
+		}
+		case OBJECT_DELETION:
+			if (e != null && e.removable) {
+				for (Slot slot : e.slots) {
+					slot.dropped = true;
+				}
+				live.remove(p.objectReference);
+				deleted.add(p.objectReference);
+			} else if (!deleted.contains(p.objectReference)) {
+				keep(p, e, slots);
+			}
+			break;
+		case MULTI_GEOM_MODIFICATION:
+			foldMulti(p, live, deleted, slots);
+			break;
+		case OBJECT_GEOM_MODIFICATION:
+			if (e == null || !e.folding || !foldGeometry(p, e))
+				keepModification(p, e, deleted, slots);
+			break;
+		case OBJECT_ATTIBUTE_MODIFICATION:
+		case OBJECT_ATTRIBUTE_DELETION:
+			keepModification(p, e, deleted, slots);
+			break;
+		case NULL_REQUEST:
+		default:
+			// the watermark accounts for it
+			break;
+		}
+	}
+
+	/***
+	 * Keeps a modification that couldn't be folded, unless its shape has been deleted. Its shape
+	 * stops having later geometry folded, so the replay order is unchanged
+	 */
+	private static void keepModification(ShapePacket p, Entry e, Set<Integer> deleted, List<Slot> slots) {
+		if (e != null)
+			e.folding = false;
+		if (!deleted.contains(p.objectReference))
+			keep(p, e, slots);
+	}
+
+	private static void keep(ShapePacket p, Entry e, List<Slot> slots) {
+		Slot slot = new Slot(p, null);
+		slots.add(slot);
+		if (e != null)
+			e.slots.add(slot);
+	}
+
+	/***
+	 * A packet above the watermark is kept as it is, so its shape can't be folded any further
+	 */
+	private static void pin(ShapePacket p, Map<Integer, Entry> live) {
+		if (p.type == WB_REQUEST_TYPE.NULL_REQUEST)
+			return;
+		for (int target : p.getTargets()) {
+			Entry e = live.get(target);
+			if (e != null) {
+				e.folding = false;
+				e.removable = false;
+			}
+		}
+	}
+
+	/***
+	 * Folds a transformation of several shapes into each of them, if they can all take it.
+	 * Otherwise the packet is kept, and its shapes stop being folded and can't be removed,
+	 * since the packet's creation epoch and sequence are its first shape's. It is only
+	 * dropped if every shape it is for has been deleted: a shape created above an earlier
+	 * epoch's watermark isn't live here, but still has to be moved.
+	 */
+	private static void foldMulti(ShapePacket p, Map<Integer, Entry> live, Set<Integer> deleted, List<Slot> slots) {
+		int[] targets = p.getTargets();
+		List<Entry> entries = new ArrayList<Entry>(targets.length);
+		boolean foldable = true;
+		boolean gone = true;
+		for (int target : targets) {
+			Entry e = live.get(target);
+			if (e != null)
+				entries.add(e);
+			gone = gone && deleted.contains(target);
+			foldable = foldable && e != null && e.folding && decode(e);
+		}
+		int offset = ShapeConstants.PACKET_EXP_HEADER_OFFSET + ShapeConstants.INTEGER_BYTE_SIZE;
+		if (foldable && p.packet.length >= offset + 1 + 2 * ShapeConstants.INTEGER_BYTE_SIZE) {
+			byte transType = p.packet[offset];
+			int arg1 = BytePacker.convertBytesToInt(p.packet, offset + 1);
+			int arg2 = BytePacker.convertBytesToInt(p.packet, offset + 1 + ShapeConstants.INTEGER_BYTE_SIZE);
+			// the shapes are all decoded, and a transformation either applies to each of them or to none
+			if (entries.get(0).shape.applyTransform(transType, arg1, arg2)) {
+				for (int i = 1; i < entries.size(); ++i) {
+					entries.get(i).shape.applyTransform(transType, arg1, arg2);
+				}
+				return;
+			}
+		}
+		if (gone)
+			return;
+		for (Entry e : entries) {
+			e.folding = false;
+			e.removable = false;
+		}
+		slots.add(new Slot(p, null));
+	}
+
+	/***
+	 * @return true if the packet was a translation, scale, rotation or appended points, and has been applied to the shape
+	 */
+	private static boolean foldGeometry(ShapePacket p, Entry e) {
+		int offset = ShapeConstants.PACKET_EXP_HEADER_OFFSET + ShapeConstants.INTEGER_BYTE_SIZE;
+		if (p.packet.length < offset + 1)
+			return false;
+		byte transType = p.packet[offset++];
+		if (transType == ShapeConstants.GEOM_TRANSFORM_TYPE.APPEND_POINTS.ordinal()) {
+			if (!decode(e) || !(e.shape instanceof WB_Polyline))
+				return false;
+			for (Point xy : ShapeDecoder.decodeAppendedPoints(p.packet, offset)) {
+				((WB_Polyline) e.shape).appendPoint(xy);
+			}
+			return true;
+		}
+		if (p.packet.length < offset + 2 * ShapeConstants.INTEGER_BYTE_SIZE || !decode(e))
+			return false;
+		return e.shape.applyTransform(transType, BytePacker.convertBytesToInt(p.packet, offset),
+				BytePacker.convertBytesToInt(p.packet, offset + ShapeConstants.INTEGER_BYTE_SIZE));
+	}
+
+	/***
+	 * @return true if the entry's shape has been decoded from its creation
+	 */
+	private static boolean decode(Entry e) {
+		if (e.shape == null)
+			e.shape = BytePacker.createWB_ShapeFromShapePacket(e.creation);
+		return e.shape != null;
+	}
+
+	/***
+	 * @return the creation packet for the shape with its folded geometry, under the
+	 * 		   original header, or null if it couldn't be built
+	 */
+	private static ShapePacket rewriteCreation(Entry e) {
+		byte[] shape = e.shape.pack();
+		byte[] packet = new byte[ShapeConstants.PACKET_EXP_HEADER_OFFSET + shape.length];
+		System.arraycopy(e.creation.packet, 0, packet, 0, ShapeConstants.PACKET_EXP_HEADER_OFFSET);
+		System.arraycopy(shape, 0, packet, ShapeConstants.PACKET_EXP_HEADER_OFFSET, shape.length);
+		try {
+			return new ShapePacket(packet);
+		} catch (IllegalPacketSizeException ex) {
+			System.err.println("HistoryCompactor: couldn't rewrite the creation of " + e.creation.objectReference);
+			return null;
+		}
+	}
+}
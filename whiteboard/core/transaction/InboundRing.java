@@ -0,0 +1,181 @@
+package whiteboard.core.transaction;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ *
+ * @author Afton
+ * A bounded ring buffer with many producers and a single consumer, in the style of
+ * the Disruptor. Producers claim a slot with one compare-and-set on the tail. They
+ * then publish by moving the slot's sequence on, so publishing takes no locks. The
+ * consumer alone moves the head.
+ *
+ * The consumer parks when the ring is empty, and a producer unparks it after a
+ * publish. A producer that finds the ring full backs off and retries until the
+ * consumer has made room.
+ *
+ * Elements should be immutable, or at least not changed once published.
+ */
+public class InboundRing<E> {
+	/** how long a producer waits before trying a full ring again */
+	private static final long FULL_BACKOFF_NANOSECONDS = 50000;
+
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	/** slot i is free for position p when it holds p, and published for position p when it holds p+1 */
+	private final AtomicLongArray sequences;
+	/** the next position a producer will claim */
+	private final AtomicLong tail = new AtomicLong(0);
+	/** the next position the consumer will read. Only the consumer writes it */
+	private volatile long head = 0;
+
+	private volatile Thread consumer = null;
+	private volatile boolean consumerWaiting = false;
+
+	/***
+	 * @param capacity how many elements the ring holds, rounded up to a power of two
+	 */
+	public InboundRing(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		mask = size - 1;
+		slots = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			sequences.set(i, i);
+		}
+	}
+
+	/***
+	 * Adds an element, waiting for room if the ring is full. Safe to call from any thread.
+	 * @param e
+	 */
+	public void publish(E e) {
+		long pos;
+		while (true) {
+			pos = tail.get();
+			long seq = sequences.get((int) pos & mask);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+			} else if (seq < pos) {
+				// full: the consumer hasn't got to this slot's last element yet
+				LockSupport.parkNanos(FULL_BACKOFF_NANOSECONDS);
+			}
+			// otherwise another producer got here first; try again
+		}
+		int slot = (int) pos & mask;
+		slots.set(slot, e);
+		sequences.set(slot, pos + 1);
+
+		if (consumerWaiting) {
+			Thread waiting = consumer;
+			if (waiting != null)
+				LockSupport.unpark(waiting);
+		}
+	}
+
+	/***
+	 * Adds elements in order, claiming room for as many at once as the ring allows, so a
+	 * large batch costs one compare-and-set and one wake-up per claim rather than per element.
+	 * Safe to call from any thread; the batch may be interleaved with other producers' elements
+	 * only where it has to be split.
+	 * @param batch
+	 */
+	public void publishAll(List<E> batch) {
+		int published = 0;
+		// claim at most half the ring at a time, so the consumer can work through one part while we fill the next
+		int most = Math.max(1, (mask + 1) / 2);
+		while (published < batch.size()) {
+			int n = Math.min(most, batch.size() - published);
+			long pos;
+			while (true) {
+				pos = tail.get();
+				// the consumer frees slots in order, so if the last one is free they all are
+				long last = pos + n - 1;
+				long seq = sequences.get((int) last & mask);
+				if (seq == last) {
+					if (tail.compareAndSet(pos, pos + n))
+						break;
+				} else if (seq < last) {
+					LockSupport.parkNanos(FULL_BACKOFF_NANOSECONDS);
+				}
+			}
+			for (int i = 0; i < n; ++i) {
+				int slot = (int) (pos + i) & mask;
+				slots.set(slot, batch.get(published + i));
+				sequences.set(slot, pos + i + 1);
+			}
+			published += n;
+
+			if (consumerWaiting) {
+				Thread waiting = consumer;
+				if (waiting != null)
+					LockSupport.unpark(waiting);
+			}
+		}
+	}
+
+	/***
+	 * Waits until there's at least one element, then moves everything published to the given list,
+	 * in the order it was published. Only one thread may take from the ring.
+	 * @param batch
+	 * @return the number of elements added to batch
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public int takeAll(List<E> batch) throws InterruptedException {
+		consumer = Thread.currentThread();
+		int taken = drainTo(batch);
+		while (taken == 0) {
+			consumerWaiting = true;
+			// a producer may have published before it saw consumerWaiting, so look again before parking
+			taken = drainTo(batch);
+			if (taken == 0) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					consumerWaiting = false;
+					throw new InterruptedException();
+				}
+			}
+			consumerWaiting = false;
+			if (taken == 0)
+				taken = drainTo(batch);
+		}
+		return taken;
+	}
+
+	/***
+	 * Moves everything published to the given list, without waiting. Only one thread may take from the ring.
+	 * @param batch
+	 * @return the number of elements added to batch
+	 */
+	public int drainTo(List<E> batch) {
+		int taken = 0;
+		long pos = head;
+		while (true) {
+			int slot = (int) pos & mask;
+			if (sequences.get(slot) != pos + 1)
+				break;
+			batch.add(slots.get(slot));
+			slots.set(slot, null);
+			// free the slot for the producer that will claim it a lap from now
+			sequences.set(slot, pos + mask + 1);
+			++pos;
+			++taken;
+		}
+		head = pos;
+		return taken;
+	}
+
+	/***
+	 * @return roughly how many elements are waiting to be taken
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+}
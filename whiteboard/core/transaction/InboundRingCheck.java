@@ -0,0 +1,123 @@
+package whiteboard.core.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ *
+ * @author Afton
+ * Checks that an InboundRing gives its consumer what was published, in order: a batch
+ * bigger than the ring, published once the ring has wrapped, and batches and single
+ * elements from several producers at once, each producer's in the order it published
+ * them. Exits with status 1 if anything is wrong.
+ *
+ * Run with: java whiteboard.core.transaction.InboundRingCheck
+ */
+public class InboundRingCheck {
+	private static final int CAPACITY = 16;
+	private static final int PRODUCERS = 4;
+	private static final int PER_PRODUCER = 100000;
+
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	/***
+	 * Takes count elements from the ring, waiting for them as the sequencing thread does
+	 */
+	private static List<Integer> take(InboundRing<Integer> ring, int count) throws InterruptedException {
+		List<Integer> taken = new ArrayList<Integer>(count);
+		while (taken.size() < count) {
+			ring.takeAll(taken);
+		}
+		return taken;
+	}
+
+	/***
+	 * One producer: a few elements to move the ring's start, then a batch several times its size
+	 */
+	private static void checkWrap() throws InterruptedException {
+		final InboundRing<Integer> ring = new InboundRing<Integer>(CAPACITY);
+		for (int i = 0; i < CAPACITY / 2 + 3; ++i) {
+			ring.publish(-1);
+		}
+		List<Integer> start = new ArrayList<Integer>();
+		ring.drainTo(start);
+		check(start.size() == CAPACITY / 2 + 3 && ring.size() == 0, "the elements published one at a time are taken");
+
+		final List<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < 5 * CAPACITY + 7; ++i) {
+			batch.add(i);
+		}
+		Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				ring.publishAll(batch);
+			}
+		};
+		producer.start();
+		List<Integer> taken = take(ring, batch.size());
+		producer.join();
+		check(batch.equals(taken), "a batch of " + batch.size() + " published across the wrap of a ring of " + CAPACITY + " comes out in order");
+	}
+
+	/***
+	 * Several producers at once, publishing batches and single elements
+	 */
+	private static void checkProducers() throws InterruptedException {
+		final InboundRing<Integer> ring = new InboundRing<Integer>(CAPACITY);
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int p = 0; p < PRODUCERS; ++p) {
+			final int producer = p;
+			Thread t = new Thread("producer " + p) {
+				@Override
+				public void run() {
+					int next = 0;
+					while (next < PER_PRODUCER) {
+						int n = Math.min(1 + (next % (2 * CAPACITY)), PER_PRODUCER - next);
+						if (n == 1) {
+							ring.publish(producer * PER_PRODUCER + next++);
+							continue;
+						}
+						List<Integer> batch = new ArrayList<Integer>(n);
+						for (int i = 0; i < n; ++i) {
+							batch.add(producer * PER_PRODUCER + next++);
+						}
+						ring.publishAll(batch);
+					}
+				}
+			};
+			producers.add(t);
+			t.start();
+		}
+		List<Integer> taken = take(ring, PRODUCERS * PER_PRODUCER);
+		for (Thread t : producers) {
+			t.join();
+		}
+
+		int[] expected = new int[PRODUCERS];
+		boolean ordered = true;
+		for (int element : taken) {
+			int producer = element / PER_PRODUCER;
+			ordered = ordered && element % PER_PRODUCER == expected[producer]++;
+		}
+		boolean all = true;
+		for (int p = 0; p < PRODUCERS; ++p) {
+			all = all && expected[p] == PER_PRODUCER;
+		}
+		check(ordered, "each of " + PRODUCERS + " producers' elements come out in the order it published them");
+		check(all && taken.size() == PRODUCERS * PER_PRODUCER, "every element comes out once");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		checkWrap();
+		checkProducers();
+
+		System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+}
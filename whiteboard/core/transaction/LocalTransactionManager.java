@@ -1,5 +1,7 @@
 package whiteboard.core.transaction;
 
+import java.util.List;
+
 import whiteboard.core.Pair;
 import whiteboard.core.entities.*;
 import whiteboard.networking.Peer;
@@ -11,4 +13,18 @@ public interface LocalTransactionManager {
 	public ShapePacket pullShapeFromNetwork();
 
 	public Pair<Peer, WB_Chat> pullFromNetworkChat();
+
+	/***
+	 * Blocks until at least one shape is ready for the canvas.
+	 * @return every shape that is ready, in order
+	 * @throws InterruptedException
+	 */
+	public List<ShapePacket> takeShapesFromNetwork() throws InterruptedException;
+
+	/***
+	 * Blocks until at least one chat message is ready.
+	 * @return every chat message that is ready, in the order received
+	 * @throws InterruptedException
+	 */
+	public List<Pair<Peer, WB_Chat>> takeChatFromNetwork() throws InterruptedException;
 }
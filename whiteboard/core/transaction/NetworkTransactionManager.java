@@ -2,10 +2,12 @@ package whiteboard.core.transaction;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Iterator;
 import java.util.List;
 
 import whiteboard.core.exceptions.UpdateException;
 import whiteboard.networking.Peer;
+import whiteboard.networking.WhiteboardPeer;
 
 /**
  * 
@@ -16,6 +18,12 @@ import whiteboard.networking.Peer;
 public interface NetworkTransactionManager {
 
 	public List<byte[]> getHistory();
+
+	/***
+	 * 
+	 * @return the same packets as getHistory(), without building the whole list first
+	 */
+	public Iterator<byte[]> getHistoryIterator();
 	
 	/***
 	 * 
@@ -26,6 +34,29 @@ public interface NetworkTransactionManager {
 	 */
 	public void pushToLocalShape(byte[] b);
 
+	/***
+	 * 
+	 * @param packets a batch of packets, e.g. a chunk of history, to be handled as if each
+	 * had been passed to pushToLocalShape() in order
+	 */
+	public void pushToLocalShapes(List<byte[]> packets);
+
+	/***
+	 * 
+	 * @param peer the peer who asked
+	 * @param request a SEQUENCE_RANGE_REQUEST. The packets we have in those ranges
+	 * are sent back to the peer alone, as SEQUENCE_BATCHes.
+	 */
+	public void answerSequenceRanges(WhiteboardPeer peer, byte[] request);
+
+	/***
+	 * 
+	 * @param peer the peer who sent it
+	 * @param report a PROCESSED_THROUGH. Nothing that peer hasn't processed is folded 
+	 * out of our history while it is connected.
+	 */
+	public void recordProcessed(WhiteboardPeer peer, byte[] report);
+
 	/**
 	 * @param peer - the peer who sent this chat msg
 	 * @param b - the chat data
@@ -39,6 +70,13 @@ public interface NetworkTransactionManager {
 	 * current packets to send.
 	 */
 	public byte[] pullFromLocal();
+
+	/***
+	 * Blocks until there's at least one packet to send.
+	 * @return every packet that is ready to go out, in order
+	 * @throws InterruptedException
+	 */
+	public List<byte[]> takeFromLocal() throws InterruptedException;
 	
 	public void setElection(boolean election);
 	public void updateSequenceServer() throws UpdateException, UnknownHostException, IOException;
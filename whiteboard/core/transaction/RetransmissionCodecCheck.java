@@ -0,0 +1,144 @@
+package whiteboard.core.transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+
+/***
+ *
+ * @author Afton
+ * Checks that SEQUENCE_RANGE_REQUESTs and SEQUENCE_BATCHes read back as they were
+ * written, that the limits on what a request can ask for hold, and that reading
+ * either one cut short, or with a length that doesn't fit, gives the whole entries
+ * before the break rather than throwing. Exits with status 1 if anything is wrong.
+ *
+ * Run with: java whiteboard.core.transaction.RetransmissionCodecCheck
+ */
+public class RetransmissionCodecCheck {
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	private static boolean sameRanges(List<int[]> expected, List<int[]> ranges) {
+		if (expected.size() != ranges.size())
+			return false;
+		for (int i = 0; i < expected.size(); ++i) {
+			if (!Arrays.equals(expected.get(i), ranges.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean samePackets(List<byte[]> expected, List<byte[]> packets) {
+		if (expected.size() != packets.size())
+			return false;
+		for (int i = 0; i < expected.size(); ++i) {
+			if (!Arrays.equals(expected.get(i), packets.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] cut(byte[] packet, int length) {
+		byte[] cut = new byte[length];
+		System.arraycopy(packet, 0, cut, 0, length);
+		return cut;
+	}
+
+	private static void checkRangeRequests() {
+		List<int[]> ranges = new ArrayList<int[]>();
+		ranges.add(new int[] { 0, 1 });
+		ranges.add(new int[] { 17, 40 });
+		ranges.add(new int[] { Integer.MAX_VALUE - 5, 5 });
+		byte[] request = RetransmissionScheduler.createRangeRequest(3, ranges);
+		check(request[0] == (byte) ShapeConstants.WB_REQUEST_TYPE.SEQUENCE_RANGE_REQUEST.ordinal()
+				&& BytePacker.convertBytesToInt(request, ShapeConstants.PACKET_EPOCH_OFFSET) == 3,
+				"a range request gives its type and epoch");
+		check(sameRanges(ranges, RetransmissionScheduler.readRangeRequest(request)), "a range request reads back as written");
+
+		boolean whole = true;
+		for (int length = 0; length < request.length; ++length) {
+			int fit = Math.max(0, (length - ShapeConstants.PACKET_RANGE_LIST) / (2 * ShapeConstants.INTEGER_BYTE_SIZE));
+			whole = whole && sameRanges(ranges.subList(0, fit), RetransmissionScheduler.readRangeRequest(cut(request, length)));
+		}
+		check(whole, "a range request cut short gives the ranges that are whole");
+
+		List<int[]> many = new ArrayList<int[]>();
+		for (int i = 0; i < RetransmissionScheduler.MAX_RANGES + 10; ++i) {
+			many.add(new int[] { i * 10000, (i == 0) ? 10 * RetransmissionScheduler.MAX_RANGE : 1 });
+		}
+		List<int[]> read = RetransmissionScheduler.readRangeRequest(RetransmissionScheduler.createRangeRequest(0, many));
+		check(read.size() == RetransmissionScheduler.MAX_RANGES, "no more than " + RetransmissionScheduler.MAX_RANGES + " ranges are read");
+		check(read.get(0)[1] == RetransmissionScheduler.MAX_RANGE, "no range is longer than " + RetransmissionScheduler.MAX_RANGE);
+
+		List<int[]> empty = new ArrayList<int[]>();
+		empty.add(new int[] { 5, 0 });
+		empty.add(new int[] { 6, -3 });
+		check(RetransmissionScheduler.readRangeRequest(RetransmissionScheduler.createRangeRequest(0, empty)).isEmpty(),
+				"empty and negative ranges are left out");
+	}
+
+	private static void checkBatches() {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; ++i) {
+			byte[] packet = new byte[(i * 997) % 5000];
+			Arrays.fill(packet, (byte) i);
+			packets.add(packet);
+		}
+		// one too big for a batch, which has to go in one of its own
+		packets.add(new byte[RetransmissionScheduler.MAX_BATCH_BYTES + 1]);
+		for (int i = 0; i < 100; ++i) {
+			packets.add(new byte[] { (byte) i });
+		}
+
+		List<byte[]> batches = RetransmissionScheduler.createBatches(packets);
+		List<byte[]> read = new ArrayList<byte[]>();
+		boolean bounded = true;
+		for (byte[] batch : batches) {
+			List<byte[]> inBatch = RetransmissionScheduler.readBatch(batch);
+			bounded = bounded && (batch.length <= RetransmissionScheduler.MAX_BATCH_BYTES || inBatch.size() == 1);
+			read.addAll(inBatch);
+		}
+		check(batches.size() > 1, packets.size() + " packets take " + batches.size() + " batches");
+		check(bounded, "every batch is at most " + RetransmissionScheduler.MAX_BATCH_BYTES + " bytes, unless it holds one packet");
+		check(samePackets(packets, read), "the batches read back as the packets, in order");
+		check(RetransmissionScheduler.createBatches(new ArrayList<byte[]>()).isEmpty(), "no packets take no batches");
+
+		List<byte[]> small = packets.subList(0, 20);
+		byte[] batch = RetransmissionScheduler.createBatches(small).get(0);
+		boolean whole = true;
+		int fit = 0;
+		int end = ShapeConstants.PACKET_BATCH;
+		for (int length = 0; length < batch.length; ++length) {
+			while (fit < small.size() && end + ShapeConstants.INTEGER_BYTE_SIZE + small.get(fit).length <= length) {
+				end += ShapeConstants.INTEGER_BYTE_SIZE + small.get(fit++).length;
+			}
+			whole = whole && samePackets(small.subList(0, fit), RetransmissionScheduler.readBatch(cut(batch, length)));
+		}
+		check(whole, "a batch cut short gives the packets that are whole");
+
+		boolean refused = true;
+		int[] lengths = { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE - ShapeConstants.PACKET_BATCH };
+		for (int length : lengths) {
+			byte[] bad = batch.clone();
+			BytePacker.convertIntToBytes(length, bad, ShapeConstants.PACKET_BATCH);
+			refused = refused && RetransmissionScheduler.readBatch(bad).isEmpty();
+		}
+		check(refused, "a packet length that doesn't fit in the batch ends it");
+	}
+
+	public static void main(String[] args) {
+		checkRangeRequests();
+		checkBatches();
+
+		System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+}
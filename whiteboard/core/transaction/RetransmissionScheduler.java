@@ -0,0 +1,342 @@
+package whiteboard.core.transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+import whiteboard.networking.WhiteboardPeer;
+
+/***
+ *
+ * @author Afton
+ * Looks for missing sequence numbers on a single scheduler thread, however many
+ * are missing. A missing number is first asked for after about timeout_milliseconds,
+ * to give a packet that is just late the chance to arrive. After that the wait
+ * doubles with each request, and once MAX_ATTEMPTS requests have gone unanswered
+ * the number is declared dead.
+ *
+ * Every time the scheduler runs, the numbers that are due are gathered into
+ * contiguous ranges. Each epoch's ranges go out together as one SEQUENCE_RANGE_REQUEST
+ * to one peer, with the peers taken in turn from a shuffled list. That peer sends
+ * back what it has as SEQUENCE_BATCHes, to us alone.
+ */
+public class RetransmissionScheduler {
+	/** the most sequence numbers a single range asks for */
+	public static final int MAX_RANGE = 1024;
+	/** the most ranges a single request carries */
+	public static final int MAX_RANGES = 64;
+	/** roughly the most bytes of packets a single batch reply carries */
+	public static final int MAX_BATCH_BYTES = 256 * 1024;
+	/** how long to wait after the first request before asking again; doubles with every request */
+	public static final long RETRY_BASE_MILLISECONDS = 500;
+	/** how many requests to make before a number is declared dead */
+	public static final int MAX_ATTEMPTS = 5;
+
+	private final TransactionManager man;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RetransmissionScheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** epoch -> missing sequence number -> how the search for it is going */
+	private final Map<Integer, TreeMap<Integer, Attempt>> missing = new HashMap<Integer, TreeMap<Integer, Attempt>>();
+
+	/** the next scheduled run, and when it is due */
+	private ScheduledFuture<?> tick = null;
+	private long tickTime = Long.MAX_VALUE;
+
+	private final Runnable runTick = new Runnable() {
+		public void run() {
+			tick();
+		}
+	};
+
+	private static class Attempt {
+		/** how many times it has been asked for */
+		int tries = 0;
+		/** when to next ask for it, in milliseconds */
+		long due;
+
+		Attempt(long due) {
+			this.due = due;
+		}
+	}
+
+	public RetransmissionScheduler(TransactionManager man) {
+		this.man = man;
+	}
+
+	/***
+	 * Starts looking for the given sequence numbers. Numbers we're already looking for are left alone.
+	 * @param epoch
+	 * @param sequences the missing numbers, in ascending order
+	 */
+	public synchronized void seek(int epoch, List<Integer> sequences) {
+		if (sequences.isEmpty())
+			return;
+		TreeMap<Integer, Attempt> gaps = missing.get(epoch);
+		if (gaps == null) {
+			gaps = new TreeMap<Integer, Attempt>();
+			missing.put(epoch, gaps);
+		}
+		// one delay for the lot, so they go out together as a range
+		long due = System.currentTimeMillis() + TransactionManager.timeout_milliseconds
+			+ (int) ((2 * Math.random() - 1) * TransactionManager.timeout_range);
+		for (Integer seq : sequences) {
+			if (!gaps.containsKey(seq))
+				gaps.put(seq, new Attempt(due));
+		}
+		schedule(due);
+	}
+
+	/***
+	 * Stops looking for a sequence number, because it has turned up.
+	 * @param epoch
+	 * @param sequence
+	 */
+	public synchronized void found(int epoch, int sequence) {
+		TreeMap<Integer, Attempt> gaps = missing.get(epoch);
+		if (gaps != null && gaps.remove(sequence) != null && gaps.isEmpty())
+			missing.remove(epoch);
+	}
+
+	/***
+	 * Stops looking for every sequence number up to and including the given one, because
+	 * a history snapshot accounts for them.
+	 * @param epoch
+	 * @param sequence
+	 */
+	public synchronized void foundThrough(int epoch, int sequence) {
+		TreeMap<Integer, Attempt> gaps = missing.get(epoch);
+		if (gaps == null)
+			return;
+		if (sequence == Integer.MAX_VALUE)
+			gaps.clear();
+		else
+			gaps.headMap(sequence + 1).clear();
+		if (gaps.isEmpty())
+			missing.remove(epoch);
+	}
+
+	/***
+	 * @return how many sequence numbers are being looked for
+	 */
+	public synchronized int getMissingCount() {
+		int count = 0;
+		for (TreeMap<Integer, Attempt> gaps : missing.values()) {
+			count += gaps.size();
+		}
+		return count;
+	}
+
+	public synchronized void close() {
+		executor.shutdownNow();
+	}
+
+	private void schedule(long due) {
+		if (due >= tickTime || executor.isShutdown())
+			return;
+		if (tick != null)
+			tick.cancel(false);
+		tickTime = due;
+		tick = executor.schedule(runTick, Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private void tick() {
+		// a SEQUENCE_RANGE_REQUEST for each epoch, and (epoch, sequence) for each dead number
+		List<byte[]> requests = new ArrayList<byte[]>();
+		List<int[]> dead = new ArrayList<int[]>();
+
+		synchronized (this) {
+			tick = null;
+			tickTime = Long.MAX_VALUE;
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+
+			for (Iterator<Map.Entry<Integer, TreeMap<Integer, Attempt>>> eras = missing.entrySet().iterator(); eras.hasNext();) {
+				Map.Entry<Integer, TreeMap<Integer, Attempt>> era = eras.next();
+				int epoch = era.getKey();
+				List<int[]> ranges = new ArrayList<int[]>();
+				int[] range = null;
+				for (Iterator<Map.Entry<Integer, Attempt>> it = era.getValue().entrySet().iterator(); it.hasNext();) {
+					Map.Entry<Integer, Attempt> gap = it.next();
+					int seq = gap.getKey();
+					Attempt attempt = gap.getValue();
+					if (attempt.due > now) {
+						next = Math.min(next, attempt.due);
+						continue;
+					}
+					if (attempt.tries >= MAX_ATTEMPTS) {
+						dead.add(new int[] { epoch, seq });
+						it.remove();
+						continue;
+					}
+					++attempt.tries;
+					attempt.due = now + getBackoff(attempt.tries);
+					next = Math.min(next, attempt.due);
+
+					if (range != null && seq == range[0] + range[1] && range[1] < MAX_RANGE) {
+						++range[1];
+					} else {
+						if (ranges.size() == MAX_RANGES) {
+							requests.add(createRangeRequest(epoch, ranges));
+							ranges.clear();
+						}
+						range = new int[] { seq, 1 };
+						ranges.add(range);
+					}
+				}
+				if (!ranges.isEmpty())
+					requests.add(createRangeRequest(epoch, ranges));
+				if (era.getValue().isEmpty())
+					eras.remove();
+			}
+			if (next != Long.MAX_VALUE)
+				schedule(next);
+		}
+
+		sendRequests(requests);
+		if (!dead.isEmpty())
+			man.declareDeadPackets(dead);
+	}
+
+	/***
+	 * @param tries how many requests have been made
+	 * @return how long to wait before the next one, give or take a quarter so peers don't all ask at once
+	 */
+	private static long getBackoff(int tries) {
+		long delay = RETRY_BASE_MILLISECONDS << Math.min(tries - 1, 16);
+		return (long) (delay * (0.75 + Math.random() / 2));
+	}
+
+	private void sendRequests(List<byte[]> requests) {
+		if (requests.isEmpty())
+			return;
+		List<WhiteboardPeer> peers = man.getRetransmissionPeers();
+		if (peers.isEmpty())
+			return;
+		int next = 0;
+		for (byte[] packet : requests) {
+			// if a peer can't be reached, try the next one
+			for (int i = 0; i < peers.size(); ++i) {
+				WhiteboardPeer peer = peers.get(next++ % peers.size());
+				try {
+					peer.sendFrame(packet);
+					break;
+				} catch (IOException e) {
+					// swallow. move on to the next peer
+				}
+			}
+		}
+	}
+
+	/***
+	 * @param epoch
+	 * @param ranges (first sequence, count) pairs
+	 * @return a SEQUENCE_RANGE_REQUEST for the ranges
+	 */
+	public static byte[] createRangeRequest(int epoch, List<int[]> ranges) {
+		byte[] packet = new byte[ShapeConstants.PACKET_RANGE_LIST + 2 * ShapeConstants.INTEGER_BYTE_SIZE * ranges.size()];
+		packet[0] = (byte) ShapeConstants.WB_REQUEST_TYPE.SEQUENCE_RANGE_REQUEST.ordinal();
+		BytePacker.convertIntToBytes(epoch, packet, ShapeConstants.PACKET_EPOCH_OFFSET);
+		BytePacker.convertIntToBytes(ranges.size(), packet, ShapeConstants.PACKET_RANGE_LIST_SIZE);
+		int offset = ShapeConstants.PACKET_RANGE_LIST;
+		for (int[] range : ranges) {
+			BytePacker.convertIntToBytes(range[0], packet, offset);
+			BytePacker.convertIntToBytes(range[1], packet, offset + ShapeConstants.INTEGER_BYTE_SIZE);
+			offset += 2 * ShapeConstants.INTEGER_BYTE_SIZE;
+		}
+		return packet;
+	}
+
+	/***
+	 * @param request a SEQUENCE_RANGE_REQUEST
+	 * @return its (first sequence, count) pairs. Anything past MAX_RANGES ranges or
+	 * 		   MAX_RANGE numbers in a range is ignored, as is a truncated request.
+	 */
+	public static List<int[]> readRangeRequest(byte[] request) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		if (request.length < ShapeConstants.PACKET_RANGE_LIST)
+			return ranges;
+		int size = BytePacker.convertBytesToInt(request, ShapeConstants.PACKET_RANGE_LIST_SIZE);
+		int offset = ShapeConstants.PACKET_RANGE_LIST;
+		for (int i = 0; i < Math.min(size, MAX_RANGES) && offset + 2 * ShapeConstants.INTEGER_BYTE_SIZE <= request.length; ++i) {
+			int first = BytePacker.convertBytesToInt(request, offset);
+			int count = BytePacker.convertBytesToInt(request, offset + ShapeConstants.INTEGER_BYTE_SIZE);
+			if (count > 0)
+				ranges.add(new int[] { first, Math.min(count, MAX_RANGE) });
+			offset += 2 * ShapeConstants.INTEGER_BYTE_SIZE;
+		}
+		return ranges;
+	}
+
+	/***
+	 * @param packets
+	 * @return the packets packed into as many SEQUENCE_BATCHes as it takes to keep each
+	 * 		   around MAX_BATCH_BYTES
+	 */
+	public static List<byte[]> createBatches(List<byte[]> packets) {
+		List<byte[]> batches = new ArrayList<byte[]>();
+		int start = 0;
+		while (start < packets.size()) {
+			int end = start;
+			int size = ShapeConstants.PACKET_BATCH;
+			do {
+				size += ShapeConstants.INTEGER_BYTE_SIZE + packets.get(end++).length;
+			} while (end < packets.size() && size + ShapeConstants.INTEGER_BYTE_SIZE + packets.get(end).length <= MAX_BATCH_BYTES);
+
+			byte[] batch = new byte[size];
+			batch[0] = (byte) ShapeConstants.WB_REQUEST_TYPE.SEQUENCE_BATCH.ordinal();
+			BytePacker.convertIntToBytes(end - start, batch, ShapeConstants.PACKET_BATCH_SIZE);
+			int offset = ShapeConstants.PACKET_BATCH;
+			for (int i = start; i < end; ++i) {
+				byte[] packet = packets.get(i);
+				BytePacker.convertIntToBytes(packet.length, batch, offset);
+				offset += ShapeConstants.INTEGER_BYTE_SIZE;
+				System.arraycopy(packet, 0, batch, offset, packet.length);
+				offset += packet.length;
+			}
+			batches.add(batch);
+			start = end;
+		}
+		return batches;
+	}
+
+	/***
+	 * @param batch a SEQUENCE_BATCH
+	 * @return the packets in it, in order. A truncated batch gives as many as are whole.
+	 */
+	public static List<byte[]> readBatch(byte[] batch) {
+		List<byte[]> packets = new ArrayList<byte[]>();
+		if (batch.length < ShapeConstants.PACKET_BATCH)
+			return packets;
+		int count = BytePacker.convertBytesToInt(batch, ShapeConstants.PACKET_BATCH_SIZE);
+		int offset = ShapeConstants.PACKET_BATCH;
+		for (int i = 0; i < count && offset + ShapeConstants.INTEGER_BYTE_SIZE <= batch.length; ++i) {
+			int length = BytePacker.convertBytesToInt(batch, offset);
+			offset += ShapeConstants.INTEGER_BYTE_SIZE;
+			// compared this way round, a huge length can't overflow past the check
+			if (length < 0 || length > batch.length - offset)
+				break;
+			byte[] packet = new byte[length];
+			System.arraycopy(batch, offset, packet, 0, length);
+			packets.add(packet);
+			offset += length;
+		}
+		return packets;
+	}
+}
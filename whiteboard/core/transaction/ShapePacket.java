@@ -20,10 +20,17 @@ public class ShapePacket implements Comparable<ShapePacket>{
 	public final int objectReference;
 	public final Integer creationEpoch;
 	public final Integer creationSequence;
-	public boolean userCreated = false;
+	/** true for packets we made ourselves, which are already on our canvas */
+	public final boolean userCreated;
 	
 	public ShapePacket(byte[] packet) throws IllegalPacketSizeException
 	{
+		this(packet, false);
+	}
+	
+	public ShapePacket(byte[] packet, boolean userCreated) throws IllegalPacketSizeException
+	{
+		this.userCreated = userCreated;
 		if (packet.length < ShapeConstants.PACKET_BASE_HEADER_OFFSET) {
 			throw new IllegalPacketSizeException();
 		}
@@ -34,7 +41,7 @@ public class ShapePacket implements Comparable<ShapePacket>{
 		this.packet = packet;
 		this.hash = (((long) epoch) << 32) + sequence;
 		
-		if (type == WB_REQUEST_TYPE.EPOCH_SEQUENCE_REQUEST)
+		if (type == WB_REQUEST_TYPE.EPOCH_SEQUENCE_REQUEST || type == WB_REQUEST_TYPE.HISTORY_WATERMARK)
 			objectReference = -1;
 		else
 			objectReference = BytePacker.convertBytesToInt(packet, ShapeConstants.PACKET_EXP_HEADER_OFFSET);
@@ -43,6 +50,7 @@ public class ShapePacket implements Comparable<ShapePacket>{
 		{
 			case OBJECT_CREATION :
 			case EPOCH_SEQUENCE_REQUEST : 
+			case HISTORY_WATERMARK :
 			{
 				this.creationEpoch = this.epoch;
 				this.creationSequence = this.sequence;
@@ -70,6 +78,7 @@ public class ShapePacket implements Comparable<ShapePacket>{
 	 */
 	public ShapePacket(byte[] packet, ShapeConstants.WB_REQUEST_TYPE type, int epoch, int sequence)
 	{
+		this.userCreated = false;
 		this.type = type;
 		this.epoch = new Integer(epoch); 
 		this.sequence = new Integer(sequence);
@@ -80,6 +89,27 @@ public class ShapePacket implements Comparable<ShapePacket>{
 		this.creationSequence = null;
 	}
 	
+	/***
+	 * @return the objects the packet is for: all of them for a MULTI_GEOM_MODIFICATION, 
+	 * 		   otherwise just the object reference. The references that don't fit in the packet are left out.
+	 */
+	public int[] getTargets()
+	{
+		if (type != WB_REQUEST_TYPE.MULTI_GEOM_MODIFICATION)
+			return new int[] { objectReference };
+		if (packet.length < ShapeConstants.PACKET_MULTI_TARGETS)
+			return new int[] { objectReference };
+		int others = BytePacker.convertBytesToInt(packet, ShapeConstants.PACKET_MULTI_TARGET_COUNT);
+		int fit = (packet.length - ShapeConstants.PACKET_MULTI_TARGETS) / ShapeConstants.INTEGER_BYTE_SIZE;
+		others = Math.max(0, Math.min(others, fit));
+		int[] targets = new int[1 + others];
+		targets[0] = objectReference;
+		for (int i = 0; i < others; ++i)
+		{
+			targets[i+1] = BytePacker.convertBytesToInt(packet, ShapeConstants.PACKET_MULTI_TARGETS + i*ShapeConstants.INTEGER_BYTE_SIZE);
+		}
+		return targets;
+	}
 
 	
 	@Override
@@ -5,13 +5,16 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.PriorityBlockingQueue;
 
 import whiteboard.core.Pair;
@@ -27,6 +30,7 @@ import whiteboard.networking.WhiteboardPeer;
 import whiteboard.networking.eris.ErisClient;
 import whiteboard.networking.eris.ErisProtocol;
 import whiteboard.networking.eris.ErisServer;
+import whiteboard.networking.eris.SequenceLease;
 import whiteboard.networking.eris.SequenceServer;
 import whiteboard.networking.venus.VenusProtocol;
 
@@ -43,19 +47,32 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 	static final public Integer timeout_milliseconds = new Integer(3000);
 	static final public Integer timeout_range = new Integer(2000);
 	static final public Integer startSequence = 0;
+	/** how many incoming packets can wait for the sequencing thread before producers have to wait */
+	static final public int INBOUND_CAPACITY = 8192;
 
-	private SequenceServer sequenceServer;
+	private volatile SequenceServer sequenceServer;
 	private Canvas canvas;
 	private VenusProtocol venusProtocol;
 	
 	private BlockingQueue<byte[]> forNetwork = new LinkedBlockingQueue<byte[]>();
 	private BlockingQueue<ShapePacket> forLocalShape = new PriorityBlockingQueue<ShapePacket>();
-	private Queue<Pair<Peer, WB_Chat>> forLocalChat = new LinkedList<Pair<Peer, WB_Chat>>();
+	private BlockingQueue<Pair<Peer, WB_Chat>> forLocalChat = new LinkedBlockingQueue<Pair<Peer, WB_Chat>>();
 	
 	private SequenceTracker sequenceTracker = new SequenceTracker();
+	/** every packet for the sequence tracker goes through here, to the sequencing thread */
+	private InboundRing<ShapePacket> inbound = new InboundRing<ShapePacket>(INBOUND_CAPACITY);
+	private SequencingThread sequencer = new SequencingThread("sequencer");
+	/** object reference -> (epoch, sequence) of shapes we've created that the sequencer hasn't got to yet */
+	private Map<Integer, Pair<Integer, Integer>> localCreations = new ConcurrentHashMap<Integer, Pair<Integer, Integer>>();
 	private volatile NetworkBuffer netBufferSender = new NetworkBuffer("bufferMonitor");
+	private HistoryCompactor compactor = new HistoryCompactor(this);
+	private RetransmissionScheduler retransmissions = new RetransmissionScheduler(this);
+	/** peer name -> (epoch -> the last sequence number that peer has processed), from its latest PROCESSED_THROUGH */
+	private Map<String, Map<Integer, Integer>> processedReports = new ConcurrentHashMap<String, Map<Integer, Integer>>();
 	
-	private boolean electionInProgress = false;
+	private volatile boolean electionInProgress = false;
+	/** the network buffer waits on this while an election is running */
+	private final Object electionMonitor = new Object();
 	
 	public TransactionManager(WhiteboardPeer head, Canvas canvas, VenusProtocol venusProtocol) throws UnknownHostException, IOException
 	{
@@ -67,7 +84,9 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		sequenceServer.start();
 		this.canvas = canvas;
 		this.venusProtocol = venusProtocol;
+		this.sequencer.start();
 		this.netBufferSender.start();
+		this.compactor.start();
 	}
 
 	public void stopThreads() {
@@ -77,6 +96,9 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		if(sequenceServer != null) {
 			sequenceServer.close();
 		}
+		compactor.close();
+		retransmissions.close();
+		sequencer.stop_processing();
 	}
 
 	public void updateSequenceServer() throws UpdateException, UnknownHostException, IOException {
@@ -88,6 +110,8 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			throw new UpdateException("No Election in progress");
 		}
 
+		// numbers leased from the old head will never be used
+		declareDeadSequenceNums(sequenceServer.releaseSequenceNums());
 		sequenceServer.close();
 		if(canvas.getWindow().getConfig().getUserPeer().equals(head)) {
 			sequenceServer = new ErisServer(getNextEpochNum());
@@ -100,14 +124,47 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 	public void pushToLocalShape(byte[] b)
 	{
 		try {
-			ShapePacket packet = new ShapePacket(b);
-			sequenceTracker.addPacket(packet);
+			inbound.publish(new ShapePacket(b));
 		} catch (IllegalPacketSizeException e) {
 			// nothing to do but drop it and log it. 
 			System.err.println("TRANSMAN: Recieved a garbled packet. contents: " + b.toString());
 		}
 	}
 
+	public void pushToLocalShapes(List<byte[]> packets)
+	{
+		List<ShapePacket> batch = new ArrayList<ShapePacket>(packets.size());
+		for (byte[] b : packets) {
+			try {
+				batch.add(new ShapePacket(b));
+			} catch (IllegalPacketSizeException e) {
+				// nothing to do but drop it and log it. 
+				System.err.println("TRANSMAN: Recieved a garbled packet. contents: " + b.toString());
+			}
+		}
+		inbound.publishAll(batch);
+	}
+
+	public void answerSequenceRanges(WhiteboardPeer peer, byte[] request) {
+		if (request.length < ShapeConstants.PACKET_RANGE_LIST)
+			return;
+		int epoch = BytePacker.convertBytesToInt(request, ShapeConstants.PACKET_EPOCH_OFFSET);
+		List<byte[]> found = sequenceTracker.findPackets(epoch, RetransmissionScheduler.readRangeRequest(request));
+		try {
+			for (byte[] batch : RetransmissionScheduler.createBatches(found)) {
+				peer.sendFrame(batch);
+			}
+		} catch (IOException e) {
+			// they'll ask someone else
+		}
+	}
+
+	public void recordProcessed(WhiteboardPeer peer, byte[] report) {
+		Map<Integer, Integer> through = readProcessedPacket(report);
+		if (through != null)
+			processedReports.put(peer.getName(), through);
+	}
+
 	public void pushToLocalChat(Peer peer, byte[] b) {
 		WB_Chat c = new WB_Chat(b);
 		Pair<Peer, WB_Chat> pair = new Pair<Peer, WB_Chat>(peer, c);
@@ -119,10 +176,24 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 	public Pair<Peer, WB_Chat> pullFromNetworkChat() {
 		return forLocalChat.poll();
 	}
+
+	public List<Pair<Peer, WB_Chat>> takeChatFromNetwork() throws InterruptedException {
+		List<Pair<Peer, WB_Chat>> batch = new ArrayList<Pair<Peer, WB_Chat>>();
+		batch.add(forLocalChat.take());
+		forLocalChat.drainTo(batch);
+		return batch;
+	}
 	
 	public byte[] pullFromLocal() {
 		return forNetwork.poll();
 	}			
+
+	public List<byte[]> takeFromLocal() throws InterruptedException {
+		List<byte[]> batch = new ArrayList<byte[]>();
+		batch.add(forNetwork.take());
+		forNetwork.drainTo(batch);
+		return batch;
+	}
 	
 	/***
 	 * This pushes the data into a queue, where it is sent at the transaction manager's descretion
@@ -139,6 +210,78 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		return sequenceTracker.getHistoryToCurrent();
 	}
 
+	public Iterator<byte[]> getHistoryIterator() {
+		return sequenceTracker.getHistoryIterator();
+	}
+
+	/***
+	 * @return the epochs, in ascending order
+	 */
+	List<Epoch> getEpochs() {
+		return sequenceTracker.getEpochs();
+	}
+
+	/***
+	 * @param dead (epoch, sequence) pairs that nobody could send us
+	 */
+	void declareDeadPackets(List<int[]> dead) {
+		for (int[] number : dead) {
+			inbound.publish(new ShapePacket(new byte[0], WB_REQUEST_TYPE.NULL_REQUEST, number[0], number[1]));
+		}
+	}
+
+	/***
+	 * @return the connected peers to ask for missing packets, not including us, in random order
+	 */
+	List<WhiteboardPeer> getRetransmissionPeers() {
+		WhiteboardPeer me = canvas.getWindow().getConfig().getUserPeer();
+		List<WhiteboardPeer> peers = new ArrayList<WhiteboardPeer>();
+		for (WhiteboardPeer peer : venusProtocol.getPeers())
+		{
+			if (peer.isConnected() && !peer.equals(me))
+				peers.add(peer);
+		}
+		Collections.shuffle(peers);
+		return peers;
+	}
+
+	/***
+	 * Tells every peer how far through each epoch we have processed
+	 */
+	void reportProcessed() {
+		forNetwork.offer(createProcessedPacket(getEpochs()));
+	}
+
+	/***
+	 * @return epoch -> the last sequence number every connected peer has reported processing
+	 * 		   in it, or null if there are no other peers. An epoch some connected peer hasn't
+	 * 		   reported on is left out, as are all of them if a peer hasn't reported at all.
+	 */
+	Map<Integer, Integer> getFoldLimits() {
+		Map<Integer, Integer> limits = null;
+		for (WhiteboardPeer peer : getRetransmissionPeers())
+		{
+			Map<Integer, Integer> through = processedReports.get(peer.getName());
+			if (through == null)
+				return new HashMap<Integer, Integer>();
+			if (limits == null)
+			{
+				limits = new HashMap<Integer, Integer>(through);
+				continue;
+			}
+			for (Iterator<Map.Entry<Integer, Integer>> it = limits.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry<Integer, Integer> limit = it.next();
+				Integer theirs = through.get(limit.getKey());
+				if (theirs == null)
+					it.remove();
+				else if (theirs < limit.getValue())
+					limit.setValue(theirs);
+			}
+		}
+		return limits;
+	}
+
 	public int getNextEpochNum() {
 		return sequenceTracker.epochs.size();
 	}
@@ -147,37 +290,136 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		this.sequenceServer = sServer;
 	}
 
-	protected boolean sendShapeToAll(Pair<byte[],WB_REQUEST_TYPE> shapePair) throws IllegalPacketSizeException
+	/***
+	 * Stamps as many of the shapes as we can get sequence numbers for (one request to
+	 * the head for the lot), and sends them on in order.
+	 * @param shapes shapes waiting to go out, oldest first
+	 * @return how many, from the front of the list, were sent
+	 */
+	protected int sendShapesToAll(List<Pair<byte[],WB_REQUEST_TYPE>> shapes)
 	{
-		byte[] packet = createShapePacket(shapePair);
-		if (packet.length == 0)
+		SequenceServer server = sequenceServer;
+		int epochNum = server.getEpochNum();
+		int[] sequenceNums = server.getSequenceNums(shapes.size());
+		for (int i = 0; i < sequenceNums.length; ++i)
 		{
-			return false;
+			byte[] packet = createShapePacket(shapes.get(i), epochNum, sequenceNums[i]);
+			try
+			{
+				inbound.publish(new ShapePacket(packet, true));
+				forNetwork.offer(packet);
+			}
+			catch (IllegalPacketSizeException e)
+			{
+				// it already has its number, so make sure nobody waits on it
+				System.err.println("TRANSMAN: Illegal Packet. Not sending, declaring its number dead"); 
+				byte[] nullPacket = createNullPacket(epochNum, sequenceNums[i]);
+				inbound.publish(new ShapePacket(nullPacket, WB_REQUEST_TYPE.NULL_REQUEST, epochNum, sequenceNums[i]));
+				forNetwork.offer(nullPacket);
+			}
+		}
+		return sequenceNums.length;
+	}
+
+	/**
+	 * Marks every unused number in the given leases as dead, both locally and
+	 * for our peers, so nobody waits on packets that will never be sent.
+	 * @param leases the leases being given up
+	 */
+	private void declareDeadSequenceNums(List<SequenceLease> leases) {
+		for (SequenceLease lease : leases) {
+			for (int i = lease.getNextUnused(); i < lease.getEnd(); ++i) {
+				byte[] packet = createNullPacket(lease.getEpochNum(), i);
+				inbound.publish(new ShapePacket(packet, WB_REQUEST_TYPE.NULL_REQUEST, lease.getEpochNum(), i));
+				forNetwork.offer(packet);
+			}
 		}
-		ShapePacket fromLocal = new ShapePacket(packet);
-		fromLocal.userCreated = true;
-		sequenceTracker.addPacket(fromLocal);
-		forNetwork.offer(packet);
-		return true;
 	}
 
-	private byte[] createShapePacket(Pair<byte[], WB_REQUEST_TYPE> shapePair) {
+	/**
+	 * @return a NULL_REQUEST packet that fills the given (epoch, sequence) slot
+	 */
+	private byte[] createNullPacket(int epochNum, int sequenceNum) {
+		byte[] packet = new byte[ShapeConstants.PACKET_EXP_HEADER_OFFSET + ShapeConstants.INTEGER_BYTE_SIZE];
+		packet[0] = (byte) WB_REQUEST_TYPE.NULL_REQUEST.ordinal();
+		BytePacker.convertIntToBytes(epochNum, packet, ShapeConstants.PACKET_EPOCH_OFFSET);
+		BytePacker.convertIntToBytes(sequenceNum, packet, ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);
+		BytePacker.convertIntToBytes(epochNum, packet, ShapeConstants.PACKET_CREATION_EPOCH);
+		BytePacker.convertIntToBytes(sequenceNum, packet, ShapeConstants.PACKET_CREATION_SEQUENCE);
+		BytePacker.convertIntToBytes(-1, packet, ShapeConstants.PACKET_OBJECT_ID_OFFSET);
+		return packet;
+	}
+
+	/**
+	 * @return a HISTORY_WATERMARK packet saying the epoch's history has been folded up to the sequence number
+	 */
+	private byte[] createWatermarkPacket(int epochNum, int sequenceNum) {
+		byte[] packet = new byte[ShapeConstants.PACKET_BASE_HEADER_OFFSET];
+		packet[0] = (byte) WB_REQUEST_TYPE.HISTORY_WATERMARK.ordinal();
+		BytePacker.convertIntToBytes(epochNum, packet, ShapeConstants.PACKET_EPOCH_OFFSET);
+		BytePacker.convertIntToBytes(sequenceNum, packet, ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);
+		return packet;
+	}
+
+	/**
+	 * @param eras the epochs, in ascending order
+	 * @return a PROCESSED_THROUGH packet giving the last sequence number processed in each
+	 * 		   epoch that has any. Every number before it has been processed too.
+	 */
+	static byte[] createProcessedPacket(List<Epoch> eras) {
+		List<int[]> through = new ArrayList<int[]>(eras.size());
+		for (Epoch era : eras) {
+			synchronized (era) {
+				if (!era.isEmpty())
+					through.add(new int[] { era.epoch, era.getLastSequence() });
+			}
+		}
+		int size = ShapeConstants.INTEGER_BYTE_SIZE;
+		byte[] packet = new byte[ShapeConstants.PACKET_PROCESSED + through.size() * 2 * size];
+		packet[0] = (byte) WB_REQUEST_TYPE.PROCESSED_THROUGH.ordinal();
+		BytePacker.convertIntToBytes(through.size(), packet, ShapeConstants.PACKET_PROCESSED_SIZE);
+		int offset = ShapeConstants.PACKET_PROCESSED;
+		for (int[] pair : through) {
+			BytePacker.convertIntToBytes(pair[0], packet, offset);
+			BytePacker.convertIntToBytes(pair[1], packet, offset + size);
+			offset += 2 * size;
+		}
+		return packet;
+	}
+
+	/**
+	 * @param packet a PROCESSED_THROUGH
+	 * @return epoch -> the last sequence number processed in it, or null if the packet is malformed
+	 */
+	static Map<Integer, Integer> readProcessedPacket(byte[] packet) {
+		int size = ShapeConstants.INTEGER_BYTE_SIZE;
+		if (packet.length < ShapeConstants.PACKET_PROCESSED)
+			return null;
+		int count = BytePacker.convertBytesToInt(packet, ShapeConstants.PACKET_PROCESSED_SIZE);
+		if (count < 0 || packet.length != ShapeConstants.PACKET_PROCESSED + 2L * size * count)
+			return null;
+		Map<Integer, Integer> through = new HashMap<Integer, Integer>();
+		int offset = ShapeConstants.PACKET_PROCESSED;
+		for (int i = 0; i < count; ++i) {
+			through.put(BytePacker.convertBytesToInt(packet, offset), BytePacker.convertBytesToInt(packet, offset + size));
+			offset += 2 * size;
+		}
+		return through;
+	}
+
+	private byte[] createShapePacket(Pair<byte[], WB_REQUEST_TYPE> shapePair, int epochNum, int sequenceNum) {
 		WB_REQUEST_TYPE type = shapePair.getSecond();
 		byte[] shape = shapePair.getFirst();
 		byte[] packet = new byte[ShapeConstants.PACKET_EXP_HEADER_OFFSET + shape.length];
 		
 		packet[0] = new Integer(type.ordinal()).byteValue();					
-		int epochNum = sequenceServer.getEpochNum();
-		int sequenceNum = sequenceServer.getSequenceNum();
-		if (sequenceNum == -1) // head timeout, election in progress
-		{
-			return new byte[0];
-		}
 
 		int creationEpoch, creationSequence;
 		if (type == WB_REQUEST_TYPE.OBJECT_CREATION) {
 			creationEpoch = epochNum;
 			creationSequence = sequenceNum;
+			// modifications may be made before the sequencer has recorded the creation
+			localCreations.put(BytePacker.convertBytesToInt(shape, 0), new Pair<Integer, Integer>(epochNum, sequenceNum));
 		} else {
 			//get the unique object id from the shape, find the creation epoch and seq num
 			Pair<Integer, Integer> pair = sequenceTracker.getEpochSequence(BytePacker.convertBytesToInt(shape, 0));
@@ -185,15 +427,12 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			creationSequence = pair.getSecond();
 		}
 
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(epochNum), packet, ShapeConstants.PACKET_EPOCH_OFFSET);
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(sequenceNum), packet, ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(creationEpoch), packet, ShapeConstants.PACKET_CREATION_EPOCH);
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(creationSequence), packet, ShapeConstants.PACKET_CREATION_SEQUENCE);
+		BytePacker.convertIntToBytes(epochNum, packet, ShapeConstants.PACKET_EPOCH_OFFSET);
+		BytePacker.convertIntToBytes(sequenceNum, packet, ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);
+		BytePacker.convertIntToBytes(creationEpoch, packet, ShapeConstants.PACKET_CREATION_EPOCH);
+		BytePacker.convertIntToBytes(creationSequence, packet, ShapeConstants.PACKET_CREATION_SEQUENCE);
 
-		for (int i=0; i<shape.length; ++i)
-		{
-			packet[i+ShapeConstants.PACKET_EXP_HEADER_OFFSET] = shape[i];
-		}
+		System.arraycopy(shape, 0, packet, ShapeConstants.PACKET_EXP_HEADER_OFFSET, shape.length);
 		return packet;
 	}
 	
@@ -201,43 +440,124 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 	{			
 		return forLocalShape.poll();
 	}
+
+	public List<ShapePacket> takeShapesFromNetwork() throws InterruptedException
+	{
+		List<ShapePacket> batch = new ArrayList<ShapePacket>();
+		batch.add(forLocalShape.take());
+		// drains in priority (epoch, sequence) order
+		forLocalShape.drainTo(batch);
+		return batch;
+	}
 		
+	/***
+	 * Puts packets in order, and hands them on once they are. Only the sequencing thread
+	 * calls addPacket(), and so only it changes anything. Other threads just read, 
+	 * through the epochs map and Epoch's synchronized methods.
+	 */
 	protected class SequenceTracker{
 
-		private HashMap<Integer,Epoch> epochs = new HashMap<Integer, Epoch>();
-		
-		/** this is a map from epoch numbers to a map from sequenceNumbers to the thread that is looking for 
-		 * that sequence number
-		 */
-		private HashMap<Integer, HashMap<Integer,MissingSequenceTracker>> missingPacketFinders = 
-			new HashMap<Integer, HashMap<Integer,MissingSequenceTracker>>();
+		private Map<Integer,Epoch> epochs = new ConcurrentHashMap<Integer, Epoch>();
 
 		public SequenceTracker (){}
 
 		
 		public List<byte[]> getHistoryToCurrent()
 		{
-			// get the list of epochs, and sort them into ascending order
-			List<Integer> epochList = new ArrayList<Integer>( epochs.keySet() );
-			Collections.sort(epochList);
-		
-			// for every epoch: first load the packets we've processed, then add 
-			// the one's we have pending.
 			List<byte[]> packets = new LinkedList<byte[]>(); 
-			for (Integer era : epochList)
+			for (Iterator<byte[]> it = getHistoryIterator(); it.hasNext();)
 			{
-				Epoch e = epochs.get(era);
-				for (ShapePacket packet : e.processedShapes)
-				{
-					packets.add(packet.packet);					
+				packets.add(it.next());
+			}
+			return packets;
+		}
+
+		/***
+		 * Walks the history an epoch at a time: for every epoch in ascending order, the 
+		 * packets we've processed, then the ones we have pending. Each epoch's history is
+		 * copied when the iterator reaches it (it is kept compacted, so this is about the 
+		 * size of the board), so packets added while iterating don't get in the way.
+		 * A compacted epoch starts with a HISTORY_WATERMARK taken along with the copy, so
+		 * the joiner knows which numbers the snapshot has folded away.
+		 */
+		public Iterator<byte[]> getHistoryIterator()
+		{
+			final List<Epoch> eras = getEpochs();
+
+			return new Iterator<byte[]>() {
+				private int era = 0;
+				private Epoch current = null;
+				private Iterator<ShapePacket> processed = null;
+				private Iterator<ShapePacket> pending = null;
+				private byte[] next = advance();
+
+				private byte[] advance() {
+					while (true) {
+						if (current == null) {
+							if (era >= eras.size())
+								return null;
+							current = eras.get(era++);
+							Integer watermark;
+							// a compaction can't run between reading the watermark and copying the history it goes with
+							synchronized (current) {
+								watermark = current.getCompactedThrough();
+								processed = current.getProcessedSnapshot().iterator();
+							}
+							pending = null;
+							if (watermark != null)
+								return createWatermarkPacket(current.epoch, watermark);
+						}
+						if (processed.hasNext())
+							return processed.next().packet;
+						if (pending == null)
+							pending = current.getPendingSnapshot().iterator();
+						if (pending.hasNext())
+							return pending.next().packet;
+						current = null;
+					}
 				}
-				for (ShapePacket packet : e.pending)
-				{
-					packets.add(packet.packet);
+
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				public byte[] next() {
+					if (next == null)
+						throw new java.util.NoSuchElementException();
+					byte[] result = next;
+					next = advance();
+					return result;
 				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		/***
+		 * @return the epochs, in ascending order
+		 */
+		private List<Epoch> getEpochs()
+		{
+			List<Integer> epochList = new ArrayList<Integer>( epochs.keySet() );
+			Collections.sort(epochList);
+			List<Epoch> eras = new ArrayList<Epoch>(epochList.size());
+			for (Integer era : epochList)
+			{
+				eras.add(epochs.get(era));
 			}
-			
-			return packets;
+			return eras;
+		}
+
+		/***
+		 * @return true if the packet at (epoch, sequence) has been processed. The packet itself
+		 * 		   may have been compacted away, if the object has since been deleted.
+		 */
+		private boolean isProcessed(Integer epoch, Integer sequence)
+		{
+			Epoch e = epochs.get(epoch);
+			return e != null && e.isProcessed(sequence);
 		}
 		
 		private List<byte[]> getHistory(int object_id )
@@ -257,12 +577,15 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		}
 
 		private Pair<Integer, Integer> getEpochSequence(int objRef) {
+			Pair<Integer, Integer> local = localCreations.get(objRef);
+			if (local != null) {
+				return local;
+			}
 			for (Epoch e : epochs.values())
 			{
-				for(ShapePacket p : e.processedShapes) {
-					if((p.type == ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION) && (p.objectReference == objRef)) {
-						return new Pair<Integer, Integer>(p.epoch, p.sequence);
-					}
+				ShapePacket p = e.findCreation(objRef);
+				if (p != null) {
+					return new Pair<Integer, Integer>(p.epoch, p.sequence);
 				}
 			}
 			
@@ -280,7 +603,7 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			Collections.sort(epochList);
 
 			//get last sequence number for current epoch
-			return new Pair<Integer, Integer>(epochList.get(epochList.size()-1), epochs.get(epochList.get(epochList.size()-1)).processedShapes.getLast().sequence);
+			return new Pair<Integer, Integer>(epochList.get(epochList.size()-1), epochs.get(epochList.get(epochList.size()-1)).getLastSequence());
 		}
 		
 		/***
@@ -296,8 +619,6 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			{
 				current = new Epoch(packet.epoch);
 				epochs.put(packet.epoch, current);
-				/* initialize the hash of sequence->seeking threads */
-				missingPacketFinders.put(packet.epoch, new HashMap<Integer,MissingSequenceTracker>());
 			}
 			
 			/** handle sequence requests */
@@ -307,6 +628,15 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 				return;
 			}
 			
+			/** a head's history starts from its snapshot, so skip what the snapshot folded away */
+			if (packet.type == WB_REQUEST_TYPE.HISTORY_WATERMARK)
+			{
+				current.startCompacted(packet.sequence);
+				retransmissions.foundThrough(packet.epoch, packet.sequence);
+				checkPendingPackets(current);
+				return;
+			}
+			
 			/*** FIXME: Nothing here ensures that all packets from an old epoch number 
 			 * are processed before a newer epoch. A real fix requires recreating the
 			 * history of packets when a new element from an old epoch arrives. See comment
@@ -314,124 +644,176 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			 */
 			
 			
-			LinkedList<ShapePacket> epochProcessedShapes = current.processedShapes;
 			// If we've already processed this guy, drop it on the floor. we're done.
 			// FIXME: Not fixing this yet, a better way to handle this would be to check
 			// if the packet we have in our processed list is a null packet, if it is then
 			// replace it with the new incoming packet. If not, then we can safely drop this
 			// as a duplicate packet.
-			if (epochProcessedShapes.contains(packet))
+			if (current.contains(packet))
 			{
 					return;
 			}			
 			
-			if (epochProcessedShapes.isEmpty())
+			// if we're currently looking for the packet, stop the search.
+			retransmissions.found(packet.epoch, packet.sequence);
+			
+			// the snapshot we joined from has gaps, and comes in replay order rather than sequence order
+			if (current.isJoinSnapshot(packet.sequence))
+			{
+				add(packet, current);
+				checkPendingPackets(current);
+				return;
+			}
+			
+			if (current.isEmpty())
 			{
 				if (packet.sequence == startSequence)
 				{
-					add(packet, epochProcessedShapes);
+					add(packet, current);
 				}
 				else
 				{
-					current.pending.add(packet);					
+					current.addPending(packet);					
 					seekMissingPackets(packet.epoch, packet.sequence);
 					
 				}
 			}
 			else
 			{
-				// if we're currently looking for the packet, stop the search.
-				Thread n = missingPacketFinders.get(packet.epoch).get(packet.sequence);
-				if (n != null)
-				{
-					// thread ends, then we remove reference to it. 
-					n.interrupt();
-					missingPacketFinders.get(packet.epoch).remove(packet.sequence);
-					
-				}
 
-				if((packet.type != ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION) && (epochs.get(packet.creationEpoch).findPacket(packet.creationSequence) == null)) {
+				if((packet.type != ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION)
+						&& (packet.type != ShapeConstants.WB_REQUEST_TYPE.NULL_REQUEST)
+						&& !isProcessed(packet.creationEpoch, packet.creationSequence)) {
 					//mod packet, and original creation packet not found
 					
-					current.pending.add(packet);
+					current.addPending(packet);
 					seekMissingPackets(packet.creationEpoch, packet.creationSequence);
-				} else if(packet.sequence != (epochProcessedShapes.getLast().sequence+1)) {
+				} else if(packet.sequence != (current.getLastSequence()+1)) {
 					//if not next sequence, then add to pending and request
 					
-					current.pending.add(packet);
+					current.addPending(packet);
 					seekMissingPackets(packet.epoch, packet.sequence);
 				}
 				else
 				{
-					add(packet, epochProcessedShapes);
+					add(packet, current);
 				}
 
-				checkPendingPackets(current, epochProcessedShapes);
+				checkPendingPackets(current);
 			}										
 		}
 
 
-		private void checkPendingPackets(Epoch current, LinkedList<ShapePacket> epochProcessedShapes) {
+		private void checkPendingPackets(Epoch current) {
 			// does the pending queue have our next packet?
-			if ( ! current.pending.isEmpty() && (epochProcessedShapes.size() > 0))
+			if ( current.hasPending() && !current.isEmpty())
 			{
 				/** packets.add(packet.packet);
 				 * While there are elements pending, and they're contiguous with
 				 * the previous packets, pull 'em off, and add them to the canvas
 				 */
-				ShapePacket currentPacket = epochProcessedShapes.getLast(); 
-				ShapePacket nextPacket = current.pending.peek();	
-				while (nextPacket != null && nextPacket.sequence.equals(currentPacket.sequence+1) )
+				int currentSequence = current.getLastSequence(); 
+				ShapePacket nextPacket = current.peekPending();	
+				while (nextPacket != null && nextPacket.sequence.equals(currentSequence+1) )
 				{
 					if((nextPacket.type != ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION) 
 							&& (nextPacket.type != ShapeConstants.WB_REQUEST_TYPE.NULL_REQUEST)
-							&& (epochs.get(nextPacket.creationEpoch).findPacket(nextPacket.creationSequence) == null)) {
+							&& !isProcessed(nextPacket.creationEpoch, nextPacket.creationSequence)) {
 						//if it's a mod, ensure that the object it's on is created, if not request it
 						seekMissingPackets(nextPacket.creationEpoch, nextPacket.creationSequence);
 						break;
 					}
 					
-					add(nextPacket, epochProcessedShapes);							
-					current.pending.remove(nextPacket);
-					currentPacket = nextPacket;
-					nextPacket = current.pending.peek();
+					add(nextPacket, current);							
+					current.pollPending();
+					currentSequence = nextPacket.sequence;
+					nextPacket = current.peekPending();
 				}												
 			}
 		}
 
+		/***
+		 * Answers a request for a single sequence number, from a peer that doesn't send 
+		 * SEQUENCE_RANGE_REQUESTs. The answer goes to everyone.
+		 */
 		protected void processSequenceRequest(ShapePacket packet, Epoch current) {
-			if (current.processedShapes.contains(packet))
+			List<byte[]> found = findPackets(current, Collections.singletonList(new int[] { packet.sequence, 1 }));
+			forNetwork.addAll(found);
+		}
+
+		/***
+		 * @param current
+		 * @param ranges (first sequence, count) pairs
+		 * @return the packets we have in the ranges: processed ones, then pending ones. A number
+		 * 		   that has been compacted is answered with the packet the snapshot kept for it, or
+		 * 		   with a NULL_REQUEST if it was folded away, so the peer asking can move past it.
+		 * 		   Only numbers every connected peer had processed are folded, so only a peer that
+		 * 		   wasn't connected then can be missing one, and the history it was sent on joining
+		 * 		   already has the folded state.
+		 */
+		protected List<byte[]> findPackets(Epoch current, List<int[]> ranges) {
+			List<byte[]> found = new ArrayList<byte[]>();
+			for (int[] range : ranges)
 			{
-				int i = current.processedShapes.indexOf(packet);
-				forNetwork.add(current.processedShapes.get(i).packet);
+				for (int seq = range[0]; seq < range[0] + range[1]; ++seq)
+				{
+					ShapePacket processed = current.findPacket(seq);
+					if (processed != null && processed.packet.length > 0)
+					{
+						found.add(processed.packet);
+					}
+					else if (current.isCompacted(seq) && current.isProcessed(seq))
+					{
+						found.add(createNullPacket(current.epoch, seq));
+					}
+				}
 			}
-			else if (current.pending.contains(packet))
+			for (ShapePacket p : current.getPendingSnapshot())
 			{
-				for (ShapePacket p : current.pending)
+				for (int[] range : ranges)
 				{
-					if ( p.equals(packet))
+					if (p.sequence >= range[0] && p.sequence < range[0] + range[1] && p.packet.length > 0)
 					{
-						forNetwork.add(p.packet);
+						found.add(p.packet);
+						break;
 					}
 				}
 			}
+			return found;
 		}
 
-		private void add(ShapePacket packet, LinkedList<ShapePacket> epochProcessedShapes) {
+		/***
+		 * @param epoch
+		 * @param ranges (first sequence, count) pairs
+		 * @return the packets we have in the ranges, empty if we don't know the epoch
+		 */
+		protected List<byte[]> findPackets(Integer epoch, List<int[]> ranges) {
+			Epoch current = epochs.get(epoch);
+			if (current == null)
+				return new ArrayList<byte[]>(0);
+			return findPackets(current, ranges);
+		}
+
+		private void add(ShapePacket packet, Epoch current) {
 			switch (packet.type)
 			{
 			case OBJECT_CREATION:
 			case OBJECT_GEOM_MODIFICATION:
+			case MULTI_GEOM_MODIFICATION:
 			case OBJECT_ATTIBUTE_MODIFICATION:
 			case OBJECT_ATTRIBUTE_DELETION:
 			case OBJECT_DELETION :
 				if (!packet.userCreated) {
 					forLocalShape.add(packet);
 				}
-				epochProcessedShapes.add(packet);
+				current.add(packet);
+				if (packet.userCreated && packet.type == WB_REQUEST_TYPE.OBJECT_CREATION) {
+					// it's in the history now
+					localCreations.remove(packet.objectReference);
+				}
 				break;
 			case NULL_REQUEST:
-				epochProcessedShapes.add(packet);
+				current.add(packet);
 				break;
 			default:
 				System.err.println("TRANSMAN: SequenceTracker: Improper shapePacket added. New type perhaps?");
@@ -444,166 +826,131 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		 * @param uptoSequence how far to seek. 
 		 * This function seeks (processedShapes.last,uptoSequence)
 		 */
-		protected synchronized void seekMissingPackets(Integer epoch, Integer uptoSequence) 
+		protected void seekMissingPackets(Integer epoch, Integer uptoSequence) 
 		{
 			Epoch current = epochs.get(epoch);
 			int gapStart;
-			if ( current.processedShapes.isEmpty())
+			if ( current.isEmpty())
 			{
 				gapStart = startSequence;
 			}
 			else
 			{
-				 gapStart = current.processedShapes.getLast().sequence+1;
+				 gapStart = current.getLastSequence()+1;
 			}
-			HashMap<Integer, MissingSequenceTracker> map = missingPacketFinders.get(epoch);
-
-			/* construct the list of sequence numbers in the gap. This will usually be quite small */
+			/* construct the list of sequence numbers in the gap, leaving out the ones 
+			 * we have pending, since we've already found them. */
 			if(uptoSequence-gapStart < 0) {
 				//already have everything up to the gap, so don't do any seeking
 				return;
 			}
-			List<Integer> interval = new ArrayList<Integer>(uptoSequence-gapStart);
-			for (int i=gapStart ; i < uptoSequence; ++i)
+			Set<Integer> found = new HashSet<Integer>();
+			for ( ShapePacket p : current.getPendingSnapshot())
 			{
-				interval.add(i);
+				found.add(p.sequence);
 			}
-			
-			/* remove deadnumbers or numbers we're already seeking on,
-			 *  since we aren't going to seek on them.
-			 */ 
-			for (int i=interval.size()-1; i >= 0 ; --i)
+			List<Integer> interval = new ArrayList<Integer>(uptoSequence-gapStart);
+			for (int i=gapStart ; i < uptoSequence; ++i)
 			{
-				if (map.containsKey(interval.get(i)))
-				{
-					interval.remove(i); // by index
-				}
-				
+				if (!found.contains(i))
+					interval.add(i);
 			}
 			
-			/* remove pending packets, since we've already found them. */
-			for ( ShapePacket p : current.pending)
+			/* the scheduler skips numbers it's already looking for */
+			retransmissions.seek(epoch, interval);
+		}
+	}
+
+	/***
+	 * @param election : update the current election process.
+	 */
+	public void setElection(boolean election)
+	{
+		if (election != electionInProgress)
+		{
+			synchronized (electionMonitor)
 			{
-				if (interval.contains(p.sequence))
+				electionInProgress = election;
+				if (!electionInProgress) // if an election just ended
 				{
-					interval.remove(p.sequence); // by object
+					electionMonitor.notifyAll();
 				}
 			}
-			
-			/* for every number left, start a seek thread */
-			for (Integer i : interval)
-			{
-				MissingSequenceTracker find = new MissingSequenceTracker(current, i, venusProtocol );					
-				map.put(i, find);
-				find.start();
-			}
 		}
 	}
 
 	/***
-	 * 
-	 * @author Afton
-	 * This class is used to launch a thread that tries to find a missing sequence number
-	 * and eventually marks that number as a dead number. 
-	 *
+	 * The only thread that feeds the sequence tracker: takes whatever has been published
+	 * to the inbound ring, and adds it in order.
 	 */
-	protected class MissingSequenceTracker extends Thread {
-		private List<WhiteboardPeer> peers = null;
-		private byte[] missingPacket;
-		private Epoch current;
-		private Integer sequence;
-		private final int minNumRetries = 5; 
+	protected class SequencingThread extends Thread {
 		
-		public MissingSequenceTracker(Epoch current, Integer sequence, VenusProtocol localNode)
+		public volatile boolean isStopped = false;
+		
+		public SequencingThread(String name)
 		{
-			peers = localNode.getPeers();
-			this.current = current;
-			this.sequence = sequence;
-			
-		}
-
-		public void run() {
-			try {				
-				missingPacket = createMissingSequenceRequest(current.epoch, sequence);
-				sleep(timeout_milliseconds + (int)((2*Math.random()-1)*timeout_range));
-				
-				/**
-				 * randomize the list of peers, removing the current user from that list
-				 * then send messages to the remaining peers one at a time
-				 */
-				WhiteboardPeer me = canvas.getWindow().getConfig().getUserPeer();
-				List<WhiteboardPeer> randomPeers = new LinkedList<WhiteboardPeer>(peers);
-				Collections.shuffle(randomPeers);		
-				randomPeers.remove(me);
-				int timesTried = 0;
-				while(timesTried < minNumRetries && randomPeers.size() > 0) {
-					for(int i = 0; i < randomPeers.size(); ++i) {
-						WhiteboardPeer peer = randomPeers.get(i);
-						if ( peer.isConnected() )
-						{
-							try{
-								peer.send(missingPacket);
-								++timesTried;
-							}
-							catch (IOException e) 
-							{
-								randomPeers.remove(peer);
-								// swallow. move on to the next peer
-							}
-							sleep(timeout_milliseconds + (int)((2*Math.random()-1)*timeout_range));
-						}
-					}
-				}
-				
-				declareDeadPacket();
-			} catch (InterruptedException e) {
-				// we must have been found; 
-				return;
-			}
-		}
-
-		private void declareDeadPacket() {
-			// if we haven't been stopped yet, we ought to add
-			// this number to the dead list. 
-			current.pending.add(new ShapePacket(new byte[0], WB_REQUEST_TYPE.NULL_REQUEST, current.epoch, sequence));
-			sequenceTracker.checkPendingPackets(current, current.processedShapes);
+			super(name);
 		}
-
-		private byte[] createMissingSequenceRequest(int epoch, int sequenceNum)
+		
+		public void stop_processing()
 		{
-			byte[] packet = new byte[ShapeConstants.PACKET_BASE_HEADER_OFFSET];
-			packet[0] = new Integer(ShapeConstants.WB_REQUEST_TYPE.EPOCH_SEQUENCE_REQUEST.ordinal()).byteValue();
-			BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(epoch), 
-					 						 packet, 
-					 						 ShapeConstants.PACKET_EPOCH_OFFSET);
-			BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(sequenceNum), 
-											 packet, 
-											 ShapeConstants.PACKET_SEQUENCE_NUMBER_OFFSET);		
-			return packet;
+			this.isStopped = true;
+			this.interrupt();
 		}
-	}
-	
-	/***
-	 * @param election : update the current election process.
-	 */
-	public void setElection(boolean election)
-	{
-		if (election != electionInProgress)
+		
+		public void run()
 		{
-			electionInProgress = election;
-			if (!electionInProgress) // if an election just ended
+			List<ShapePacket> batch = new ArrayList<ShapePacket>();
+			while (!isStopped)
 			{
-				netBufferSender.interrupt();
+				try
+				{
+					inbound.takeAll(batch);
+				}
+				catch (InterruptedException e)
+				{
+					// swallow and check whether we've been stopped
+					continue;
+				}
+				for (ShapePacket packet : batch)
+				{
+					try
+					{
+						sequenceTracker.addPacket(packet);
+					}
+					catch (RuntimeException e)
+					{
+						// don't let one bad packet stop everything else
+						System.err.println("TRANSMAN: SequencingThread: dropped a packet: " + e);
+					}
+				}
+				batch.clear();
 			}
 		}
 	}
 
+	/***
+	 * Sends local shapes out in batches. Every pass takes everything that's waiting (up 
+	 * to a lease's worth), gets sequence numbers for the lot in one go, and hands them on 
+	 * together, so a burst of drawing costs one round trip to the head rather than one 
+	 * per shape. Shapes that couldn't get a number wait, in order, for the next pass: 
+	 * until the election ends if one is running, otherwise for a backoff that doubles 
+	 * up to MAX_BACKOFF_MILLISECONDS.
+	 */
 	protected class NetworkBuffer extends Thread {
+		/** the most shapes stamped in one pass; the most the head will lease at once */
+		public static final int MAX_BATCH = ErisProtocol.LEASE_MAX_SIZE;
+		public static final long MIN_BACKOFF_MILLISECONDS = 50;
+		public static final long MAX_BACKOFF_MILLISECONDS = 2000;
+		
+		private BlockingQueue<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>> buffer = 
+			new LinkedBlockingQueue<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>>();
 		
-		private ConcurrentLinkedQueue<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>> buffer = 
-			new ConcurrentLinkedQueue<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>>();
+		/** shapes taken from the buffer that are still waiting for sequence numbers, oldest first */
+		private List<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>> waiting = 
+			new ArrayList<Pair<byte[], ShapeConstants.WB_REQUEST_TYPE>>();
 				
-		public boolean isStopped = false;
+		public volatile boolean isStopped = false;
 		
 		public NetworkBuffer(String name)
 		{
@@ -612,7 +959,6 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		
 		public void add(Pair<byte[], WB_REQUEST_TYPE> p) {
 			buffer.add(p);
-			this.interrupt();
 		}
 
 		/***
@@ -621,37 +967,57 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 		 */
 		public void stop_processing()
 		{
-			// by interrupting itself, the thread should wake up from any sleep
+			// by interrupting itself, the thread should wake up from any wait
 			// and then setting isStopped to true will cause it to exit. 
 			this.isStopped = true;
+			synchronized (electionMonitor)
+			{
+				electionMonitor.notifyAll();
+			}
 			this.interrupt();
 		}
 		
 		public void run()
 		{
+			long backoff = MIN_BACKOFF_MILLISECONDS;
 			while (!isStopped)
 			{
 				try
 				{
-					/**
-					 * As long as the buffer is empty, just sleep. 
-					 */
-					while (buffer.isEmpty())
-						sleep(10000000);
+					if (waiting.isEmpty())
+					{
+						/**
+						 * Wait for something to send. If we're sitting on leased sequence 
+						 * numbers, wake up when the lease runs out so the leftovers can be 
+						 * declared dead.
+						 */
+						long leaseRemaining = sequenceServer.getLeaseTimeRemaining();
+						Pair<byte[], WB_REQUEST_TYPE> next;
+						if (leaseRemaining < 0)
+							next = buffer.take();
+						else
+							next = buffer.poll(leaseRemaining, TimeUnit.MILLISECONDS);
+						if (next != null)
+							waiting.add(next);
+					}
+					if (waiting.size() < MAX_BATCH)
+						buffer.drainTo(waiting, MAX_BATCH - waiting.size());
 					
-					while(!buffer.isEmpty())
+					if (!waiting.isEmpty())
 					{
-						try
+						int sent = sendShapesToAll(waiting.subList(0, Math.min(waiting.size(), MAX_BATCH)));
+						waiting.subList(0, sent).clear();
+						if (sent == 0)
 						{
-							boolean sent = sendShapeToAll(buffer.peek());
-							if (sent)
-							{
-								buffer.remove();
-							}
-						} catch (IllegalPacketSizeException e) {
-							System.err.println("TRANSMAN: Illegal Packet. Not sending. In a perfect world we'd mark this sequence number dead"); 
+							awaitSequenceServer(backoff);
+							backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLISECONDS);
+						}
+						else
+						{
+							backoff = MIN_BACKOFF_MILLISECONDS;
 						}
 					}
+					declareDeadSequenceNums(sequenceServer.releaseExpiredSequenceNums());
 				}
 				catch (InterruptedException e)
 				{
@@ -660,6 +1026,24 @@ public class TransactionManager implements NetworkTransactionManager, LocalTrans
 			}
 			return;
 		}
+
+		/***
+		 * Waits for the election to end if one is running, otherwise for the backoff.
+		 */
+		private void awaitSequenceServer(long backoff) throws InterruptedException
+		{
+			synchronized (electionMonitor)
+			{
+				if (!electionInProgress)
+				{
+					electionMonitor.wait(backoff);
+				}
+				while (electionInProgress && !isStopped)
+				{
+					electionMonitor.wait();
+				}
+			}
+		}
 	}
 
 	public int getEpoch() {
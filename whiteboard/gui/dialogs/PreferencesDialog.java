@@ -32,6 +32,8 @@ public class PreferencesDialog extends BasicDialog {
 	private JTextField defaultHostPortField;
 	/** drop down to set the default permission level for joining users */
 	private JComboBox defaultUserPermLevel;
+	/** text field to take how far freehand strokes may be simplified */
+	private JTextField strokeToleranceField;
 
 	/** true if user cancelled dialog */
 	private boolean isCancelled;
@@ -79,6 +81,7 @@ public class PreferencesDialog extends BasicDialog {
 	private void initializeVariables() {
 		//will need to get items from config to populate the textfields
 		Configuration config = window.getConfig();
+		this.strokeToleranceField.setText(config.getStrokeTolerance()+"");
 		if(window instanceof ConnectWindow) {
 			userNameField.setText(config.getUserPeer().getName());
 			this.defaultHostField.setText(config.getDefaultHost());
@@ -199,6 +202,18 @@ public class PreferencesDialog extends BasicDialog {
 			mainPanel.add(panel);
 		}
 
+		//add the freehand simplification text field
+		panel = new JPanel(new BorderLayout());
+		strokeToleranceField = new JTextField();
+		strokeToleranceField.setColumns(13);
+		strokeToleranceField.setFont(this.getFont());
+		strokeToleranceField.addKeyListener(new ErrorKeyListener());
+		label = new JLabel("Stroke Smoothing (px): ");
+		label.setFont(this.getFont());
+		panel.add(label, BorderLayout.WEST);
+		panel.add(strokeToleranceField, BorderLayout.EAST);
+		mainPanel.add(panel);
+
 		//add the buttons
 		panel = new JPanel();
 		JButton button = new JButton("OK");
@@ -218,6 +233,19 @@ public class PreferencesDialog extends BasicDialog {
 
 	/** inherited method, handles OK button press */
 	protected boolean actionButton() {
+		//do validation of the stroke smoothing, 0 turns it off
+		try {
+			double strokeTolerance = Double.parseDouble(strokeToleranceField.getText().trim());
+			if(strokeTolerance < 0 || Double.isNaN(strokeTolerance) || Double.isInfinite(strokeTolerance)) {
+				throw new NumberFormatException();
+			}
+			window.getConfig().setStrokeTolerance(strokeTolerance);
+		} catch(NumberFormatException nfe) {
+			window.showMessage("Error", "Invalid stroke smoothing.");
+			ErrorKeyListener.setError(strokeToleranceField);
+			return false;
+		}
+
 		try {
 			if(window instanceof ConnectWindow) {
 				String host = null;
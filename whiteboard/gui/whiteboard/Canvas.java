@@ -27,7 +27,9 @@ import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -36,9 +38,13 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.PathSimplifier;
 import whiteboard.core.entities.ShapeConstants;
+import whiteboard.core.entities.ShapeDecoder;
+import whiteboard.core.entities.ShapeEncoder;
 import whiteboard.core.entities.WB_Line;
 import whiteboard.core.entities.WB_Point;
 import whiteboard.core.entities.WB_Polygon;
@@ -46,6 +52,8 @@ import whiteboard.core.entities.WB_Polyline;
 import whiteboard.core.entities.WB_Shape;
 import whiteboard.core.entities.WB_Text;
 import whiteboard.core.exceptions.TransactionManagerAlreadySetException;
+import whiteboard.core.index.ShapeGrid;
+import whiteboard.core.index.ShapeStore;
 import whiteboard.core.transaction.LocalTransactionManager;
 import whiteboard.core.transaction.ShapePacket;
 
@@ -57,25 +65,53 @@ import whiteboard.core.transaction.ShapePacket;
 public class Canvas extends JPanel implements ActionListener, Printable, MouseListener, MouseMotionListener, KeyListener {
 	private static final Color NO_DRAW_COLOR = new Color(.92f, .92f, .92f);
 	private static final Color DRAW_COLOR = Color.WHITE;
+	/** how far outside its bounds a shape may paint (anti-aliasing, selection handles) */
+	private static final int PAINT_MARGIN = 5;
+	/** an open stroke sends its new points once this many are waiting... */
+	private static final int STROKE_FLUSH_POINTS = 16;
+	/** ...and sends whatever is waiting this often, in milliseconds */
+	private static final int STROKE_FLUSH_MILLISECONDS = 40;
+	/** a dragged selection sends how far it has moved this often, in milliseconds */
+	private static final int DRAG_SEND_MILLISECONDS = 50;
 
 	/** true if anti-aliasing is enabled */
 	private boolean isAntiAliasingEnabled;
 	
 	/** main program window holding this canvas */
 	private WhiteboardWindow window;
-	private NetworkShapePollThread netPollThread;
+	private NetworkShapeDeliveryThread netDeliveryThread;
 
 	/** the current list of selections. */
 	private List<WB_Shape> selections = new ArrayList<WB_Shape>();
 	/** the list of shapes in the canvas */
-	private List<WB_Shape> WBObjs = new LinkedList<WB_Shape>();
+	private ShapeStore WBObjs = new ShapeStore();
+	/** spatial index over WBObjs, used for hit-testing. Must be kept in step with WBObjs */
+	private ShapeGrid shapeIndex = new ShapeGrid();
+	/** the committed shapes, rendered into tiles. Everything else is drawn over the top */
+	private TileCache tileCache = new TileCache(this, shapeIndex, PAINT_MARGIN);
 	/** the points the user is currently adding (for not committed shapes) */
 	private ArrayList<Point> points = new ArrayList<Point>();
+	/** 
+	 * the FREEHAND or POLYLINE stroke being drawn. It's on the board and the network from its
+	 * second point, and its later points are added and sent in batches as they're drawn. 
+	 * null when there isn't one
+	 */
+	private WB_Polyline openStroke = null;
+	/** how many of the points have been added to the open stroke (after simplification) and sent */
+	private int openStrokeSent = 0;
+	/** sends the open stroke's waiting points, so other users see it even when the mouse is slow */
+	private Timer strokeFlushTimer;
 	
 	/** used to calculate the drawing to the current mouse position */
 	private Point mouseMovePoint = new Point(0,0);
+	/** where the line to the mouse was last drawn, or null if it wasn't */
+	private Rectangle rubberBand = null;
 	/** boolean to indicate if user has dragged shapes */
 	private boolean hasMoved = false;
+	/** how far the dragged selection has moved since that was last sent */
+	private int dragUnsentX = 0, dragUnsentY = 0;
+	/** sends the dragged selection's movement while the mouse is moving, rather than once per mouse event */
+	private Timer dragSendTimer;
 
 	/** only process mouse/keyboard events when this is true */
 	private boolean allowUserInput = false;
@@ -114,7 +150,8 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	{
 		this.window = window;
 		init();
-		WBObjs.addAll(objs);
+		for (WB_Shape obj : objs)
+			addToBoard(obj);
 	}
 
 	private void init() {
@@ -152,13 +189,22 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		//anti-aliasing starts as false
 		isAntiAliasingEnabled = false;
 
-		netPollThread = new NetworkShapePollThread(this);
-		netPollThread.start();
+		strokeFlushTimer = new Timer(STROKE_FLUSH_MILLISECONDS, new ActionListener() {
+			public void actionPerformed(@SuppressWarnings("unused") ActionEvent arg0) {
+				flushStroke();
+			}
+		});
+		dragSendTimer = new Timer(DRAG_SEND_MILLISECONDS, new ActionListener() {
+			public void actionPerformed(@SuppressWarnings("unused") ActionEvent arg0) {
+				flushDrag();
+			}
+		});
 	}
 
-	/** stop the network polling thread */
-	protected void stopPollThread() {
-		netPollThread.quit();
+	/** stop the network delivery thread */
+	protected void stopDeliveryThread() {
+		if (netDeliveryThread != null)
+			netDeliveryThread.quit();
 	}
 
 	/** scales the window to show the drawing correctly */
@@ -208,6 +254,7 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 
 	public void setAntiAliasingEnabled(boolean isAntiAliasingEnabled) {
 		this.isAntiAliasingEnabled = isAntiAliasingEnabled;
+		tileCache.setAntiAliased(isAntiAliasingEnabled);
 		this.repaint();
 	}
 	
@@ -232,11 +279,15 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		    ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 		}
 
-		//draw any other things here
-		for(int i = 0; i < WBObjs.size(); ++i) {
-			if(WBObjs.get(i) != null)
-				WBObjs.get(i).draw((Graphics2D) g);
-		}
+		//the committed shapes come from the tile cache, only for the area being repainted
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		Rectangle visible = getVisibleRect();
+		tileCache.setVisibleSize(visible.width, visible.height);
+		tileCache.paint(g, clip);
+
+		//everything below is the overlay: the shape being drawn, selections and the rubber band
 
 		g.setColor(window.getConfig().getUserColour());
 		if(!points.isEmpty()) {
@@ -258,8 +309,8 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 					}
 					break;
 				default:
-					//draw the current point-list
-					for (int i=0; i<points.size()-1; ++i) {
+					//draw the current point-list, or the part of an open stroke that isn't on the board yet
+					for (int i = (openStroke == null) ? 0 : openStrokeSent-1; i<points.size()-1; ++i) {
 						Point p0 = points.get(i);
 						Point p1 = points.get(i+1);
 						
@@ -286,21 +337,185 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		}
 	}
 
+	/***
+	 * Puts a shape on the board (but not on the network)
+	 * @param shape
+	 */
+	private synchronized void addToBoard(WB_Shape shape) {
+		if (!putOnBoard(shape))
+			return;
+		shapeIndex.add(shape);
+		tileCache.invalidate(getPaintedRegion(shape));
+	}
+
+	/***
+	 * Puts a shape in the store, but leaves indexing it and dropping the tiles under it to the caller
+	 * @param shape
+	 * @return false if it was already on the board
+	 */
+	private synchronized boolean putOnBoard(WB_Shape shape) {
+		if (shape instanceof WB_Text)
+			((WB_Text) shape).setFontMetrics(getFontMetrics(getFont()));
+		return WBObjs.add(shape);
+	}
+
+	/***
+	 * Takes a shape off the board (but not off the network)
+	 * @param shape
+	 */
+	private synchronized void removeFromBoard(WB_Shape shape) {
+		if (!WBObjs.remove(shape))
+			return;
+		shapeIndex.remove(shape);
+		tileCache.invalidate(getPaintedRegion(shape));
+	}
+
+	/***
+	 * Moves a shape that's on the board
+	 * @param shape
+	 * @param dx
+	 * @param dy
+	 * @return the area that needs to be repainted, or null if it isn't known
+	 */
+	private synchronized Rectangle translateOnBoard(WB_Shape shape, int dx, int dy) {
+		return transformOnBoard(shape, (byte) ShapeConstants.GEOM_TRANSFORM_TYPE.TRANSLATION.ordinal(), dx, dy);
+	}
+
+	/***
+	 * Applies a geometric transformation other than APPEND_POINTS to a shape that's on the board
+	 * @param shape
+	 * @param transType a GEOM_TRANSFORM_TYPE ordinal
+	 * @param arg1
+	 * @param arg2
+	 * @return the area that needs to be repainted, or null if it isn't known
+	 */
+	private synchronized Rectangle transformOnBoard(WB_Shape shape, byte transType, int arg1, int arg2) {
+		Rectangle before = getPaintedRegion(shape);
+		if (!shape.applyTransform(transType, arg1, arg2))
+			return new Rectangle();
+		shapeIndex.update(shape);
+		Rectangle after = getPaintedRegion(shape);
+		tileCache.invalidate(before);
+		tileCache.invalidate(after);
+		return (before == null || after == null) ? null : before.union(after);
+	}
+
+	/***
+	 * Adds points to the end of a polyline that's on the board
+	 * @param stroke
+	 * @param added
+	 * @return the area that needs to be repainted
+	 */
+	private synchronized Rectangle appendOnBoard(WB_Polyline stroke, List<Point> added) {
+		Point last = stroke.getLastPoint();
+		Rectangle r = null;
+		for (Point p : added) {
+			if (r == null)
+				r = new Rectangle((last == null) ? p : last);
+			r.add(p);
+			stroke.appendPoint(p);
+		}
+		if (r == null)
+			return new Rectangle();
+		r.grow(PAINT_MARGIN, PAINT_MARGIN);
+		shapeIndex.update(stroke);
+		tileCache.invalidate(r);
+		return r;
+	}
+
+	/***
+	 * 
+	 * @param shape
+	 * @return the area the shape paints on, or null if it doesn't know
+	 */
+	private Rectangle getPaintedRegion(WB_Shape shape) {
+		Rectangle r = (shape == null) ? null : shape.getBounds();
+		if (r != null)
+			r.grow(PAINT_MARGIN, PAINT_MARGIN);
+		return r;
+	}
+
+	/***
+	 * 
+	 * @param shapes
+	 * @return the union of the areas the shapes paint on, or null if one of them doesn't know
+	 */
+	private Rectangle getPaintedRegion(List<WB_Shape> shapes) {
+		Rectangle region = null;
+		for (WB_Shape s : shapes) {
+			Rectangle r = getPaintedRegion(s);
+			if (r == null)
+				return null;
+			region = (region == null) ? r : region.union(r);
+		}
+		return region;
+	}
+
+	/***
+	 * 
+	 * @param p0
+	 * @param p1
+	 * @return the area a line from p0 to p1 paints on
+	 */
+	private Rectangle getPaintedRegion(Point p0, Point p1) {
+		Rectangle r = new Rectangle(p0);
+		r.add(p1);
+		r.grow(PAINT_MARGIN, PAINT_MARGIN);
+		return r;
+	}
+
+	/***
+	 * Repaints the union of two regions. A null region means the whole canvas.
+	 * @param before what was painted
+	 * @param after what is about to be painted
+	 */
+	private void repaintRegion(Rectangle before, Rectangle after) {
+		if (before == null || after == null)
+			repaint();
+		else
+			repaint(before.union(after));
+	}
+
 	private WB_Shape findShapeByReference(int referenceNum) {
-		for (int i =0; i< WBObjs.size(); ++i)
-		{
-			if (WBObjs.get(i).hashCode() == referenceNum)
-			{
-				return WBObjs.get(i);
-			}
+		return WBObjs.get(referenceNum);
+	}
+
+	/***
+	 * Applies a batch of packets from the network, e.g. a chunk of history. The shapes
+	 * it creates are indexed together, and the canvas is repainted once for the lot.
+	 * @param packets
+	 */
+	protected synchronized void addPackets(List<ShapePacket> packets) {
+		List<WB_Shape> created = new ArrayList<WB_Shape>();
+		Rectangle region = null;
+		boolean known = true;
+		for (ShapePacket b : packets) {
+			Rectangle r = applyPacket(b, created);
+			if (r == null)
+				known = false;
+			else if (!r.isEmpty())
+				region = (region == null) ? r : region.union(r);
+		}
+		shapeIndex.addAll(created);
+		if (!known) {
+			tileCache.invalidateAll();
+			repaint();
+		} else if (region != null) {
+			tileCache.invalidate(region);
+			repaintRegion(region, region);
 		}
-		return null;
 	}
 
-	protected synchronized void addPacket(ShapePacket b) {
+	/***
+	 * Acts on one packet from the network, without repainting
+	 * @param b
+	 * @param created shapes put on the board in this batch but not yet indexed. New ones are added to it
+	 * @return the area that changed, empty if nothing did, or null if it isn't known
+	 */
+	private synchronized Rectangle applyPacket(ShapePacket b, List<WB_Shape> created) {
 		// nothing to do if b is null
 		if (b == null)
-			return;
+			return new Rectangle();
 		
 		// parse and act on packetValue.
 		switch (b.type)
@@ -308,38 +523,54 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 			case OBJECT_CREATION:
 			{
 				WB_Shape n = BytePacker.createWB_ShapeFromShapePacket(b);
-				if (null != n && !WBObjs.contains(n)) {
-					WBObjs.add(n);
+				if (null != n && !WBObjs.contains(n.hashCode()) && putOnBoard(n)) {
+					created.add(n);
 					System.err.println( n.toString() );
+					return getPaintedRegion(n);
 				}
-				break;
+				return new Rectangle();
 			}
 			case OBJECT_DELETION:
 			{
-				WBObjs.remove(findShapeByReference(b.objectReference));
-				break;
+				WB_Shape s = findShapeByReference(b.objectReference);
+				if (s == null)
+					return new Rectangle();
+				if (created.remove(s))
+					WBObjs.remove(s);
+				else
+					removeFromBoard(s);
+				return getPaintedRegion(s);
 			}
 			case OBJECT_GEOM_MODIFICATION:
+			case MULTI_GEOM_MODIFICATION:
 			{
 				int offset = ShapeConstants.PACKET_EXP_HEADER_OFFSET + Integer.SIZE/8;
 				byte transType = b.packet[offset++];
-				WB_Shape s = findShapeByReference(b.objectReference);
-				if(s == null)
-					return;
+				if (ShapeConstants.GEOM_TRANSFORM_TYPE.APPEND_POINTS.ordinal() == transType) {
+					WB_Shape s = findShapeByReference(b.objectReference);
+					if (s instanceof WB_Polyline)
+						return appendOnBoard((WB_Polyline) s, ShapeDecoder.decodeAppendedPoints(b.packet, offset));
+					return new Rectangle();
+				}
 				int arg1 = BytePacker.convertBytesToInt(b.packet, offset); offset += Integer.SIZE/8;
 				int arg2 = BytePacker.convertBytesToInt(b.packet, offset);
-				if (ShapeConstants.GEOM_TRANSFORM_TYPE.TRANSLATION.ordinal() == transType) {
-					s.translate(arg1, arg2);
-				} else if (ShapeConstants.GEOM_TRANSFORM_TYPE.ROTATION.ordinal() == transType) {
-					
-				} else if (ShapeConstants.GEOM_TRANSFORM_TYPE.SCALE.ordinal() == transType) {
-					
+				// every shape is changed before the canvas is next painted, and they're repainted together
+				Rectangle region = new Rectangle();
+				for (int target : b.getTargets()) {
+					WB_Shape s = findShapeByReference(target);
+					if (s == null)
+						continue;
+					Rectangle r = transformOnBoard(s, transType, arg1, arg2);
+					if (r == null)
+						return null;
+					else if (!r.isEmpty())
+						region = region.isEmpty() ? r : region.union(r);
 				}
+				return region;
 			}
 			default:
-				break;
+				return new Rectangle();
 		}
-		repaint();
 	}
 
 	/** prints the canvas */
@@ -386,7 +617,7 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	synchronized private List<WB_Shape> getSelected(Point p)
 	{
 		LinkedList<WB_Shape> selected = new LinkedList<WB_Shape>();
-		for (WB_Shape obj : WBObjs)			
+		for (WB_Shape obj : shapeIndex.getCandidates(p))
 		{
 			if (obj.isOnPerimeter(p))
 				selected.add(obj);
@@ -401,7 +632,7 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	synchronized private List<WB_Shape> getSelected(Rectangle r)
 	{
 		LinkedList<WB_Shape> selected = new LinkedList<WB_Shape>();
-		for (WB_Shape obj : WBObjs)			
+		for (WB_Shape obj : shapeIndex.getCandidates(r))
 		{
 			if (obj.intersects(r)) // could be obj.contains() just as sensibly
 				selected.add(obj);
@@ -425,8 +656,10 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	 * @param shape - the shape to be deleted
 	 */
 	synchronized private void deleteShape(WB_Shape shape) {
-		WBObjs.remove(shape);
-		man.pushToNetwork(BytePacker.convertTo_byte_Array(BytePacker.convertIntToBytes(shape.hashCode())), ShapeConstants.WB_REQUEST_TYPE.OBJECT_DELETION);
+		removeFromBoard(shape);
+		byte[] contents = new byte[ShapeConstants.INTEGER_BYTE_SIZE];
+		BytePacker.convertIntToBytes(shape.hashCode(), contents, 0);
+		man.pushToNetwork(contents, ShapeConstants.WB_REQUEST_TYPE.OBJECT_DELETION);
 	}
 
 	/**
@@ -437,6 +670,8 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	synchronized public void setUserMode(MODE newMode) 
 	{
 		commitTypedText();
+		closeStroke();
+		endDrag();
 		userMode = newMode;
 		points.clear();	
 		selections.clear();
@@ -453,9 +688,11 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	 * @param manager
 	 */
 	public void setTransactionManager(LocalTransactionManager manager) throws TransactionManagerAlreadySetException{
-		if (this.man == null)
+		if (this.man == null) {
 			this.man = manager;
-		else
+			netDeliveryThread = new NetworkShapeDeliveryThread(this, manager);
+			netDeliveryThread.start();
+		} else
 			throw new TransactionManagerAlreadySetException();			
 	}
 	
@@ -476,6 +713,89 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		coords.clear();
 	}
 	
+	/***
+	 * Adds the latest of the points to the stroke being drawn, putting the stroke on the 
+	 * board (and the network) once it has two points. The new points are sent in batches.
+	 */
+	private synchronized void extendStroke()
+	{
+		if (openStroke == null) {
+			if (points.size() < 2)
+				return;
+			openStroke = new WB_Polyline(new ArrayList<Point>(points));
+			addShape(openStroke);
+			openStrokeSent = points.size();
+			strokeFlushTimer.start();
+			return;
+		}
+		if (points.size() - openStrokeSent >= STROKE_FLUSH_POINTS)
+			flushStroke();
+	}
+	
+	/***
+	 * Adds the open stroke's waiting points to it and sends them. Freehand points are
+	 * simplified first, as far as the user's stroke tolerance allows.
+	 */
+	private synchronized void flushStroke()
+	{
+		if (openStroke == null || openStrokeSent >= points.size())
+			return;
+		// start from the last point added, so the simplified piece joins on to the stroke
+		List<Point> waiting = points.subList(openStrokeSent-1, points.size());
+		double tolerance = (userMode == MODE.FREEHAND) ? window.getConfig().getStrokeTolerance() : 0;
+		List<Point> added = PathSimplifier.simplify(waiting, tolerance);
+		added.remove(0);
+
+		// the waiting points were drawn over the board, and the added ones may differ from them
+		Rectangle drawn = new Rectangle(waiting.get(0));
+		for (Point p : waiting)
+			drawn.add(p);
+		drawn.grow(PAINT_MARGIN, PAINT_MARGIN);
+		openStrokeSent = points.size();
+		repaintRegion(drawn, appendOnBoard(openStroke, added));
+
+		man.pushToNetwork(ShapeEncoder.encodeAppendedPoints(openStroke.hashCode(), added, 0),
+				ShapeConstants.WB_REQUEST_TYPE.OBJECT_GEOM_MODIFICATION);
+	}
+	
+	/***
+	 * Finishes the open stroke, if there is one, sending its last points
+	 * @return true if there was an open stroke
+	 */
+	private synchronized boolean closeStroke()
+	{
+		if (openStroke == null)
+			return false;
+		flushStroke();
+		strokeFlushTimer.stop();
+		openStroke = null;
+		openStrokeSent = 0;
+		points.clear();
+		return true;
+	}
+	
+	/***
+	 * Sends how far the dragged selection has moved since that was last sent, as one packet
+	 */
+	private synchronized void flushDrag()
+	{
+		if (dragUnsentX == 0 && dragUnsentY == 0)
+			return;
+		sendTranslateShapes(selections, dragUnsentX, dragUnsentY);
+		dragUnsentX = 0;
+		dragUnsentY = 0;
+	}
+	
+	/***
+	 * Finishes dragging the selection, if it's being dragged, sending the rest of its movement
+	 */
+	private synchronized void endDrag()
+	{
+		flushDrag();
+		dragSendTimer.stop();
+		hasMoved = false;
+	}
+	
 	private void addPolygon(List<Point> coords)
 	{
 		addShape(new WB_Polygon(coords));
@@ -496,9 +816,9 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 
 	private synchronized void addShape(WB_Shape shape)
 	{
-		shape.putAttribute("WB_COLOUR", Integer.toString(window.getConfig().getUserColour().getRGB()));
-		WBObjs.add(shape);
-		man.pushToNetwork(BytePacker.convertTo_byte_Array(shape.pack()), ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION);
+		shape.setColour(window.getConfig().getUserColour());
+		addToBoard(shape);
+		man.pushToNetwork(shape.pack(), ShapeConstants.WB_REQUEST_TYPE.OBJECT_CREATION);
 	}
 
 	/**
@@ -512,61 +832,85 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 	}
 
 	/**
-	 * send packet to scale the shapes for other users
+	 * scale the shapes, each about its own centre, here and for other users
 	 * @param shapes - list of the shapes
-	 * @param dx - diff in x axis
-	 * @param dy - diff in y axis
+	 * @param scaleX - factor in x axis, times ShapeConstants.TRANSFORM_UNIT
+	 * @param scaleY - factor in y axis, times ShapeConstants.TRANSFORM_UNIT
 	 */
-	@SuppressWarnings("unused")
-	private void sendScaleShapes(List<WB_Shape> shapes, int scaleX, int scaleY) {
-		sendTransformPacket(ShapeConstants.GEOM_TRANSFORM_TYPE.SCALE, shapes, scaleX, scaleY);	
+	private void scaleShapes(List<WB_Shape> shapes, int scaleX, int scaleY) {
+		transformShapes(ShapeConstants.GEOM_TRANSFORM_TYPE.SCALE, shapes, scaleX, scaleY);	
 	}
 
 	/**
-	 * send packet to rotate the shape for other users
-	 * @param shape - shape to rotate
-	 * @param dx - diff in x axis
-	 * @param dy - diff in y axis
+	 * rotate the shapes, each about its own centre, here and for other users
+	 * @param shapes - list of the shapes
+	 * @param theta - clockwise angle in degrees, times ShapeConstants.TRANSFORM_UNIT
 	 */
-	@SuppressWarnings("unused")
-	private void sendRotateShape(WB_Shape shape, int theta) {
-		List<WB_Shape> shapes = new ArrayList<WB_Shape>();
-		shapes.add(shape);
-		sendTransformPacket(ShapeConstants.GEOM_TRANSFORM_TYPE.ROTATION, shapes, theta, 0);	
+	private void rotateShapes(List<WB_Shape> shapes, int theta) {
+		transformShapes(ShapeConstants.GEOM_TRANSFORM_TYPE.ROTATION, shapes, theta, 0);	
 	}
 
+	private synchronized void transformShapes(ShapeConstants.GEOM_TRANSFORM_TYPE transType, List<WB_Shape> shapes, int arg1, int arg2) {
+		Rectangle before = getPaintedRegion(shapes);
+		for (WB_Shape s : shapes) {
+			transformOnBoard(s, (byte) transType.ordinal(), arg1, arg2);
+		}
+		repaintRegion(before, getPaintedRegion(shapes));
+		sendTransformPacket(transType, shapes, arg1, arg2);
+	}
+
+	/***
+	 * Sends one packet for the transformation, however many shapes it's of, so it's sequenced
+	 * once and other users see the shapes change together
+	 */
 	private synchronized void sendTransformPacket(ShapeConstants.GEOM_TRANSFORM_TYPE transType, List<WB_Shape> shapes, int arg1, int arg2) {
-		for(WB_Shape s : shapes) {
-			ArrayList<Byte> contents = new ArrayList<Byte>();
-			contents.addAll(BytePacker.convertIntToBytes(s.hashCode()));
-			//add transform type
-			contents.add(new Integer(transType.ordinal()).byteValue());
-			contents.addAll(BytePacker.convertIntToBytes(arg1));
-			contents.addAll(BytePacker.convertIntToBytes(arg2));
-			man.pushToNetwork(BytePacker.convertTo_byte_Array(contents), ShapeConstants.WB_REQUEST_TYPE.OBJECT_GEOM_MODIFICATION);
+		if (shapes.isEmpty())
+			return;
+		int others = shapes.size() - 1;
+		int size = 3*ShapeConstants.INTEGER_BYTE_SIZE + 1;
+		if (others > 0)
+			size += (1 + others)*ShapeConstants.INTEGER_BYTE_SIZE;
+		ByteBuffer contents = ByteBuffer.allocate(size);
+		Iterator<WB_Shape> it = shapes.iterator();
+		contents.putInt(it.next().hashCode());
+		//add transform type
+		contents.put((byte) transType.ordinal());
+		contents.putInt(arg1);
+		contents.putInt(arg2);
+		if (others == 0) {
+			man.pushToNetwork(contents.array(), ShapeConstants.WB_REQUEST_TYPE.OBJECT_GEOM_MODIFICATION);
+			return;
+		}
+		contents.putInt(others);
+		while (it.hasNext()) {
+			contents.putInt(it.next().hashCode());
 		}
+		man.pushToNetwork(contents.array(), ShapeConstants.WB_REQUEST_TYPE.MULTI_GEOM_MODIFICATION);
 	}
 
 	/**
 	 * get the byte representation of all the objects currently in the canvas
-	 * @return a list of lists, where each list contains the bytes for an individual object, from pack()
+	 * @return a list of arrays, where each array contains the bytes for an individual object, from pack(),
+	 * without the object reference
 	 */
-	public List<List<Byte>> getByteRepresentation() {
-		List<List<Byte>> byteList = new ArrayList<List<Byte>>(WBObjs.size());
+	public synchronized List<byte[]> getByteRepresentation() {
+		List<byte[]> byteList = new ArrayList<byte[]>(WBObjs.size());
 		for(WB_Shape shape : WBObjs) {
-			ArrayList<Byte> packet = shape.pack();
-			byteList.add(packet.subList(4, packet.size()));
+			byte[] packet = shape.pack();
+			byte[] contents = new byte[packet.length - ShapeConstants.INTEGER_BYTE_SIZE];
+			System.arraycopy(packet, ShapeConstants.INTEGER_BYTE_SIZE, contents, 0, contents.length);
+			byteList.add(contents);
 		}
 		return byteList;
 	}
 
 	/**
 	 * load objects into the whiteboard
-	 * @param byteList - list of lists, where each list is the bytes from an object, from pack()
+	 * @param byteList - list of arrays, where each array is the bytes from an object, from getByteRepresentation()
 	 */
-	public void loadFromByteRepresentation(List<List<Byte>> byteList) {
-		for(List<Byte> list : byteList) {
-			WB_Shape n = BytePacker.createWB_ShapeFromPacket(BytePacker.convertTo_byte_Array(list), 0);
+	public void loadFromByteRepresentation(List<byte[]> byteList) {
+		for(byte[] contents : byteList) {
+			WB_Shape n = BytePacker.createWB_ShapeFromPacket(contents, 0);
 			if (null != n) {
 				addShape(n);
 			}
@@ -626,6 +970,13 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		mItem.addActionListener(this);
 		popupMenu.add(mItem);
 
+		for (String transform : new String[] { "Rotate Shape", "Enlarge Shape", "Shrink Shape" }) {
+			mItem = new JMenuItem(transform);
+			mItem.setActionCommand(mItem.getText());
+			mItem.addActionListener(this);
+			popupMenu.add(mItem);
+		}
+
 		popupMenu.show(this, p.x, p.y);
 	}
 
@@ -641,6 +992,13 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 			setSelectionShapes(getSelected(selectPoint));
 			selectPoint = null;
 			deleteSelected();
+		} else if(arg.equals("Rotate Shape")) {
+			// a quarter turn clockwise
+			rotateShapes(getSelected(selectPoint), 90 * ShapeConstants.TRANSFORM_UNIT);
+		} else if(arg.equals("Enlarge Shape")) {
+			scaleShapes(getSelected(selectPoint), 5 * ShapeConstants.TRANSFORM_UNIT / 4, 5 * ShapeConstants.TRANSFORM_UNIT / 4);
+		} else if(arg.equals("Shrink Shape")) {
+			scaleShapes(getSelected(selectPoint), 4 * ShapeConstants.TRANSFORM_UNIT / 5, 4 * ShapeConstants.TRANSFORM_UNIT / 5);
 		} else if(arg.equals("Inspect Shape (DEBUG)")) {
 			WB_Shape shape = getSelected(selectPoint).get(0);
 			showMessage("DEBUG", "Object Hashcode: " + shape.hashCode() + ", type: " + shape.toString());
@@ -692,9 +1050,11 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 			case POLYLINE :			
 				// if it's a right-click, we've ended the polyline
 				if (arg0.getButton() == MouseEvent.BUTTON3) {
-					addPolyLine(points);
+					if (!closeStroke())
+						addPolyLine(points);
 				} else {
 					points.add(loc);
+					extendStroke();
 				}
 				break;
 			case TEXT :
@@ -748,10 +1108,7 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 							setSelectionShapes(getSelected(new WB_Line(loc, selectPoint).getBounds()));					
 						}
 					} else {
-						int dx = mouseMovePoint.x - selectPoint.x;
-						int dy = mouseMovePoint.y - selectPoint.y;
-						sendTranslateShapes(selections, dx, dy);
-						hasMoved = false;
+						endDrag();
 					}
 				}
 				break;
@@ -767,9 +1124,11 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 				addPolygon(points);
 				break;
 			case FREEHAND:
+				if (closeStroke())
+					break;
 				if (points.size() == 1)
 					addPoint(points);
-				else
+				else if (!points.isEmpty())
 					addPolyLine(points);
 				break;
 			// anything else, we just shouldn't care. 
@@ -795,25 +1154,37 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 		switch(getUserMode()) {
 			case SELECT:
 				if(selections.isEmpty()) {
+					Rectangle before = (selectionRectangle == null) ? null : getPaintedRegion(selectionRectangle);
 					selectionRectangle = new WB_Line(mouseMovePoint, arg0.getPoint());
+					Rectangle after = getPaintedRegion(selectionRectangle);
+					repaintRegion((before == null) ? after : before, after);
 				} else {
 					//translate all selected items to be dragged
 					int dx = arg0.getPoint().x - mouseMovePoint.x;
 					int dy = arg0.getPoint().y - mouseMovePoint.y;
+					Rectangle before = getPaintedRegion(selections);
 					for(WB_Shape s : selections) {
-						s.translate(dx, dy);
+						translateOnBoard(s, dx, dy);
 					}
+					dragUnsentX += dx;
+					dragUnsentY += dy;
+					if (!hasMoved)
+						dragSendTimer.start();
 					hasMoved = true;
 					mouseMovePoint.move(arg0.getPoint().x, arg0.getPoint().y);
+					repaintRegion(before, getPaintedRegion(selections));
 				}
-				this.repaint();
 				break;
 			case FREEHAND:
+				Point last = points.isEmpty() ? arg0.getPoint() : points.get(points.size()-1);
 				points.add(arg0.getPoint());
-				this.repaint();
+				extendStroke();
+				Rectangle segment = getPaintedRegion(last, arg0.getPoint());
+				repaintRegion(segment, segment);
 				break;
 			case RECTANGLE:
 				if(points.size() > 1) {
+					Rectangle before = getPaintedRegion(points.get(0), points.get(1));
 					points.set(1, arg0.getPoint());
 					if(arg0.isShiftDown()) {
 						//maintain the ratio for the sides if shift is down
@@ -822,7 +1193,7 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 						//move point 1 to that place
 						points.get(1).move(points.get(0).x + maxLength, points.get(0).y + maxLength);
 					}
-					this.repaint();
+					repaintRegion(before, getPaintedRegion(points.get(0), points.get(1)));
 				}
 				break;
 		}
@@ -833,7 +1204,30 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 			return;
 		}
 		mouseMovePoint.move(arg0.getPoint().x, arg0.getPoint().y);
-		this.repaint();
+		//only the line from the last point to the mouse follows the mouse, so only it needs repainting
+		Rectangle before = rubberBand;
+		rubberBand = getRubberBandRegion();
+		if (before == null && rubberBand == null)
+			return;
+		repaintRegion((before == null) ? rubberBand : before, (rubberBand == null) ? before : rubberBand);
+	}
+	
+	/***
+	 * 
+	 * @return the area of the line paintComponent() draws from the last point to the mouse, 
+	 * 		   or null if it doesn't draw one
+	 */
+	private Rectangle getRubberBandRegion() {
+		if (points.isEmpty())
+			return null;
+		switch (userMode) {
+			case RECTANGLE:
+			case TEXT:
+			case FREEHAND:
+				return null;
+			default:
+				return getPaintedRegion(points.get(points.size()-1), mouseMovePoint);
+		}
 	}
 
 	/*
@@ -885,6 +1279,8 @@ public class Canvas extends JPanel implements ActionListener, Printable, MouseLi
 			this.setBackground(Canvas.DRAW_COLOR);
 		else {
 			this.setBackground(Canvas.NO_DRAW_COLOR);
+			closeStroke();
+			endDrag();
 			points.clear();
 			repaint();
 		}
@@ -0,0 +1,67 @@
+package whiteboard.gui.whiteboard;
+
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import whiteboard.core.Pair;
+import whiteboard.core.entities.WB_Chat;
+import whiteboard.core.transaction.LocalTransactionManager;
+import whiteboard.networking.Peer;
+import whiteboard.networking.WhiteboardPeer;
+
+/**
+ * Thread for delivering chat from the transaction manager to the public and private chats.
+ * It blocks until messages are ready, then shows everything that's ready in one batch on
+ * the event dispatch thread.
+ */
+public class NetworkChatDeliveryThread extends Thread {
+	private WhiteboardWindow window;
+	private LocalTransactionManager man;
+	private volatile boolean isRunning = true;
+
+	/**
+	 * constructor
+	 * @param window - window containing the panels to update for chat
+	 * @param man - where the chat messages come from
+	 */
+	public NetworkChatDeliveryThread(WhiteboardWindow window, LocalTransactionManager man) {
+		super("NetworkChatDeliveryThread");
+		this.window = window;
+		this.man = man;
+	}
+
+	public void run() {
+		while(isRunning) {
+			final List<Pair<Peer, WB_Chat>> batch;
+			try {
+				batch = man.takeChatFromNetwork();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					for (Pair<Peer, WB_Chat> pair : batch) {
+						deliver(pair);
+					}
+				}
+			});
+		}
+	}
+
+	private void deliver(Pair<Peer, WB_Chat> pair) {
+		switch(pair.getSecond().getChatType()) {
+		case CHAT_PRIVATE:
+			window.getUserListPanel().appendPrivateTextMessage((WhiteboardPeer) pair.getFirst(), pair.getSecond().getChatMsg());
+			break;
+		case CHAT_PUBLIC:
+			window.getChatPanel().appendText((WhiteboardPeer) pair.getFirst(), pair.getSecond().getChatMsg());
+			break;
+		}
+	}
+
+	public void quit() {
+		isRunning = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,51 @@
+package whiteboard.gui.whiteboard;
+
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+import whiteboard.core.transaction.LocalTransactionManager;
+import whiteboard.core.transaction.ShapePacket;
+
+/**
+ * Thread for delivering shapes from the transaction manager to the canvas. It blocks until
+ * shapes are ready, then hands everything that's ready to the canvas in one batch on the 
+ * event dispatch thread.
+ */
+public class NetworkShapeDeliveryThread extends Thread {
+	private Canvas canvas;
+	private LocalTransactionManager man;
+	private volatile boolean isRunning = true;
+
+	/**
+	 * constructor
+	 * @param canvas - canvas to update
+	 * @param man - where the shapes come from
+	 */
+	public NetworkShapeDeliveryThread(Canvas canvas, LocalTransactionManager man) {
+		super("NetworkShapeDeliveryThread");
+		this.canvas = canvas;
+		this.man = man;
+	}
+
+	public void run() {
+		while(isRunning) {
+			final List<ShapePacket> batch;
+			try {
+				batch = man.takeShapesFromNetwork();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					canvas.addPackets(batch);
+				}
+			});
+		}
+	}
+
+	public void quit() {
+		isRunning = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * File: TileCache.java
+ */
+
+package whiteboard.gui.whiteboard;
+
+import java.awt.AlphaComposite;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import whiteboard.core.entities.WB_Shape;
+import whiteboard.core.index.ShapeGrid;
+
+/**
+ * A back-buffer of the committed shapes on the canvas, cut into tiles. Painting 
+ * copies tiles instead of redrawing shapes, so the cost of drawing the stroke the 
+ * user is working on doesn't depend on what else is on the board.
+ * 
+ * Tiles are rendered when they're first painted and thrown away when a shape that 
+ * touches them is added, removed or moved (see invalidate()). Only the most recently
+ * used tiles are kept: enough to cover the visible area, and a few more.
+ * 
+ * On a scaled (HiDPI) display the tiles are rendered at the device resolution, so 
+ * they're as sharp as shapes drawn straight onto the canvas. 
+ */
+public class TileCache {
+	/** width and height of a tile, in pixels */
+	public static final int TILE_SIZE = 256;
+	/** tiles kept beyond those the visible area needs, so scrolling back a little doesn't render them again */
+	public static final int SPARE_TILES = 16;
+	/** most tiles kept before the visible area is known */
+	private static final int DEFAULT_MAX_TILES = 64;
+
+	/** the component the tiles are painted on; supplies the font and image format */
+	private final Component owner;
+	/** where the committed shapes come from */
+	private final ShapeGrid shapes;
+	/** how far outside its bounds a shape may paint */
+	private final int margin;
+	private boolean antiAliased = false;
+	/** most tiles kept at once */
+	private int maxTiles = DEFAULT_MAX_TILES;
+	/** the size of the visible area maxTiles was worked out for */
+	private int visibleWidth = -1, visibleHeight = -1;
+	/** the device pixels per canvas pixel the tiles were rendered at */
+	private double scaleX = 1, scaleY = 1;
+
+	/** the rendered tiles, least recently used first */
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<Long, BufferedImage>(DEFAULT_MAX_TILES, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+			if (size() > maxTiles) {
+				eldest.getValue().flush();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * @param owner the component the tiles will be painted on
+	 * @param shapes the committed shapes
+	 * @param margin how far outside its bounds a shape may paint
+	 */
+	public TileCache(Component owner, ShapeGrid shapes, int margin) {
+		this.owner = owner;
+		this.shapes = shapes;
+		this.margin = margin;
+	}
+
+	/**
+	 * Keeps enough tiles to cover a visible area of the given size, however it lines up 
+	 * with the tiles, and SPARE_TILES more. Nothing changes unless the size has.
+	 * @param width
+	 * @param height
+	 */
+	public synchronized void setVisibleSize(int width, int height) {
+		if (width == visibleWidth && height == visibleHeight)
+			return;
+		visibleWidth = width;
+		visibleHeight = height;
+		int across = (Math.max(width, 1) + TILE_SIZE - 1) / TILE_SIZE + 1;
+		int down = (Math.max(height, 1) + TILE_SIZE - 1) / TILE_SIZE + 1;
+		maxTiles = across * down + SPARE_TILES;
+		// drop the least recently used tiles if the limit went down
+		Iterator<BufferedImage> it = tiles.values().iterator();
+		while (tiles.size() > maxTiles && it.hasNext()) {
+			it.next().flush();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Paints the committed shapes in the clip area, rendering any tiles that aren't cached.
+	 * @param g
+	 * @param clip the area to paint
+	 */
+	public synchronized void paint(Graphics g, Rectangle clip) {
+		useDeviceScale(((Graphics2D) g).getTransform());
+		int x0 = tileOf(clip.x), y0 = tileOf(clip.y);
+		int x1 = tileOf(clip.x + clip.width - 1), y1 = tileOf(clip.y + clip.height - 1);
+		for (int x = x0; x <= x1; ++x) {
+			for (int y = y0; y <= y1; ++y) {
+				Long k = key(x, y);
+				BufferedImage tile = tiles.get(k);
+				if (tile == null) {
+					tile = render(x, y);
+					tiles.put(k, tile);
+				}
+				// a tile rendered at the device resolution is drawn back at its size on the canvas
+				g.drawImage(tile, x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE, null);
+			}
+		}
+	}
+
+	/**
+	 * Drops the tiles that touch r, so they're rendered again next time they're painted.
+	 * @param r the area that changed, or null if it isn't known
+	 */
+	public synchronized void invalidate(Rectangle r) {
+		if (r == null) {
+			invalidateAll();
+			return;
+		}
+		int x0 = tileOf(r.x), y0 = tileOf(r.y);
+		int x1 = tileOf(r.x + r.width), y1 = tileOf(r.y + r.height);
+		for (int x = x0; x <= x1; ++x) {
+			for (int y = y0; y <= y1; ++y) {
+				BufferedImage tile = tiles.remove(key(x, y));
+				if (tile != null)
+					tile.flush();
+			}
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		for (Iterator<BufferedImage> it = tiles.values().iterator(); it.hasNext();)
+			it.next().flush();
+		tiles.clear();
+	}
+
+	public synchronized void setAntiAliased(boolean antiAliased) {
+		if (this.antiAliased != antiAliased) {
+			this.antiAliased = antiAliased;
+			invalidateAll();
+		}
+	}
+
+	/**
+	 * Renders tiles at the scale of the graphics they're painted on (a HiDPI display's), 
+	 * throwing the cached ones away if that has changed, e.g. the window moved to another screen.
+	 * @param deviceTransform
+	 */
+	private void useDeviceScale(AffineTransform deviceTransform) {
+		// only a plain scale can be rendered into a tile; anything else is drawn at 1:1
+		double sx = 1, sy = 1;
+		if ((deviceTransform.getType() & (AffineTransform.TYPE_GENERAL_ROTATION | AffineTransform.TYPE_QUADRANT_ROTATION 
+				| AffineTransform.TYPE_FLIP | AffineTransform.TYPE_GENERAL_TRANSFORM)) == 0) {
+			sx = deviceTransform.getScaleX();
+			sy = deviceTransform.getScaleY();
+		}
+		if (sx != scaleX || sy != scaleY) {
+			scaleX = sx;
+			scaleY = sy;
+			invalidateAll();
+		}
+	}
+
+	/**
+	 * Draws every shape that touches tile (x, y) into a new image.
+	 */
+	private BufferedImage render(int x, int y) {
+		BufferedImage tile = createImage();
+		Graphics2D g = tile.createGraphics();
+		try {
+			// start from a clear (transparent) tile, so the background shows through
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, tile.getWidth(), tile.getHeight());
+			g.setComposite(AlphaComposite.SrcOver);
+			if (antiAliased)
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setFont(owner.getFont());
+			g.setColor(owner.getForeground());
+			g.scale(scaleX, scaleY);
+			g.translate(-x * TILE_SIZE, -y * TILE_SIZE);
+			Rectangle area = new Rectangle(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+			g.setClip(area);
+			area.grow(margin, margin);
+			for (WB_Shape shape : shapes.getCandidates(area)) {
+				shape.draw(g);
+			}
+		} finally {
+			g.dispose();
+		}
+		return tile;
+	}
+
+	private BufferedImage createImage() {
+		int width = (int) Math.ceil(TILE_SIZE * scaleX);
+		int height = (int) Math.ceil(TILE_SIZE * scaleY);
+		GraphicsConfiguration gc = owner.getGraphicsConfiguration();
+		if (gc != null)
+			return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+
+	private static int tileOf(int coord) {
+		return (int) Math.floor((double) coord / TILE_SIZE);
+	}
+
+	private static Long key(int x, int y) {
+		return Long.valueOf((((long) x) << 32) | (y & 0xFFFFFFFFL));
+	}
+}
@@ -12,6 +12,7 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -53,7 +54,7 @@ public class WhiteboardWindow extends BasicFrame {
 	private VenusProtocol venusProtocol;
 	private List<CloseableThread> threads = new ArrayList<CloseableThread>();
 	private TransactionManager transMan;
-	private NetworkChatPollThread chatPollThread;
+	private NetworkChatDeliveryThread chatDeliveryThread;
 	private final WhiteboardCore core;
 	
 	//GUI COMPONENTS
@@ -97,6 +98,8 @@ public class WhiteboardWindow extends BasicFrame {
 			//initialize tansaction manager
 			transMan = new TransactionManager(wCore.getHead(), canvas, venusProtocol);
 			canvas.setTransactionManager(transMan);
+			chatDeliveryThread = new NetworkChatDeliveryThread(this, transMan);
+			chatDeliveryThread.start();
 
 			// Get password if needed
 			if ((wCore.getPermissionLevel() == WhiteboardCore.WB_PERM_LEVEL.LOCKED) && !config.getUserPeer().getPermissionLevel().equals(WhiteboardPeer.PERM_LEVEL.OWNER)) {
@@ -225,10 +228,6 @@ public class WhiteboardWindow extends BasicFrame {
 
 		// Venus stuff
 		venusProtocol = new VenusProtocol((WhiteboardConfiguration) getConfig(), this);
-
-		//chat polling thread
-		chatPollThread = new NetworkChatPollThread(this);
-		chatPollThread.start();
 	}
 
 	/**
@@ -274,16 +273,14 @@ public class WhiteboardWindow extends BasicFrame {
 			try {
 				//create stream to output file
 				FileOutputStream out = new FileOutputStream(save.getSelectedFile());
-				List<List<Byte>> byteList = canvas.getByteRepresentation();
-				for(List<Byte> list : byteList) {
+				List<byte[]> byteList = canvas.getByteRepresentation();
+				byte[] intBytes = new byte[4];
+				for(byte[] contents : byteList) {
 					//write out number of bytes in this object
-					for(Byte b : BytePacker.convertIntToBytes(list.size())) {
-						out.write(b);
-					}
+					BytePacker.convertIntToBytes(contents.length, intBytes, 0);
+					out.write(intBytes);
 					//write out actual data
-					for(Byte b : list) {
-						out.write(b);
-					}
+					out.write(contents);
 				}
 				out.close();
 			} catch (IOException ioe) {
@@ -302,10 +299,9 @@ public class WhiteboardWindow extends BasicFrame {
 
 		if (load.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
 			try {
-				List<List<Byte>> byteList = new ArrayList<List<Byte>>();
+				List<byte[]> byteList = new ArrayList<byte[]>();
 				//get the file stream of the file
-				FileInputStream iStream = new FileInputStream(load.getSelectedFile());
-				List<Byte> list;
+				DataInputStream iStream = new DataInputStream(new FileInputStream(load.getSelectedFile()));
 				//array to hold actual data
 				byte[] objData;
 				//array to hold byte value of integer
@@ -315,16 +311,10 @@ public class WhiteboardWindow extends BasicFrame {
 				while(iStream.read(intBytes) >= 0) {
 					//get the number of bytes in the object
 					numBytes = BytePacker.convertBytesToInt(intBytes, 0);
-					list = new ArrayList<Byte>(numBytes);
 					objData = new byte[numBytes];
 					//read in the data, add to the list
-					if(iStream.read(objData) >= 0) {
-						for(byte b : objData) {
-							list.add(b);
-						}
-					}
-					//add the completed byte list to the whole arraylist
-					byteList.add(list);
+					iStream.readFully(objData);
+					byteList.add(objData);
 				}
 				//close stream
 				iStream.close();
@@ -343,6 +333,9 @@ public class WhiteboardWindow extends BasicFrame {
 		for (CloseableThread closeableThread : threads) {
 			closeableThread.close();
 		}
+		if (null != venusProtocol) {
+			venusProtocol.close();
+		}
 	}
 
 	/** method to safely exit program, close all connections and windows, etc */
@@ -353,10 +346,10 @@ public class WhiteboardWindow extends BasicFrame {
 			userListPanel.closeAllPrivateChats();
 		}
 		if(canvas != null) {
-			canvas.stopPollThread();
+			canvas.stopDeliveryThread();
 		}
-		if(chatPollThread != null) {
-			chatPollThread.quit();
+		if(chatDeliveryThread != null) {
+			chatDeliveryThread.quit();
 		}
 		if(transMan != null) {
 			transMan.stopThreads();
@@ -15,6 +15,9 @@ import java.net.UnknownHostException;
  * @author patrick
  */
 public abstract class Peer {
+	/** bytes that start every frame; see VenusProtocol.SHAPE_HEADER */
+	protected static final byte[] FRAME_HEADER = "PACKET\n".getBytes();
+
 	protected String name;
 	protected InetAddress addr;
 	protected int port;
@@ -183,6 +186,24 @@ public abstract class Peer {
 	 */
 	public abstract void send(byte[] buf) throws IOException;
 
+	/**
+	 * Sends a payload with its "PACKET\n" + length header. Peers that can send the header
+	 * and payload without copying them together override this.
+	 * @param payload
+	 * @throws IOException
+	 */
+	public void sendFrame(byte[] payload) throws IOException {
+		byte[] frame = new byte[FRAME_HEADER.length + 4 + payload.length];
+		System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+		int i = FRAME_HEADER.length;
+		frame[i++] = (byte) (payload.length >>> 24);
+		frame[i++] = (byte) (payload.length >>> 16);
+		frame[i++] = (byte) (payload.length >>> 8);
+		frame[i++] = (byte) payload.length;
+		System.arraycopy(payload, 0, frame, i, payload.length);
+		send(frame);
+	}
+
 	/**
 	 * @param string
 	 */
@@ -4,19 +4,39 @@
 package whiteboard.networking;
 
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 
 /**
  * This class is for connecting to peers using a stream.
  * 
+ * A connection opened through a SocketChannel (connectThroughChannel(), or a socket 
+ * accepted through a ServerSocketChannel) can be handed over to another transport once 
+ * it's no longer needed for blocking reads, e.g. to a selector loop after a handshake. 
+ * From then on everything sent to the peer goes through that transport.
+ * 
  * @author patrick
  */
 public class StreamPeer extends Peer {
+	/** size of the write buffer; a frame this size or smaller goes out in one write */
+	public static final int WRITE_BUFFER_SIZE = 8192;
+
 	protected Socket socket;
+	/** buffered stream over the socket, made on first send */
+	private OutputStream out = null;
+	/** true to turn off Nagle's algorithm, so small writes (strokes) go out straight away */
+	private boolean tcpNoDelay = true;
+	/** scratch space for frame headers; only used while holding the lock */
+	private final byte[] frameHeader = new byte[FRAME_HEADER.length + 4];
+	/** the transport that has taken over the connection, or null if we still use the socket's streams */
+	private volatile Peer handedTo = null;
 
 	/**
 	 * @param name The name of the peer
@@ -75,6 +95,7 @@ public class StreamPeer extends Peer {
 		super(socket.getInetAddress(), socket.getPort());
 
 		this.socket = socket;
+		applyTcpNoDelay();
 	}
 
 	/*
@@ -84,6 +105,10 @@ public class StreamPeer extends Peer {
 	 */
 	@Override
 	public void close() throws IOException {
+		Peer transport = handedTo;
+		if (transport != null) {
+			transport.close();
+		}
 		if (!socket.isClosed()) {
 			socket.close();
 		}
@@ -95,12 +120,45 @@ public class StreamPeer extends Peer {
 	 * @see whiteboard.networking.Peer#connect()
 	 */
 	@Override
-	public void connect() throws IOException {
+	public synchronized void connect() throws IOException {
 		if (socket.isClosed() || !socket.isConnected()) {
 			socket = new Socket(addr, port);
+			out = null;
+			applyTcpNoDelay();
+		}
+	}
+
+	/**
+	 * Connects like connect(), but opens the socket through a SocketChannel, so the 
+	 * connection can be handed over later (see handOver()).
+	 * @throws IOException
+	 */
+	public synchronized void connectThroughChannel() throws IOException {
+		if (socket.isClosed() || !socket.isConnected()) {
+			socket = SocketChannel.open(new InetSocketAddress(addr, port)).socket();
+			out = null;
+			applyTcpNoDelay();
 		}
 	}
 
+	/**
+	 * @return the channel the socket was opened through, or null if it wasn't
+	 */
+	public SocketChannel getChannel() {
+		return (null == socket) ? null : socket.getChannel();
+	}
+
+	/**
+	 * Hands the connection over to a transport that has taken over the socket's channel. 
+	 * From then on sends and close() go through it, and receive() can't be used.
+	 * Sends are synchronized on the peer, so a caller that holds the peer's lock while it 
+	 * takes the channel over (e.g. makes it non-blocking) can't catch one half way through.
+	 * @param transport
+	 */
+	public synchronized void handOver(Peer transport) {
+		handedTo = transport;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -128,6 +186,7 @@ public class StreamPeer extends Peer {
 	 */
 	@Override
 	public int receive(byte[] data) throws IOException {
+		checkNotHandedOver();
 		if (!isConnected()) {
 			connect();
 		}
@@ -148,6 +207,7 @@ public class StreamPeer extends Peer {
 //	@Override
 	public boolean receive(byte[] buffer, int bytesToRead) throws IOException
 	{
+		checkNotHandedOver();
 		if (!isConnected()) {
 			connect();
 		}
@@ -179,12 +239,54 @@ public class StreamPeer extends Peer {
 	 * @see whiteboard.networking.Peer#send(byte[])
 	 */
 	@Override
-	public void send(byte[] buf) throws IOException {
-		if (!isConnected()) {
-			connect();
+	public synchronized void send(byte[] buf) throws IOException {
+		if (handedTo != null) {
+			handedTo.send(buf);
+			return;
 		}
-		
-		socket.getOutputStream().write(buf);
+		OutputStream o = getOutput();
+		o.write(buf);
+		o.flush();
+	}
+
+	/**
+	 * Sends a payload with its "PACKET\n" + length header. The header and payload
+	 * go through the write buffer together, so a small frame is a single write.
+	 * @param payload
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void sendFrame(byte[] payload) throws IOException {
+		if (handedTo != null) {
+			handedTo.sendFrame(payload);
+			return;
+		}
+		OutputStream o = getOutput();
+		System.arraycopy(FRAME_HEADER, 0, frameHeader, 0, FRAME_HEADER.length);
+		int i = FRAME_HEADER.length;
+		frameHeader[i++] = (byte) (payload.length >>> 24);
+		frameHeader[i++] = (byte) (payload.length >>> 16);
+		frameHeader[i++] = (byte) (payload.length >>> 8);
+		frameHeader[i] = (byte) payload.length;
+		o.write(frameHeader);
+		o.write(payload);
+		o.flush();
+	}
+
+	/**
+	 * @return true if Nagle's algorithm is off for this peer
+	 */
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @param tcpNoDelay true for interactive traffic (send small writes straight away), false to 
+	 * let TCP coalesce them
+	 */
+	public synchronized void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		applyTcpNoDelay();
 	}
 
 	/**
@@ -192,5 +294,32 @@ public class StreamPeer extends Peer {
 	 */
 	private void init() {
 		socket = new Socket();
+		applyTcpNoDelay();
+	}
+
+	private void checkNotHandedOver() throws IOException {
+		if (handedTo != null) {
+			throw new IOException("Reads from " + this + " go to the transport it was handed to");
+		}
+	}
+
+	private OutputStream getOutput() throws IOException {
+		if (!isConnected()) {
+			connect();
+		}
+		if (out == null) {
+			out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+		}
+		return out;
+	}
+
+	private void applyTcpNoDelay() {
+		try {
+			if (socket != null && !socket.isClosed()) {
+				socket.setTcpNoDelay(tcpNoDelay);
+			}
+		} catch (IOException e) {
+			// not fatal, we just get Nagle's default
+		}
 	}
 }
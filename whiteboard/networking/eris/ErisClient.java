@@ -4,6 +4,18 @@
 package whiteboard.networking.eris;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import whiteboard.networking.NetworkingUtils;
 import whiteboard.networking.Peer;
@@ -12,9 +24,80 @@ import whiteboard.networking.StreamPeer;
 /**
  * @author patrick
  *
+ * Gets sequence numbers from the head. Requests don't wait for one another: each
+ * carries a correlation id and is sent as soon as it's made, and this thread reads
+ * the replies and completes whichever request each one answers. The blocking calls
+ * wait on those results for at most the request timeout.
  */
 public class ErisClient extends SequenceServer {
-	private Peer server;
+	/** a request waiting on its reply */
+	private abstract static class Request<V> extends PendingReply<V> {
+		/**
+		 * Completes the request from the head's reply
+		 * @param message the reply
+		 */
+		void receive(String[] message) {
+			try {
+				V value = parse(message);
+				if (value == null) {
+					fail(new IOException("Unexpected reply: " + message[0]));
+				} else if (!complete(value)) {
+					unwanted(value);
+				}
+			} catch (NumberFormatException nfe) {
+				fail(new IOException("Malformed reply"));
+			} catch (ArrayIndexOutOfBoundsException e) {
+				fail(new IOException("Malformed reply"));
+			}
+		}
+
+		/**
+		 * @param message
+		 * @return the value the reply carries, or null if it's the wrong kind of reply
+		 */
+		abstract V parse(String[] message);
+
+		/**
+		 * Called with the value of a reply that came after the request was given up on
+		 * @param value
+		 */
+		void unwanted(V value) {
+			// nothing to tidy up
+		}
+	}
+
+	/** a request for a SEQUENCE reply */
+	private static class SequenceRequest extends Request<Integer> {
+		@Override
+		Integer parse(String[] message) {
+			if ((2 <= message.length) && message[0].equals("SEQUENCE")) {
+				return Integer.valueOf(message[1]);
+			}
+			return null;
+		}
+	}
+
+	private volatile Peer server;
+	/** how long to wait for the head to answer, in milliseconds */
+	private volatile long requestTimeout = ErisProtocol.REQUEST_TIMEOUT_MILLISECONDS;
+	private final AtomicInteger nextId = new AtomicInteger(0);
+	/** requests that haven't been answered, by correlation id, oldest first */
+	private final Map<Integer, Request<?>> inFlight = new LinkedHashMap<Integer, Request<?>>();
+	/** released once the handshake has succeeded or failed */
+	private final CountDownLatch handshakeDone = new CountDownLatch(1);
+	private volatile boolean handshaken = false;
+	
+	/** the block of sequence numbers we're currently handing out */
+	private SequenceLease lease = null;
+	/** leases that expired before they were used up */
+	private List<SequenceLease> expiredLeases = new ArrayList<SequenceLease>();
+	/** 
+	 * leases granted after we'd stopped waiting for them. Added to by the reader thread, 
+	 * which mustn't take our lock: the thread holding it may be waiting on the reader
+	 */
+	private final ConcurrentLinkedQueue<SequenceLease> lateLeases = new ConcurrentLinkedQueue<SequenceLease>();
+	/** how many numbers to ask for next time; grows while we're busy, shrinks when idle */
+	private int leaseSize = ErisProtocol.LEASE_MIN_SIZE;
 	
 	public ErisClient(Peer server) {
 		super("ErisClient");
@@ -23,13 +106,60 @@ public class ErisClient extends SequenceServer {
 	}
 	
 	/**
-	 * Returns the next sequence number
+	 * Returns the next sequence number. Numbers come out of a locally held
+	 * lease, so the head is only asked when the lease is used up or expires.
 	 * 
 	 * @return the next sequence number, or -1 on failure
 	 */
 	@Override
-	public int getSequenceNum() {
-		return getSequence("GET");
+	public synchronized int getSequenceNum() {
+		if ((lease != null) && lease.isExpired()) {
+			retireLease();
+		}
+		
+		if ((lease == null) || !lease.hasNext()) {
+			if (lease != null) {
+				// used the whole lease before it expired, so ask for more next time
+				leaseSize = Math.min(2 * leaseSize, ErisProtocol.LEASE_MAX_SIZE);
+			}
+			lease = getSequenceRange(leaseSize);
+			if (lease == null) {
+				return -1;
+			}
+		}
+		
+		return lease.next();
+	}
+
+	/**
+	 * Hands out what's left of the current lease, then leases the rest in a 
+	 * single request (or as few as the head's LEASE_MAX_SIZE allows).
+	 * 
+	 * @return the numbers, fewer than count if the head couldn't be reached
+	 */
+	@Override
+	public synchronized int[] getSequenceNums(int count) {
+		int[] nums = new int[count];
+		int got = 0;
+		while (got < count) {
+			if ((lease != null) && lease.isExpired()) {
+				retireLease();
+			}
+			if ((lease == null) || !lease.hasNext()) {
+				if (lease != null) {
+					leaseSize = Math.min(2 * leaseSize, ErisProtocol.LEASE_MAX_SIZE);
+				}
+				// ask for the whole shortfall, but no less than we would for one number
+				lease = getSequenceRange(Math.max(count - got, leaseSize));
+				if (lease == null) {
+					break;
+				}
+			}
+			while ((got < count) && lease.hasNext()) {
+				nums[got++] = lease.next();
+			}
+		}
+		return (got == count) ? nums : truncate(nums, got);
 	}
 
 	/**
@@ -39,40 +169,236 @@ public class ErisClient extends SequenceServer {
 	 */
 	@Override
 	public int peekSequenceNum() {
-		return getSequence("PEEK");
+		Integer num = await(requestPeek());
+		return (num == null) ? -1 : num.intValue();
 	}
 
-	private int getSequence(String type) {
-		int sequenceNum = -1;
-		
+	/**
+	 * Asks the head for its next sequence number, without using a lease
+	 * @see whiteboard.networking.eris.SequenceServer#requestSequenceNum()
+	 */
+	@Override
+	public Future<Integer> requestSequenceNum() {
+		return send("GET SEQUENCE", new SequenceRequest());
+	}
+
+	/**
+	 * Asks the head for its last sequence number, without waiting for the answer
+	 * @return the number, once the head has answered
+	 */
+	public Future<Integer> requestPeek() {
+		return send("PEEK SEQUENCE", new SequenceRequest());
+	}
+
+	/**
+	 * Asks the head for a block of contiguous sequence numbers, without waiting for 
+	 * the answer. If the request is cancelled and the head answers anyway, the 
+	 * numbers are kept as an expired lease, so they get declared dead.
+	 * 
+	 * @param count how many numbers to ask for. The head may give us fewer.
+	 * @return the lease, once the head has answered
+	 */
+	public Future<SequenceLease> requestSequenceRange(int count) {
+		return send(ErisProtocol.RANGE_REQUEST + " " + count, new Request<SequenceLease>() {
+			@Override
+			SequenceLease parse(String[] message) {
+				if ((3 <= message.length) && message[0].equals(ErisProtocol.RANGE_REPLY)) {
+					int start = Integer.parseInt(message[1]);
+					int granted = Integer.parseInt(message[2]);
+					return new SequenceLease(getEpochNum(), start, granted, ErisProtocol.LEASE_TIMEOUT_MILLISECONDS);
+				}
+				return null;
+			}
+
+			@Override
+			void unwanted(SequenceLease late) {
+				lateLeases.add(late);
+			}
+		});
+	}
+
+	/**
+	 * @param timeout how long, in milliseconds, the blocking calls wait for the head to answer
+	 */
+	public void setRequestTimeout(long timeout) {
+		requestTimeout = timeout;
+	}
+
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	@Override
+	public synchronized List<SequenceLease> releaseExpiredSequenceNums() {
+		if ((lease != null) && lease.isExpired()) {
+			retireLease();
+		}
+		collectLateLeases();
+		List<SequenceLease> expired = expiredLeases;
+		expiredLeases = new ArrayList<SequenceLease>();
+		return expired;
+	}
+
+	@Override
+	public synchronized List<SequenceLease> releaseSequenceNums() {
+		if (lease != null) {
+			retireLease();
+		}
+		collectLateLeases();
+		List<SequenceLease> released = expiredLeases;
+		expiredLeases = new ArrayList<SequenceLease>();
+		return released;
+	}
+
+	@Override
+	public synchronized long getLeaseTimeRemaining() {
+		if ((lease == null) && expiredLeases.isEmpty() && lateLeases.isEmpty()) {
+			return -1;
+		}
+		return (lease == null) ? 0 : lease.getTimeRemaining();
+	}
+
+	/**
+	 * Moves leases that came too late to be used over to the expired ones
+	 */
+	private void collectLateLeases() {
+		SequenceLease late;
+		while ((late = lateLeases.poll()) != null) {
+			expiredLeases.add(late);
+		}
+	}
+
+	/**
+	 * Drops the current lease, keeping hold of it if it has numbers that still
+	 * need to be declared dead.
+	 */
+	private void retireLease() {
+		if (lease.hasNext()) {
+			expiredLeases.add(lease);
+			leaseSize = Math.max(leaseSize / 2, ErisProtocol.LEASE_MIN_SIZE);
+		}
+		lease = null;
+	}
+
+	/**
+	 * Asks the head for a block of contiguous sequence numbers, and waits for the answer
+	 * 
+	 * @param count how many numbers to ask for. The head may give us fewer.
+	 * @return the lease, or null on failure
+	 */
+	private SequenceLease getSequenceRange(int count) {
+		return await(requestSequenceRange(count));
+	}
+
+	/**
+	 * Waits for a reply for up to the request timeout, and gives up on it after that
+	 * @param reply
+	 * @return the result, or null if there wasn't one in time
+	 */
+	private <V> V await(Future<V> reply) {
+		try {
+			return reply.get(requestTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			reply.cancel(false);
+		} catch (ExecutionException ee) {
+			// failed, nothing to wait for
+		} catch (InterruptedException ie) {
+			reply.cancel(false);
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a request tagged with a new correlation id. Doesn't wait for the reply.
+	 * @param command the request line
+	 * @param request what to complete when the reply comes
+	 * @return the request
+	 */
+	private <V> Future<V> send(String command, Request<V> request) {
+		if (!awaitHandshake()) {
+			request.fail(new IOException("Not connected to the head"));
+			return request;
+		}
+		Peer peer = server;
+		if (peer == null) {
+			// closed
+			request.fail(new IOException("Closed"));
+			return request;
+		}
+		Integer id = Integer.valueOf(nextId.incrementAndGet());
+
 		// Create request message
 		StringBuffer messageBuffer = new StringBuffer();
-		messageBuffer.append(type + " SEQUENCE" + ErisProtocol.LINE_END);
+		messageBuffer.append(command + ErisProtocol.LINE_END);
+		messageBuffer.append(ErisProtocol.CORRELATION_ID + " " + id + ErisProtocol.LINE_END);
 		messageBuffer.append(ErisProtocol.LINE_END);
-		
-		// Create request packet
-		byte[] packet = messageBuffer.toString().getBytes();
-		
+
+		synchronized (inFlight) {
+			inFlight.put(id, request);
+		}
 		try {
-			// Send request packet
-			ErisProtocol.wrapAndSend(server, packet);
-			
-			// Get reply
-			byte[] reply = ErisProtocol.receivePacket( (StreamPeer)server);
-			
-			// Process reply
-			String[] message = NetworkingUtils.getMessage(reply, reply.length);
-			
-			if ((2 >= message.length) && message[0].equals("SEQUENCE")) {
-				sequenceNum = Integer.parseInt(message[1]);
-			}
+			// Send request packet; the reply is read by run()
+			ErisProtocol.wrapAndSend(peer, messageBuffer.toString().getBytes());
 		} catch (IOException ioe) {
-			return sequenceNum;
+			synchronized (inFlight) {
+				inFlight.remove(id);
+			}
+			request.fail(ioe);
 		}
+		return request;
+	}
 
-		return sequenceNum;
+	/**
+	 * @return true once the handshake has succeeded, false if it failed or didn't finish in time
+	 */
+	private boolean awaitHandshake() {
+		try {
+			return handshakeDone.await(requestTimeout, TimeUnit.MILLISECONDS) && handshaken;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
 	}
-	
+
+	/**
+	 * @param id the correlation id of a reply, or null if the head didn't send one
+	 * @return the request the reply answers, or null if it's already been given up on. 
+	 * A reply without an id answers the oldest request, since the head answers in order.
+	 */
+	private Request<?> takeRequest(String id) {
+		synchronized (inFlight) {
+			if (id == null) {
+				Iterator<Request<?>> oldest = inFlight.values().iterator();
+				if (!oldest.hasNext())
+					return null;
+				Request<?> request = oldest.next();
+				oldest.remove();
+				return request;
+			}
+			try {
+				return inFlight.remove(Integer.valueOf(id));
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Fails every request still waiting on a reply
+	 * @param cause
+	 */
+	private void failInFlight(IOException cause) {
+		List<Request<?>> requests;
+		synchronized (inFlight) {
+			requests = new ArrayList<Request<?>>(inFlight.values());
+			inFlight.clear();
+		}
+		for (Request<?> request : requests) {
+			request.fail(cause);
+		}
+	}
+
 	private boolean initiateHandshake() throws IOException {
 		boolean result = false;
 		
@@ -114,11 +440,15 @@ public class ErisClient extends SequenceServer {
 
 			// Send handshake
 			connected = initiateHandshake();
+			handshaken = connected;
 		}
 
 		return connected;
 	}
 
+	/**
+	 * Connects, then reads replies until the connection closes
+	 */
 	@Override
 	public void run() {
 		try {
@@ -127,7 +457,29 @@ public class ErisClient extends SequenceServer {
 			
 		} catch (final IOException ioe) {
 			//swallow exception
+		} finally {
+			handshakeDone.countDown();
+		}
+		
+		Peer peer = server;
+		try {
+			while (handshaken && (peer != null) && (peer == server)) {
+				byte[] reply = ErisProtocol.receivePacket((StreamPeer) peer);
+				String[] message = NetworkingUtils.getMessage(reply, reply.length);
+				if (message.length == 0)
+					continue;
+				
+				Request<?> request = takeRequest(ErisProtocol.getCorrelationId(message));
+				if (request != null) {
+					request.receive(message);
+				}
+			}
+		} catch (IOException ioe) {
+			// closed, or the head has gone
 		}
+		// nothing will read replies from here on, so later requests fail straight away
+		handshaken = false;
+		failInFlight(new IOException("Connection to the head closed"));
 	}
 
 	/* (non-Javadoc)
@@ -4,7 +4,6 @@
 package whiteboard.networking.eris;
 import java.io.IOException;
 
-import whiteboard.core.entities.BytePacker;
 import whiteboard.networking.Peer;
 import whiteboard.networking.StreamPeer;
 import whiteboard.networking.venus.VenusProtocol;
@@ -27,12 +26,42 @@ public class ErisProtocol {
 	public static final String HEADER_PREFIX = VenusProtocol.SHAPE_HEADER;
 	public static final int HEADER_SIZE = VenusProtocol.HEADERSIZE; 
 	
+	/** request a block of sequence numbers: "GET SEQUENCE RANGE n" */
+	public static final String RANGE_REQUEST = "GET SEQUENCE RANGE";
+	/** reply to a range request: "SEQUENCE RANGE", then the first number, then the count */
+	public static final String RANGE_REPLY = "SEQUENCE RANGE";
+	/** smallest and largest number of sequence numbers a client may lease at once */
+	public static final int LEASE_MIN_SIZE = 1;
+	public static final int LEASE_MAX_SIZE = 64;
+	/** how long a client may sit on leased numbers before they're declared dead */
+	public static final long LEASE_TIMEOUT_MILLISECONDS = 250;
+	/** 
+	 * a request may end with the line "ID n"; the head puts the same line at the end 
+	 * of its reply, so a client can have several requests in flight at once
+	 */
+	public static final String CORRELATION_ID = "ID";
+	/** how long a client waits for the head to answer, unless told otherwise */
+	public static final long REQUEST_TIMEOUT_MILLISECONDS = 2000;
+
 	public static final byte[] initHandshake = ("HELLO " + PROTOCOL + LINE_END +LINE_END).getBytes();
 	public static final String replyHandshakePREFIX = (PROTOCOL + "OK" + LINE_END + LINE_END);
 	public static byte[] receivePacket(StreamPeer peer) throws IOException {
 		return VenusProtocol.receivePacket(peer);
 	}
 	
+	/**
+	 * @param message a request or reply, split into lines
+	 * @return the correlation id it carries, or null if it has none (e.g. from an older peer)
+	 */
+	public static String getCorrelationId(String[] message) {
+		for (int i = 1; i < message.length; ++i) {
+			if (message[i].startsWith(CORRELATION_ID + " ")) {
+				return message[i].substring(CORRELATION_ID.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * 
 	 * @param peer
@@ -43,17 +72,11 @@ public class ErisProtocol {
 	 * sends it to the specified peer
 	 */
 	public static void wrapAndSend(Peer peer, byte[] replyAsBytes) throws IOException {
-		byte[] wrappedPacket = new byte[replyAsBytes.length + HEADER_SIZE];
-		for (int i=0; i<HEADER_PREFIX.getBytes().length; ++i)
-		{
-			wrappedPacket[i] = HEADER_PREFIX.getBytes()[i];
-		}
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(replyAsBytes.length), 
-										 wrappedPacket, HEADER_PREFIX.getBytes().length);
-		for (int i=0; i < replyAsBytes.length; ++i)
-		{
-			wrappedPacket[i+ HEADER_SIZE] = replyAsBytes[i];
+		if (peer instanceof StreamPeer) {
+			// header and payload go out together without building a new array
+			((StreamPeer) peer).sendFrame(replyAsBytes);
+		} else {
+			peer.send(VenusProtocol.appendVenusPacketHeader(replyAsBytes));
 		}
-		peer.send(wrappedPacket);
 	}
 }
@@ -4,87 +4,60 @@
 package whiteboard.networking.eris;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
-import whiteboard.core.CloseableThread;
 import whiteboard.networking.NetworkingUtils;
 import whiteboard.networking.Peer;
-import whiteboard.networking.StreamPeer;
+import whiteboard.networking.nio.ChannelPeer;
+import whiteboard.networking.nio.FrameHandler;
+import whiteboard.networking.nio.SelectorLoop;
 
 /**
  * @author patrick
+ * 
+ * Hands out sequence numbers to the other peers. Every client is served by one
+ * SelectorLoop thread rather than a thread of its own: a client's requests are 
+ * answered in the order they arrive, and it may send the next one before the last
+ * is answered. A request's correlation id, if it has one, is echoed in the reply.
  */
 public class ErisServer extends SequenceServer {
-	public class ErisListenThread extends CloseableThread {
-		private Peer peer;
-		private boolean listenDone = false;
-		
-		public ErisListenThread(Peer peer) {
-			super("ErisListenThread");
-			
-			this.peer = peer;
-		}
-		
-		@Override
-		public void run() {
-			while (!listenDone && (null != peer) && peer.isConnected() && !peer.isClosed()) {
-				try {
-					byte[] packet = ErisProtocol.receivePacket((StreamPeer) peer);
-					
-					String[] message = NetworkingUtils.getMessage(packet, packet.length);
-					int num = -1;
-					if ((1 <= message.length) && (message[0].equals("GET SEQUENCE"))) {
-						// Get the next sequence number
-						num = getSequenceNum();
-					} else if ((1 <= message.length) && (message[0].equals("PEEK SEQUENCE"))) {
-						// Get the next sequence number
-						num = peekSequenceNum();
-					}
-					if(num >= 0) {
-						// Create reply message
-						StringBuffer messageBuffer = new StringBuffer();
-						messageBuffer.append("SEQUENCE" + ErisProtocol.LINE_END);
-						messageBuffer.append(num + ErisProtocol.LINE_END);
-						messageBuffer.append(ErisProtocol.LINE_END);
-						
-						// Send reply to peer
-						ErisProtocol.wrapAndSend(peer, messageBuffer.toString().getBytes());
-					}
-				} catch (SocketException se) {
-					listenDone = true;
-				} catch (IOException ioe) {
-					listenDone = true;
-				}
-			}
+	/** serves the clients' requests as they arrive */
+	private class ErisRequestHandler implements FrameHandler {
+		/** clients that have said hello. Only used on the selector thread */
+		private final Map<ChannelPeer, Boolean> greeted = new IdentityHashMap<ChannelPeer, Boolean>();
+
+		public void peerConnected(ChannelPeer peer) {
+			// wait for the greeting
 		}
 
-		/* (non-Javadoc)
-		 * @see whiteboard.networking.venus.VenusThread#close()
-		 */
-		@Override
-		public void close() {
+		public void frameReceived(ChannelPeer peer, byte[] frame) {
+			String[] message = NetworkingUtils.getMessage(frame, frame.length);
 			try {
-				// Attempt tidy shutdown
-				peer.close();
+				if (greeted.containsKey(peer)) {
+					reply(peer, message);
+				} else if (replyHandshake(peer, message)) {
+					greeted.put(peer, Boolean.TRUE);
+				} else {
+					peer.close();
+				}
 			} catch (IOException ioe) {
-				// Untidy shutdown
-				peer = null;
+				try {
+					peer.close();
+				} catch (IOException e) {
+					// already closing
+				}
 			}
-
-			listenDone = true;
 		}
 
+		public void peerClosed(ChannelPeer peer) {
+			greeted.remove(peer);
+		}
 	}
-	
-	
-	private ServerSocket serverSocket; 
+
+	private volatile SelectorLoop loop;
 	private boolean done = false;
 	private int sequenceNum = 0;
-	private List<CloseableThread> threads = new ArrayList<CloseableThread>();
 
 	public ErisServer(int epochNum) {
 		super("ErisServer");
@@ -99,42 +72,30 @@ public class ErisServer extends SequenceServer {
 	@Override
 	public void run() {
 		try {
-			serverSocket = new ServerSocket(ErisProtocol.PORT);
-
-			while (!done && serverSocket.isBound() && !serverSocket.isClosed()) {
-				// Wait for connections
-				Socket socket = serverSocket.accept();
-
-				// Create peer
-				Peer peer = new StreamPeer(socket);
-
-				// Get handshake
-				if (replyHandshake(peer)) {
-					// Start listening thread
-					CloseableThread thread = new ErisListenThread(peer);
-					thread.start();
-					threads.add(thread);
-				}
+			loop = new SelectorLoop();
+			loop.listen(ErisProtocol.PORT, new ErisRequestHandler(), true);
+			if (done) {
+				// closed while we were starting
+				loop.close();
+				return;
 			}
+			// the selector loop does the work from here on
+			loop.run();
 		} catch (IOException ioe) {
 			return; // wait for externals to shut us down.
 		}
 	}
 
-	public boolean replyHandshake(Peer peer) throws IOException {
-		if (peer == null)
-			throw new IOException();
-
-		boolean result = false;
-
-		// Get handshake greeting
-		byte[] packet = ErisFactory.createPacket();
-		int packetLength = peer.receive(packet);
-
-		String[] message = NetworkingUtils.getMessage(packet, packetLength);
-
+	/**
+	 * Answers a client's greeting with the protocol and the current epoch
+	 * @param peer
+	 * @param message the greeting
+	 * @return true if the greeting was one we understand
+	 * @throws IOException
+	 */
+	private boolean replyHandshake(Peer peer, String[] message) throws IOException {
 		// Check message
-		if ((message.length) > 0 && message[0].equals("HELLO " + ErisProtocol.PROTOCOL)) {
+		if ((message.length > 0) && message[0].equals("HELLO " + ErisProtocol.PROTOCOL)) {
 			// Create message
 			StringBuffer messageBuffer = new StringBuffer();
 			messageBuffer.append(ErisProtocol.PROTOCOL + " OK" + ErisProtocol.LINE_END);
@@ -143,16 +104,57 @@ public class ErisServer extends SequenceServer {
 			// Indiciate end of message
 			messageBuffer.append(ErisProtocol.LINE_END);
 
-			// Get message as bytes
-			packet = messageBuffer.toString().getBytes();
-
 			// Send message to peer
-			peer.send(packet);
+			peer.send(messageBuffer.toString().getBytes());
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Answers a request: "GET SEQUENCE RANGE n", "GET SEQUENCE" or "PEEK SEQUENCE"
+	 * @param peer
+	 * @param message the request
+	 * @throws IOException
+	 */
+	private void reply(ChannelPeer peer, String[] message) throws IOException {
+		if (message.length < 1)
+			return;
+
+		StringBuffer messageBuffer = new StringBuffer();
+		if (message[0].startsWith(ErisProtocol.RANGE_REQUEST)) {
+			// Lease out a block of sequence numbers
+			int count;
+			try {
+				count = Integer.parseInt(message[0].substring(ErisProtocol.RANGE_REQUEST.length()).trim());
+			} catch (NumberFormatException nfe) {
+				count = ErisProtocol.LEASE_MIN_SIZE;
+			}
+			count = Math.max(ErisProtocol.LEASE_MIN_SIZE, Math.min(count, ErisProtocol.LEASE_MAX_SIZE));
+			int start = getSequenceRange(count);
+
+			messageBuffer.append(ErisProtocol.RANGE_REPLY + ErisProtocol.LINE_END);
+			messageBuffer.append(start + ErisProtocol.LINE_END);
+			messageBuffer.append(count + ErisProtocol.LINE_END);
+		} else if (message[0].equals("GET SEQUENCE") || message[0].equals("PEEK SEQUENCE")) {
+			int num = message[0].startsWith("GET") ? getSequenceNum() : peekSequenceNum();
+
+			messageBuffer.append("SEQUENCE" + ErisProtocol.LINE_END);
+			messageBuffer.append(num + ErisProtocol.LINE_END);
+		} else {
+			return;
+		}
 
-			result = true;
+		String id = ErisProtocol.getCorrelationId(message);
+		if (id != null) {
+			messageBuffer.append(ErisProtocol.CORRELATION_ID + " " + id + ErisProtocol.LINE_END);
 		}
+		messageBuffer.append(ErisProtocol.LINE_END);
 
-		return result;
+		// Send reply to peer
+		peer.sendFrame(messageBuffer.toString().getBytes());
 	}
 
 	@Override
@@ -160,6 +162,27 @@ public class ErisServer extends SequenceServer {
 		return sequenceNum++;
 	}
 
+	@Override
+	public synchronized int[] getSequenceNums(int count) {
+		int start = getSequenceRange(count);
+		int[] nums = new int[count];
+		for (int i = 0; i < count; ++i) {
+			nums[i] = start + i;
+		}
+		return nums;
+	}
+
+	/**
+	 * Reserves a block of contiguous sequence numbers
+	 * @param count how many numbers to reserve
+	 * @return the first number in the block
+	 */
+	public synchronized int getSequenceRange(int count) {
+		int start = sequenceNum;
+		sequenceNum += count;
+		return start;
+	}
+
 	@Override
 	public synchronized int peekSequenceNum() {
 		return sequenceNum;
@@ -172,21 +195,12 @@ public class ErisServer extends SequenceServer {
 	 */
 	@Override
 	public void close() {
-		try {
-			if(serverSocket != null) {
-				// Close the server socket
-				serverSocket.close();
-			}
-		} catch (IOException ioe) {
-			// Untidy shutdown
-			serverSocket = null;
-		}
-		
-		// Stop all child threads
-		for (CloseableThread thread : threads) {
-			thread.close();
-		}
-
 		done = true;
+
+		SelectorLoop current = loop;
+		if (current != null) {
+			// closes the listening socket and every client's channel
+			current.close();
+		}
 	}
-}
\ No newline at end of file
+}
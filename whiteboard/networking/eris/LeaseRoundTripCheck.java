@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package whiteboard.networking.eris;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import whiteboard.networking.StreamPeer;
+
+/**
+ * @author patrick
+ *
+ * Runs an ErisServer and an ErisClient on this machine and checks that sequence
+ * numbers make the round trip over the framed connection: the handshake gives the
+ * head's epoch, leased numbers come out in order without repeats, and the
+ * asynchronous requests are answered. Exits with status 1 if anything is wrong.
+ *
+ * Run with: java whiteboard.networking.eris.LeaseRoundTripCheck
+ * (it needs ErisProtocol.PORT to be free)
+ */
+public class LeaseRoundTripCheck {
+	private static final int EPOCH = 3;
+	private static final int NUMBERS = 200;
+	private static final long STARTUP_TIMEOUT_MILLISECONDS = 5000;
+
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	/**
+	 * Waits until the server is accepting connections
+	 * @return false if it didn't start in time
+	 */
+	private static boolean awaitServer() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLISECONDS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				new Socket("127.0.0.1", ErisProtocol.PORT).close();
+				return true;
+			} catch (IOException ioe) {
+				Thread.sleep(50);
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ErisServer server = new ErisServer(EPOCH);
+		server.start();
+		ErisClient client = null;
+		try {
+			check(awaitServer(), "server accepts connections");
+
+			client = new ErisClient(new StreamPeer("head", "127.0.0.1", ErisProtocol.PORT));
+			client.start();
+
+			int last = -1;
+			boolean ordered = true;
+			for (int i = 0; i < NUMBERS; ++i) {
+				int n = client.getSequenceNum();
+				ordered = ordered && (n > last);
+				last = n;
+			}
+			check(client.getEpochNum() == EPOCH, "handshake gives the head's epoch (" + client.getEpochNum() + ")");
+			check(ordered && last >= NUMBERS - 1, NUMBERS + " leased numbers in order, last " + last);
+			check(server.peekSequenceNum() > last, "the head has handed out past the last number used");
+
+			SequenceLease lease = client.requestSequenceRange(10).get(ErisProtocol.REQUEST_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			check(lease != null && lease.getEpochNum() == EPOCH && lease.getNextUnused() > last, "a requested range comes after the numbers already leased");
+
+			Integer peeked = client.requestPeek().get(ErisProtocol.REQUEST_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			check(peeked != null && lease != null && peeked.intValue() >= lease.getEnd(), "peek answered past the requested range");
+		} finally {
+			if (client != null)
+				client.close();
+			server.close();
+		}
+
+		System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package whiteboard.networking.eris;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request to the head that hasn't been answered yet. Whoever reads
+ * the reply completes it (or fails it), and whoever asked can wait on it, with or
+ * without a timeout, or give up on it with cancel().
+ *
+ * @author patrick
+ */
+public class PendingReply<V> implements Future<V> {
+	private V value = null;
+	private Throwable failure = null;
+	private boolean done = false;
+	private boolean cancelled = false;
+
+	/**
+	 * @param value
+	 * @return false if the reply had already been completed, failed or cancelled
+	 */
+	public synchronized boolean complete(V value) {
+		if (done)
+			return false;
+		this.value = value;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @param failure why there'll be no reply
+	 * @return false if the reply had already been completed, failed or cancelled
+	 */
+	public synchronized boolean fail(Throwable failure) {
+		if (done)
+			return false;
+		this.failure = failure;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Gives up on the reply. A reply that turns up later is ignored.
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (done)
+			return false;
+		cancelled = true;
+		done = true;
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			wait(remaining);
+		}
+		return result();
+	}
+
+	private V result() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return value;
+	}
+}
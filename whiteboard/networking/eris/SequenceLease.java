@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package whiteboard.networking.eris;
+
+/**
+ * A block of contiguous sequence numbers handed out by the head in a single
+ * round trip. Numbers are given out locally until the lease runs dry or expires.
+ * Whatever is left over when a lease is retired must be declared dead, otherwise
+ * every peer will stall waiting on the gap.
+ *
+ * @author patrick
+ */
+public class SequenceLease {
+	/** the epoch the numbers were leased in */
+	private final int epochNum;
+	/** one past the last leased number */
+	private final int end;
+	/** the next number to hand out */
+	private int next;
+	/** when the lease runs out, in milliseconds */
+	private final long expiry;
+
+	/**
+	 * @param epochNum the epoch the lease was granted in
+	 * @param start the first sequence number of the lease
+	 * @param count how many numbers were leased
+	 * @param timeout how long, in milliseconds, the lease is good for
+	 */
+	public SequenceLease(int epochNum, int start, int count, long timeout) {
+		this.epochNum = epochNum;
+		this.next = start;
+		this.end = start + count;
+		this.expiry = System.currentTimeMillis() + timeout;
+	}
+
+	public int getEpochNum() {
+		return epochNum;
+	}
+
+	/**
+	 * @return true if there are still numbers left to hand out
+	 */
+	public boolean hasNext() {
+		return next < end;
+	}
+
+	/**
+	 * PRE: hasNext()
+	 * @return the next sequence number in the lease
+	 */
+	public int next() {
+		return next++;
+	}
+
+	/**
+	 * @return the first number that hasn't been handed out
+	 */
+	public int getNextUnused() {
+		return next;
+	}
+
+	/**
+	 * @return one past the last number in the lease
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expiry;
+	}
+
+	/**
+	 * @return milliseconds left before the lease expires, 0 if it already has
+	 */
+	public long getTimeRemaining() {
+		return Math.max(0, expiry - System.currentTimeMillis());
+	}
+}
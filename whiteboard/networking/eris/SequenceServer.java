@@ -3,6 +3,10 @@
  */
 package whiteboard.networking.eris;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
 import whiteboard.core.CloseableThread;
 
 /**
@@ -19,6 +23,72 @@ public abstract class SequenceServer extends CloseableThread {
 	public abstract int getSequenceNum();
 	public abstract int peekSequenceNum();
 	
+	/**
+	 * Asks for the next sequence number without waiting for it. A server that 
+	 * hands numbers out locally has the answer straight away.
+	 * 
+	 * @return the number, or -1 on failure, once it's known
+	 */
+	public Future<Integer> requestSequenceNum() {
+		PendingReply<Integer> reply = new PendingReply<Integer>();
+		reply.complete(getSequenceNum());
+		return reply;
+	}
+	
+	/**
+	 * Gets sequence numbers for a whole batch of packets at once, so the batch 
+	 * costs at most one round trip rather than one per packet.
+	 * 
+	 * @param count how many numbers are wanted
+	 * @return the numbers, in the order they should be used. Fewer than count, 
+	 * possibly none, if no more could be had (e.g. during an election)
+	 */
+	public int[] getSequenceNums(int count) {
+		int[] nums = new int[count];
+		int got = 0;
+		while (got < count) {
+			int num = getSequenceNum();
+			if (num == -1) {
+				break;
+			}
+			nums[got++] = num;
+		}
+		return (got == count) ? nums : truncate(nums, got);
+	}
+	
+	protected static int[] truncate(int[] nums, int length) {
+		int[] result = new int[length];
+		System.arraycopy(nums, 0, result, 0, length);
+		return result;
+	}
+	
+	/**
+	 * Hands back any leases that expired before all their numbers were used.
+	 * The unused numbers must be declared dead by the caller.
+	 * 
+	 * @return the expired leases, empty if there are none
+	 */
+	public List<SequenceLease> releaseExpiredSequenceNums() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Gives up every outstanding lease, e.g. when the head changes.
+	 * The unused numbers must be declared dead by the caller.
+	 * 
+	 * @return the released leases, empty if there are none
+	 */
+	public List<SequenceLease> releaseSequenceNums() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return milliseconds until the current lease expires, or -1 if nothing is leased
+	 */
+	public long getLeaseTimeRemaining() {
+		return -1;
+	}
+
 	@Override
 	public abstract void close();
 
@@ -0,0 +1,375 @@
+/**
+ * 
+ */
+package whiteboard.networking.nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import whiteboard.networking.Peer;
+import whiteboard.networking.venus.VenusProtocol;
+
+/**
+ * A peer on a non-blocking SocketChannel, driven by a SelectorLoop. This is the NIO 
+ * alternative to StreamPeer: instead of a thread blocking in receive() for every peer,
+ * one selector thread reads every peer's channel and hands whole frames to a FrameHandler.
+ * 
+ * send() never blocks: the bytes are queued and written by the selector thread as the 
+ * socket accepts them. A peer that lets more than MAX_QUEUED_BYTES pile up is too slow 
+ * to keep: it is closed, and the send that overflowed fails.
+ * 
+ * A peer made without a FrameHandler isn't read as frames: the selector thread keeps 
+ * whatever arrives, and receive() hands it out as a StreamPeer's would.
+ * 
+ * @author patrick
+ */
+public class ChannelPeer extends Peer {
+	/** size of the read buffer each peer gets */
+	public static final int READ_BUFFER_SIZE = VenusProtocol.PACKET_SIZE;
+	/** most bytes that may wait to be written to one peer */
+	public static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+	/** most buffers handed to one gathering write */
+	public static final int MAX_GATHER = 64;
+
+	private static final byte[] HEADER_PREFIX = VenusProtocol.SHAPE_HEADER.getBytes();
+	/** queued after the last bytes from a peer without a handler */
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	private final SelectorLoop loop;
+	private final FrameHandler handler;
+	private SocketChannel channel;
+	/** only touched by the selector thread */
+	SelectionKey key;
+
+	private final FrameDecoder decoder;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final List<byte[]> frames = new ArrayList<byte[]>();
+	/** what's waiting to go out; filled by any thread, drained by the selector thread */
+	private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	/** bytes in outbound; only grows while holding the outbound lock */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	/** the slice of outbound being written; only touched by the selector thread */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private volatile boolean closed = false;
+	/** Nagle's algorithm off, applied once the channel is connected */
+	private volatile boolean tcpNoDelay = true;
+	/** bytes read for receive(), if there's no handler; filled by the selector thread */
+	private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+	/** the chunk receive() is part way through; guarded by receiveLock */
+	private byte[] partial = null;
+	private int partialOffset = 0;
+	private final Object receiveLock = new Object();
+
+	/**
+	 * A peer we'll connect out to. Nothing happens until connect() (or send()) is called.
+	 * @param name
+	 * @param addr
+	 * @param port
+	 * @param loop the selector loop that will drive the channel
+	 * @param handler where frames from the peer go, or null to read the peer with receive()
+	 */
+	public ChannelPeer(String name, InetAddress addr, int port, SelectorLoop loop, FrameHandler handler) {
+		super(name, addr, port);
+		this.loop = loop;
+		this.handler = handler;
+		this.decoder = new FrameDecoder();
+	}
+
+	/**
+	 * A peer on a channel that's already connected (e.g. one that was accepted).
+	 * @param channel
+	 * @param loop
+	 * @param handler where frames from the peer go, or null to read the peer with receive()
+	 * @param greeting true if the peer opens with an unframed greeting (see FrameDecoder)
+	 */
+	ChannelPeer(SocketChannel channel, SelectorLoop loop, FrameHandler handler, boolean greeting) {
+		super(channel.socket().getInetAddress(), channel.socket().getPort());
+		this.channel = channel;
+		this.loop = loop;
+		this.handler = handler;
+		this.decoder = new FrameDecoder(greeting);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see whiteboard.networking.Peer#connect()
+	 */
+	@Override
+	public synchronized void connect() throws IOException {
+		if (closed) {
+			throw new IOException("Peer closed: " + this);
+		}
+		if (channel != null) {
+			return;
+		}
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(addr, port));
+		loop.register(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see whiteboard.networking.Peer#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		loop.close(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see whiteboard.networking.Peer#isClosed()
+	 */
+	@Override
+	public boolean isClosed() {
+		return closed || (channel != null && !channel.isOpen());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see whiteboard.networking.Peer#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return !closed && channel != null && channel.isConnected();
+	}
+
+	/**
+	 * Blocks until bytes arrive from a peer that has no FrameHandler. 
+	 * @return the number of bytes put in data, or -1 once the peer has closed and 
+	 * everything it sent has been received
+	 * @throws IOException if the peer's frames go to a FrameHandler instead
+	 */
+	@Override
+	public int receive(byte[] data) throws IOException {
+		if (handler != null) {
+			throw new IOException("Frames from " + this + " go to its FrameHandler");
+		}
+		if (channel == null) {
+			connect();
+		}
+		synchronized (receiveLock) {
+			if (partial == null) {
+				try {
+					partial = received.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for " + this);
+				}
+				partialOffset = 0;
+			}
+			if (partial == END_OF_STREAM) {
+				// leave it there, so every later call sees the end too
+				return -1;
+			}
+			int n = Math.min(data.length, partial.length - partialOffset);
+			System.arraycopy(partial, partialOffset, data, 0, n);
+			partialOffset += n;
+			if (partialOffset == partial.length) {
+				partial = null;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Queues raw bytes for the peer. Doesn't block.
+	 * @see whiteboard.networking.Peer#send(byte[])
+	 */
+	@Override
+	public void send(byte[] buf) throws IOException {
+		enqueue(ByteBuffer.wrap(buf));
+	}
+
+	/**
+	 * Queues a payload with its PACKET header. The header and payload go out in a single
+	 * gathering write, without copying the payload.
+	 * @param payload
+	 * @throws IOException
+	 */
+	@Override
+	public void sendFrame(byte[] payload) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(VenusProtocol.HEADERSIZE);
+		header.put(HEADER_PREFIX).putInt(payload.length).flip();
+		enqueue(header, ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * @return true if Nagle's algorithm is off for this peer
+	 */
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @param tcpNoDelay true for interactive traffic (send small writes straight away), false to 
+	 * let TCP coalesce them
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		SocketChannel c = channel;
+		if (c != null && c.isConnected()) {
+			try {
+				c.socket().setTcpNoDelay(tcpNoDelay);
+			} catch (IOException e) {
+				// not fatal, we just get Nagle's default
+			}
+		}
+	}
+
+	/**
+	 * @return how many buffers are waiting to be written
+	 */
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return how many bytes are waiting to be written
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Queues buffers to be written. Each one must be positioned at its start.
+	 * @throws IOException if the peer is closed, or has fallen so far behind that it has 
+	 * just been closed
+	 */
+	private void enqueue(ByteBuffer... buffers) throws IOException {
+		if (closed) {
+			throw new IOException("Peer closed: " + this);
+		}
+		if (channel == null) {
+			connect();
+		}
+		long size = 0;
+		for (ByteBuffer b : buffers) {
+			size += b.remaining();
+		}
+		long queued;
+		// the header and payload must stay together, so hold the queue while adding both
+		synchronized (outbound) {
+			queued = queuedBytes.get();
+			// a frame bigger than the limit can still go to a peer that's keeping up
+			if (queued == 0 || queued + size <= MAX_QUEUED_BYTES) {
+				for (ByteBuffer b : buffers) {
+					outbound.add(b);
+				}
+				queuedBytes.addAndGet(size);
+				queued = -1;
+			}
+		}
+		if (queued >= 0) {
+			System.err.println("NIO: " + this + " has " + queued + " bytes waiting; closing it");
+			close();
+			throw new IOException("Peer fell too far behind: " + this);
+		}
+		loop.wantWrite(this);
+	}
+
+	/*
+	 * Everything below is only called by the selector thread.
+	 */
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	FrameHandler getHandler() {
+		return handler;
+	}
+
+	boolean hasPendingWrites() {
+		return !outbound.isEmpty();
+	}
+
+	/**
+	 * Reads what's available and passes on any whole frames (or, without a handler, 
+	 * keeps the bytes for receive()).
+	 * @return false if the channel reached end of stream
+	 */
+	boolean readFrames() throws IOException {
+		int n;
+		while ((n = channel.read(readBuffer)) > 0) {
+			readBuffer.flip();
+			if (handler == null) {
+				byte[] chunk = new byte[readBuffer.remaining()];
+				readBuffer.get(chunk);
+				received.add(chunk);
+			} else {
+				decoder.decode(readBuffer, frames);
+			}
+			readBuffer.clear();
+		}
+		for (byte[] frame : frames) {
+			handler.frameReceived(this, frame);
+		}
+		frames.clear();
+		return n >= 0;
+	}
+
+	/**
+	 * Writes as much as the socket will take, as one gathering write of up to MAX_GATHER
+	 * buffers from the head of the queue per pass.
+	 * @return true if everything queued has been written
+	 */
+	boolean writePending() throws IOException {
+		while (true) {
+			int count = 0;
+			for (Iterator<ByteBuffer> it = outbound.iterator(); it.hasNext() && count < MAX_GATHER;) {
+				gather[count++] = it.next();
+			}
+			if (count == 0) {
+				return true;
+			}
+			channel.write(gather, 0, count);
+			boolean full = false;
+			for (int i = 0; i < count; ++i) {
+				ByteBuffer b = gather[i];
+				gather[i] = null;
+				if (full || b.hasRemaining()) {
+					full = true;
+				} else {
+					outbound.poll();
+					queuedBytes.addAndGet(-b.limit());
+				}
+			}
+			if (full) {
+				// socket buffer is full; wait until it's writable again
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Marks the peer closed.
+	 * @return true the first time only
+	 */
+	synchronized boolean markClosed() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		outbound.clear();
+		queuedBytes.set(0);
+		received.add(END_OF_STREAM);
+		return true;
+	}
+}
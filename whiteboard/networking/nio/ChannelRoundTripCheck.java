@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package whiteboard.networking.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import whiteboard.networking.StreamPeer;
+import whiteboard.networking.venus.VenusProtocol;
+
+/**
+ * @author patrick
+ *
+ * Runs a SelectorLoop that echoes frames back and checks the ways Venus uses the NIO
+ * transport against it: frames from a ChannelPeer come back whole and in order (up to
+ * sizes many times the read buffer), a peer without a FrameHandler can be read with
+ * receive(), and a StreamPeer that did its handshake on blocking streams can be handed
+ * over to a loop and keep talking through it (with its own Nagle setting). A peer that
+ * never reads is closed once too much is queued for it, rather than growing the heap. Exits with status 1 if anything is wrong.
+ *
+ * Run with: java whiteboard.networking.nio.ChannelRoundTripCheck
+ * (it needs PORT and PORT + 1 to be free)
+ */
+public class ChannelRoundTripCheck {
+	private static final int PORT = VenusProtocol.PORT + 1;
+	private static final int FRAMES = 500;
+	private static final int LARGE_FRAME_SIZE = 1 << 20;
+	private static final long TIMEOUT_MILLISECONDS = 5000;
+
+	private static int failures = 0;
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			++failures;
+	}
+
+	/** sends every frame straight back */
+	private static class Echo implements FrameHandler {
+		public void peerConnected(ChannelPeer peer) {
+		}
+
+		public void frameReceived(ChannelPeer peer, byte[] frame) {
+			try {
+				peer.sendFrame(frame);
+			} catch (IOException e) {
+				System.err.println("echo: " + e.getMessage());
+			}
+		}
+
+		public void peerClosed(ChannelPeer peer) {
+		}
+	}
+
+	/** keeps the frames it's given for the check to look at */
+	private static class Collector implements FrameHandler {
+		final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<byte[]>();
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		public void peerConnected(ChannelPeer peer) {
+		}
+
+		public void frameReceived(ChannelPeer peer, byte[] frame) {
+			frames.add(frame);
+		}
+
+		public void peerClosed(ChannelPeer peer) {
+			closed.countDown();
+		}
+
+		byte[] next() throws InterruptedException {
+			return frames.poll(TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static byte[] payload(int size, int seed) {
+		byte[] payload = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			payload[i] = (byte) (seed + i * 31);
+		}
+		return payload;
+	}
+
+	/**
+	 * Frames of many sizes, then one far bigger than the read buffer, through a ChannelPeer
+	 */
+	private static void checkEcho(SelectorLoop loop) throws Exception {
+		Collector collector = new Collector();
+		ChannelPeer peer = new ChannelPeer("echo", InetAddress.getByName("127.0.0.1"), PORT, loop, collector);
+		for (int i = 0; i < FRAMES; ++i) {
+			peer.sendFrame(payload((i * 37) % (2 * ChannelPeer.READ_BUFFER_SIZE), i));
+		}
+		boolean same = true;
+		for (int i = 0; i < FRAMES && same; ++i) {
+			same = Arrays.equals(payload((i * 37) % (2 * ChannelPeer.READ_BUFFER_SIZE), i), collector.next());
+		}
+		check(same, FRAMES + " frames echoed whole and in order");
+
+		peer.sendFrame(payload(LARGE_FRAME_SIZE, 7));
+		check(Arrays.equals(payload(LARGE_FRAME_SIZE, 7), collector.next()), "a " + LARGE_FRAME_SIZE + " byte frame echoed whole");
+
+		peer.close();
+		check(collector.closed.await(TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS), "the handler hears the peer close");
+	}
+
+	/**
+	 * A ChannelPeer without a handler, read with receive()
+	 */
+	private static void checkReceive(SelectorLoop loop) throws Exception {
+		ChannelPeer peer = new ChannelPeer("raw", InetAddress.getByName("127.0.0.1"), PORT, loop, null);
+		byte[] sent = payload(3 * ChannelPeer.READ_BUFFER_SIZE, 11);
+		peer.sendFrame(sent);
+
+		byte[] echoed = new byte[VenusProtocol.HEADERSIZE + sent.length];
+		byte[] chunk = new byte[1000];
+		int have = 0;
+		while (have < echoed.length) {
+			int n = peer.receive(chunk);
+			if (n < 0)
+				break;
+			System.arraycopy(chunk, 0, echoed, have, Math.min(n, echoed.length - have));
+			have += n;
+		}
+		byte[] body = new byte[sent.length];
+		System.arraycopy(echoed, VenusProtocol.HEADERSIZE, body, 0, body.length);
+		check(have == echoed.length && Arrays.equals(sent, body), "receive() gives back the echoed frame");
+
+		peer.close();
+		check(peer.receive(chunk) == -1, "receive() gives -1 once the peer has closed");
+	}
+
+	/**
+	 * A StreamPeer that talks on blocking streams, then hands its channel to the loop
+	 */
+	private static void checkHandOver(SelectorLoop loop) throws Exception {
+		StreamPeer peer = new StreamPeer("handed", "127.0.0.1", PORT);
+		peer.connectThroughChannel();
+		check(peer.getChannel() != null, "connectThroughChannel() gives the socket a channel");
+
+		byte[] before = payload(100, 3);
+		peer.sendFrame(before);
+		byte[] header = new byte[VenusProtocol.HEADERSIZE];
+		byte[] echoed = new byte[before.length];
+		check(peer.receive(header, header.length) && peer.receive(echoed, echoed.length)
+				&& Arrays.equals(before, echoed), "a frame echoed over the blocking streams");
+
+		Collector collector = new Collector();
+		peer.setTcpNoDelay(false);
+		synchronized (peer) {
+			peer.handOver(loop.adopt(peer.getChannel(), collector, peer.getTcpNoDelay()));
+		}
+		byte[] after = payload(2 * ChannelPeer.READ_BUFFER_SIZE, 5);
+		peer.sendFrame(after);
+		check(Arrays.equals(after, collector.next()), "after the hand over, frames go through the loop");
+		check(!peer.getChannel().socket().getTcpNoDelay(), "the peer's Nagle setting survives the hand over");
+
+		boolean refused = false;
+		try {
+			peer.receive(echoed);
+		} catch (IOException e) {
+			refused = true;
+		}
+		check(refused, "receive() on the handed over peer is refused");
+
+		peer.close();
+		check(collector.closed.await(TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS), "closing the StreamPeer closes its transport");
+	}
+
+	/**
+	 * A peer that accepts the connection but never reads from it
+	 */
+	private static void checkOverflow(SelectorLoop loop) throws Exception {
+		ServerSocket deaf = new ServerSocket(PORT + 1);
+		try {
+			Collector collector = new Collector();
+			ChannelPeer peer = new ChannelPeer("deaf", InetAddress.getByName("127.0.0.1"), PORT + 1, loop, collector);
+			peer.connect();
+			Socket accepted = deaf.accept();
+			byte[] frame = payload(LARGE_FRAME_SIZE, 1);
+			boolean refused = false;
+			long most = 0;
+			for (long sent = 0; sent < 4 * ChannelPeer.MAX_QUEUED_BYTES && !refused; sent += frame.length) {
+				try {
+					peer.sendFrame(frame);
+					most = Math.max(most, peer.getQueuedBytes());
+				} catch (IOException e) {
+					refused = true;
+				}
+			}
+			check(refused, "sending to a peer that never reads fails once too much is queued");
+			check(most <= ChannelPeer.MAX_QUEUED_BYTES, "at most " + ChannelPeer.MAX_QUEUED_BYTES + " bytes were queued (" + most + ")");
+			check(collector.closed.await(TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS), "the peer that fell behind is closed");
+			accepted.close();
+		} finally {
+			deaf.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		SelectorLoop server = new SelectorLoop();
+		SelectorLoop client = new SelectorLoop();
+		server.listen(PORT, new Echo());
+		server.start();
+		client.start();
+		try {
+			checkEcho(client);
+			checkReceive(client);
+			checkHandOver(client);
+			checkOverflow(client);
+		} finally {
+			client.close();
+			server.close();
+		}
+
+		System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+}
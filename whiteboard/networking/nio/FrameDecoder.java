@@ -0,0 +1,107 @@
+/**
+ * 
+ */
+package whiteboard.networking.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import whiteboard.networking.venus.VenusProtocol;
+
+/**
+ * Splits a byte stream into frames of the form "PACKET\n" + 4 byte length + payload,
+ * the same framing VenusProtocol.receivePacket() reads. Bytes can arrive in any size of
+ * piece; partial frames are kept until the rest turns up.
+ * 
+ * Venus and Eris handshakes open with an unframed greeting that ends with a blank line.
+ * A decoder can be told to expect one, and passes it on as the first frame.
+ * 
+ * @author patrick
+ */
+public class FrameDecoder {
+	/** largest payload accepted; anything bigger means the stream is garbage */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	/** largest greeting accepted */
+	public static final int MAX_GREETING_SIZE = 4096;
+	
+	private static final byte LINE_END = (byte) VenusProtocol.LINE_END.charAt(0);
+
+	private static final byte[] HEADER_PREFIX = VenusProtocol.SHAPE_HEADER.getBytes();
+
+	private final ByteBuffer header = ByteBuffer.allocate(VenusProtocol.HEADERSIZE);
+	/** the payload being filled, or null while reading a header */
+	private ByteBuffer payload = null;
+	/** the greeting being read, or null if it has been (or none is expected) */
+	private ByteArrayOutputStream greeting = null;
+	private byte lastGreetingByte = 0;
+
+	public FrameDecoder() {
+		this(false);
+	}
+
+	/**
+	 * @param greeting true if the stream opens with an unframed greeting
+	 */
+	public FrameDecoder(boolean greeting) {
+		if (greeting) {
+			this.greeting = new ByteArrayOutputStream();
+		}
+	}
+
+	/**
+	 * Consumes everything remaining in the buffer.
+	 * @param in bytes just read from the channel
+	 * @param frames whole frames are added here, in order
+	 * @throws IOException if the stream isn't framed properly
+	 */
+	public void decode(ByteBuffer in, List<byte[]> frames) throws IOException {
+		while (in.hasRemaining()) {
+			if (greeting != null) {
+				byte b = in.get();
+				greeting.write(b);
+				if (b == LINE_END && lastGreetingByte == LINE_END) {
+					frames.add(greeting.toByteArray());
+					greeting = null;
+				} else if (greeting.size() > MAX_GREETING_SIZE) {
+					throw new IOException("Greeting too long");
+				}
+				lastGreetingByte = b;
+				continue;
+			}
+			if (payload == null) {
+				transfer(in, header);
+				if (header.hasRemaining()) {
+					return;
+				}
+				header.flip();
+				for (int i = 0; i < HEADER_PREFIX.length; ++i) {
+					if (header.get() != HEADER_PREFIX[i]) {
+						throw new IOException("Bad frame header");
+					}
+				}
+				int length = header.getInt();
+				header.clear();
+				if (length < 0 || length > MAX_FRAME_SIZE) {
+					throw new IOException("Bad frame length: " + length);
+				}
+				payload = ByteBuffer.allocate(length);
+			}
+			transfer(in, payload);
+			if (!payload.hasRemaining()) {
+				frames.add(payload.array());
+				payload = null;
+			}
+		}
+	}
+
+	/** copies as much of src as fits into dst */
+	private static void transfer(ByteBuffer src, ByteBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		int limit = src.limit();
+		src.limit(src.position() + n);
+		dst.put(src);
+		src.limit(limit);
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * 
+ */
+package whiteboard.networking.nio;
+
+/**
+ * Callbacks from a SelectorLoop. They're all made on the selector thread, so they
+ * must not block: hand anything slow off to another thread.
+ * 
+ * @author patrick
+ */
+public interface FrameHandler {
+	/**
+	 * The peer's channel is connected (either we connected out, or it was accepted).
+	 * @param peer
+	 */
+	public void peerConnected(ChannelPeer peer);
+
+	/**
+	 * A whole frame has arrived.
+	 * @param peer the peer it came from
+	 * @param frame the frame's payload, without the PACKET header
+	 */
+	public void frameReceived(ChannelPeer peer, byte[] frame);
+
+	/**
+	 * The peer's channel has been closed, by either end. Called once per peer.
+	 * @param peer
+	 */
+	public void peerClosed(ChannelPeer peer);
+}
@@ -0,0 +1,290 @@
+/**
+ * 
+ */
+package whiteboard.networking.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import whiteboard.core.CloseableThread;
+
+/**
+ * The one networking thread a node needs: a Selector over every peer's channel (and 
+ * optionally a listening socket). It reads frames and hands them to each peer's 
+ * FrameHandler, and writes out whatever peers have queued.
+ * 
+ * Other threads never touch the selector directly; they queue a task and wake it up.
+ * 
+ * @author patrick
+ */
+public class SelectorLoop extends CloseableThread {
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean done = false;
+
+	public SelectorLoop() throws IOException {
+		super("NioSelectorLoop");
+		selector = Selector.open();
+	}
+
+	/**
+	 * Accepts connections on a port. Each accepted peer uses the given handler.
+	 * @param port
+	 * @param handler
+	 * @throws IOException if the port can't be bound
+	 */
+	public void listen(int port, final FrameHandler handler) throws IOException {
+		listen(port, handler, false);
+	}
+
+	/**
+	 * Accepts connections on a port. Each accepted peer uses the given handler.
+	 * @param port
+	 * @param handler
+	 * @param greeting true if accepted peers open with an unframed greeting, which is 
+	 * passed to the handler as their first frame (see FrameDecoder)
+	 * @throws IOException if the port can't be bound
+	 */
+	public void listen(int port, FrameHandler handler, boolean greeting) throws IOException {
+		final Acceptor acceptor = new Acceptor(handler, greeting);
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port));
+		runOnLoop(new Runnable() {
+			public void run() {
+				try {
+					server.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+				} catch (ClosedChannelException e) {
+					System.err.println("NIO: listening socket closed before it was registered");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes over a connected channel that has so far been used with blocking streams, 
+	 * e.g. for a handshake. The channel is made non-blocking and driven by this loop from 
+	 * now on, so nothing may read from or write to it except through the returned peer.
+	 * The channel keeps the Nagle setting it already has.
+	 * @param channel
+	 * @param handler where frames from the peer go, or null to read it with receive()
+	 * @return the peer on the channel
+	 * @throws IOException if the channel can't be made non-blocking
+	 */
+	public ChannelPeer adopt(SocketChannel channel, FrameHandler handler) throws IOException {
+		return adopt(channel, handler, channel.socket().getTcpNoDelay());
+	}
+
+	/**
+	 * As adopt(channel, handler), with the peer's Nagle setting (see ChannelPeer.setTcpNoDelay()).
+	 * @param channel
+	 * @param handler
+	 * @param tcpNoDelay
+	 * @return the peer on the channel
+	 * @throws IOException if the channel can't be made non-blocking
+	 */
+	public ChannelPeer adopt(SocketChannel channel, FrameHandler handler, boolean tcpNoDelay) throws IOException {
+		channel.configureBlocking(false);
+		ChannelPeer peer = new ChannelPeer(channel, this, handler, false);
+		peer.setTcpNoDelay(tcpNoDelay);
+		register(peer);
+		return peer;
+	}
+
+	/**
+	 * Starts driving a peer whose channel has been opened (connecting or connected).
+	 * @param peer
+	 */
+	void register(final ChannelPeer peer) {
+		runOnLoop(new Runnable() {
+			public void run() {
+				SocketChannel channel = peer.getChannel();
+				int ops = channel.isConnectionPending() ? SelectionKey.OP_CONNECT
+						: SelectionKey.OP_READ | (peer.hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
+				try {
+					peer.key = channel.register(selector, ops, peer);
+				} catch (ClosedChannelException e) {
+					closeNow(peer);
+					return;
+				}
+				if (ops != SelectionKey.OP_CONNECT) {
+					connected(peer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called by a peer when it has queued something to write.
+	 * @param peer
+	 */
+	void wantWrite(final ChannelPeer peer) {
+		runOnLoop(new Runnable() {
+			public void run() {
+				SelectionKey key = peer.key;
+				if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes a peer's channel, on the selector thread.
+	 * @param peer
+	 */
+	void close(final ChannelPeer peer) {
+		runOnLoop(new Runnable() {
+			public void run() {
+				closeNow(peer);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (!done) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("NIO: select failed: " + e.getMessage());
+				break;
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept(key);
+					continue;
+				}
+				ChannelPeer peer = (ChannelPeer) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						peer.getChannel().finishConnect();
+						key.interestOps(SelectionKey.OP_READ | (peer.hasPendingWrites() ? SelectionKey.OP_WRITE : 0));
+						connected(peer);
+					}
+					if (key.isValid() && key.isReadable()) {
+						if (!peer.readFrames()) {
+							closeNow(peer);
+							continue;
+						}
+					}
+					if (key.isValid() && key.isWritable()) {
+						if (peer.writePending()) {
+							key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("NIO: " + peer + ": " + e.getMessage());
+					closeNow(peer);
+				}
+			}
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof ChannelPeer) {
+				closeNow((ChannelPeer) key.attachment());
+			} else {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Do nothing
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see whiteboard.core.CloseableThread#close()
+	 */
+	@Override
+	public void close() {
+		done = true;
+		selector.wakeup();
+	}
+
+	private void runOnLoop(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void accept(SelectionKey key) {
+		Acceptor acceptor = (Acceptor) key.attachment();
+		try {
+			SocketChannel channel;
+			while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+				channel.configureBlocking(false);
+				ChannelPeer peer = new ChannelPeer(channel, this, acceptor.handler, acceptor.greeting);
+				peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+				connected(peer);
+			}
+		} catch (IOException e) {
+			System.err.println("NIO: accept failed: " + e.getMessage());
+		}
+	}
+
+	/** what a listening socket needs to know about the peers it accepts */
+	private static class Acceptor {
+		final FrameHandler handler;
+		final boolean greeting;
+
+		Acceptor(FrameHandler handler, boolean greeting) {
+			this.handler = handler;
+			this.greeting = greeting;
+		}
+	}
+
+	private void connected(ChannelPeer peer) {
+		try {
+			peer.getChannel().socket().setTcpNoDelay(peer.getTcpNoDelay());
+		} catch (IOException e) {
+			// not fatal; we just get Nagle
+		}
+		if (peer.getHandler() != null) {
+			peer.getHandler().peerConnected(peer);
+		}
+	}
+
+	private void closeNow(ChannelPeer peer) {
+		if (!peer.markClosed()) {
+			return;
+		}
+		if (peer.key != null) {
+			peer.key.cancel();
+		}
+		try {
+			if (peer.getChannel() != null) {
+				peer.getChannel().close();
+			}
+		} catch (IOException e) {
+			// Do nothing
+		}
+		if (peer.getHandler() != null) {
+			peer.getHandler().peerClosed(peer);
+		}
+	}
+}
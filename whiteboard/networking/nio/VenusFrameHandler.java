@@ -0,0 +1,129 @@
+/**
+ * 
+ */
+package whiteboard.networking.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import whiteboard.core.transaction.NetworkTransactionManager;
+import whiteboard.networking.WhiteboardPeer;
+import whiteboard.networking.venus.VenusProtocol;
+
+/**
+ * Routes frames from ChannelPeers into Venus exactly as VenusReceiveThread does for 
+ * StreamPeers (see VenusProtocol.routePacket()).
+ * 
+ * Venus knows peers by their WhiteboardPeer, so each channel has to be bound to one 
+ * (once the handshake has said who's on the other end) before its frames are routed.
+ * Frames from unbound channels are dropped.
+ * 
+ * Routing can block (an election sends to every peer and waits on the sequence server),
+ * so it never runs on the selector thread: frames are routed one at a time, in the order 
+ * they arrived, by a single router thread.
+ * 
+ * @author patrick
+ */
+public class VenusFrameHandler implements FrameHandler {
+	private final VenusProtocol venusProtocol;
+	private final NetworkTransactionManager man;
+	private final Map<SocketChannel, WhiteboardPeer> bindings = new ConcurrentHashMap<SocketChannel, WhiteboardPeer>();
+	private final ExecutorService router = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "VenusRouter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public VenusFrameHandler(VenusProtocol venusProtocol, NetworkTransactionManager man) {
+		this.venusProtocol = venusProtocol;
+		this.man = man;
+	}
+
+	/**
+	 * @param channel
+	 * @param peer the Venus peer on the other end of the channel
+	 */
+	public void bind(ChannelPeer channel, WhiteboardPeer peer) {
+		bindings.put(channel.getChannel(), peer);
+	}
+
+	/**
+	 * Hands a peer that has finished its handshake over to a selector loop: its channel is 
+	 * bound to it, adopted by the loop, and from then on everything sent to the peer goes 
+	 * through the returned ChannelPeer.
+	 * @param peer a peer whose socket was opened through a channel
+	 * @param loop
+	 * @return the peer's transport
+	 * @throws IOException if the channel can't be adopted
+	 */
+	public ChannelPeer attach(WhiteboardPeer peer, SelectorLoop loop) throws IOException {
+		SocketChannel channel = peer.getChannel();
+		// bound before the loop can read anything from it
+		bindings.put(channel, peer);
+		try {
+			// the peer's sends are synchronized on it, so none can be part way through the
+			// blocking stream when the channel goes non-blocking
+			synchronized (peer) {
+				ChannelPeer channelPeer = loop.adopt(channel, this, peer.getTcpNoDelay());
+				channelPeer.setName(peer.getName());
+				peer.handOver(channelPeer);
+				return channelPeer;
+			}
+		} catch (IOException e) {
+			bindings.remove(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops routing. Frames still waiting are dropped.
+	 */
+	public void close() {
+		router.shutdownNow();
+	}
+
+	public void peerConnected(ChannelPeer peer) {
+		// nothing to do until the handshake binds it
+	}
+
+	public void frameReceived(ChannelPeer channel, final byte[] frame) {
+		final WhiteboardPeer peer = bindings.get(channel.getChannel());
+		if (peer == null) {
+			System.err.println("NIO: dropped a frame from unbound peer " + channel);
+			return;
+		}
+		route(new Runnable() {
+			public void run() {
+				venusProtocol.routePacket(peer, frame, man);
+			}
+		});
+	}
+
+	public void peerClosed(ChannelPeer channel) {
+		final WhiteboardPeer peer = bindings.remove(channel.getChannel());
+		if (peer != null) {
+			// after any frames still waiting from it
+			route(new Runnable() {
+				public void run() {
+					venusProtocol.removePeer(peer);
+				}
+			});
+		}
+	}
+
+	private void route(Runnable task) {
+		try {
+			router.execute(task);
+		} catch (RejectedExecutionException e) {
+			// closed; nothing is routed any more
+		}
+	}
+}
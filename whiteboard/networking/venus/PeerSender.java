@@ -0,0 +1,125 @@
+/**
+ * 
+ */
+package whiteboard.networking.venus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import whiteboard.core.CloseableThread;
+import whiteboard.networking.Peer;
+
+/**
+ * Writes to a single peer from its own queue, so a slow or dead peer only holds up
+ * itself. Everything queued since the last write goes out in one write.
+ * 
+ * If the peer falls MAX_QUEUE_DEPTH writes behind, the oldest are dropped to make room. 
+ * The newest always go out, so the peer sees the sequence numbers it missed and asks 
+ * for them again.
+ * 
+ * @author patrick
+ */
+public class PeerSender extends CloseableThread {
+	/** most writes queued for one peer; past this, the oldest are dropped */
+	public static final int MAX_QUEUE_DEPTH = 4096;
+
+	private volatile boolean done = false;
+	private final Peer peer;
+	private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>(MAX_QUEUE_DEPTH);
+	/** how many writes were dropped because the queue was full */
+	private volatile long dropped = 0;
+	/** true from a drop until a write is queued without one; only used by the enqueuing thread */
+	private boolean overflowing = false;
+
+	public PeerSender(Peer peer) {
+		super("VenusPeerSender-" + peer);
+		this.peer = peer;
+	}
+
+	/**
+	 * Queues bytes to be written to the peer. Doesn't block. Only one thread may call this.
+	 * @param bytes framed packets, ready for the wire. Must not be changed afterwards.
+	 * @return false if the queue was full and older writes were dropped to make room
+	 */
+	public boolean enqueue(byte[] bytes) {
+		if (outbound.offer(bytes)) {
+			overflowing = false;
+			return true;
+		}
+		while (!outbound.offer(bytes)) {
+			if (outbound.poll() != null) {
+				++dropped;
+			}
+		}
+		if (!overflowing) {
+			overflowing = true;
+			System.err.println("VENUSSND: " + peer + " is " + MAX_QUEUE_DEPTH + " writes behind; dropping the oldest ("
+					+ dropped + " dropped so far)");
+		}
+		return false;
+	}
+
+	/**
+	 * @return how many writes are waiting to go out to the peer
+	 */
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return how many writes have been dropped because the peer fell too far behind
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	public Peer getPeer() {
+		return peer;
+	}
+
+	@Override
+	public void run() {
+		List<byte[]> batch = new ArrayList<byte[]>();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(VenusProtocol.PACKET_SIZE);
+		while (!done) {
+			try {
+				batch.add(outbound.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			outbound.drainTo(batch);
+
+			byte[] bytes;
+			if (batch.size() == 1) {
+				bytes = batch.get(0);
+			} else {
+				buffer.reset();
+				for (byte[] b : batch) {
+					buffer.write(b, 0, b.length);
+				}
+				bytes = buffer.toByteArray();
+			}
+			batch.clear();
+
+			try {
+				peer.send(bytes);
+			} catch (IOException ioe) {
+				System.err.println("VENUSSND: " + peer + ": " + ioe.getMessage());
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see whiteboard.core.CloseableThread#close()
+	 */
+	@Override
+	public void close() {
+		done = true;
+		outbound.clear();
+		interrupt();
+	}
+}
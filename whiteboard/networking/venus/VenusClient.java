@@ -72,7 +72,11 @@ public class VenusClient extends CloseableThread {
 		CONNECT_TYPE connected = CONNECT_TYPE.BAD;
 
 		// Connect to peer
-		head.connect();
+		if (VenusProtocol.SELECTOR_TRANSPORT) {
+			head.connectThroughChannel();
+		} else {
+			head.connect();
+		}
 
 		// Send handshake
 		connected = initiateHandshake();
@@ -126,7 +130,6 @@ public class VenusClient extends CloseableThread {
 
 			// Add connected peer
 			venusProtocol.addPeer(head);
-			threads.add(new VenusReceiveThread(head, venusProtocol, man));
 		} 
 	}
 
@@ -146,7 +149,7 @@ public class VenusClient extends CloseableThread {
 		}
 
 		// Create message
-		String message = "GET WHITEBOARD SHAPES" + VenusProtocol.LINE_END;
+		String message = "GET WHITEBOARD SHAPES" + VenusProtocol.LINE_END + VenusHistory.CHUNKED + VenusProtocol.LINE_END;
 
 		// Get message as bytes
 		byte[] packet = message.toString().getBytes();
@@ -161,7 +164,16 @@ public class VenusClient extends CloseableThread {
 
 		int numShapes = BytePacker.convertBytesToInt(ShapesHeader, ShapesHeader.length - 4);
 
-		// Get shapes
+		if (VenusHistory.CHUNKED_COUNT == numShapes) {
+			// Get shapes a chunk at a time, until the empty chunk
+			List<byte[]> shapes;
+			while (!(shapes = VenusHistory.readChunk(VenusProtocol.receivePacket(head))).isEmpty()) {
+				man.pushToLocalShapes(shapes);
+			}
+			return true;
+		}
+
+		// Get shapes (from a head that doesn't send chunks)
 		for (int i = 0; i < numShapes; ++i) {
 			byte[] shape = VenusProtocol.receivePacket(head);
 			man.pushToLocalShape(shape);
@@ -247,14 +259,17 @@ public class VenusClient extends CloseableThread {
 						return;
 					}
 	
-					// Start listening threads for each peer
+					// Start connecting to each peer
 					for (Thread thread : threads) {
 						thread.start();
 					}
 				} else {
 					venusProtocol.addPeer(head);
-					CloseableThread thread = new VenusReceiveThread(head, venusProtocol, man);
-					thread.start();
+				}
+
+				// Start listening to the head
+				CloseableThread thread = venusProtocol.listenTo(head, man);
+				if (null != thread) {
 					threads.add(thread);
 				}
 
@@ -0,0 +1,155 @@
+/**
+ * 
+ */
+package whiteboard.networking.venus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
+import whiteboard.networking.StreamPeer;
+import whiteboard.networking.nio.FrameDecoder;
+
+/**
+ * The chunked history transfer used when a peer joins. 
+ * 
+ * The joiner asks for "GET WHITEBOARD SHAPES" followed by CHUNKED. The reply is the usual 
+ * SHAPES_HEADER with a count of CHUNKED_COUNT, then a series of ordinary frames, each 
+ * holding one chunk:
+ * 
+ *   [int packets in chunk][int uncompressed length][deflated: ([int length][packet])*]
+ * 
+ * A chunk with no packets ends the history. Peers that don't ask for CHUNKED get the old 
+ * reply: a real count, then one frame per packet.
+ * 
+ * @author patrick
+ */
+public class VenusHistory {
+	public static final String CHUNKED = "CHUNKED";
+	/** the packet count sent in the SHAPES_HEADER when the history follows in chunks */
+	public static final int CHUNKED_COUNT = -1;
+	/** roughly how many uncompressed bytes go in a chunk */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int INT_SIZE = ShapeConstants.INTEGER_BYTE_SIZE;
+
+	/**
+	 * Sends the history in chunks, reading it from the iterator as it goes, then the
+	 * empty chunk that ends it. The header must already have been sent.
+	 * @param history
+	 * @param peer
+	 * @throws IOException
+	 */
+	public static void sendChunks(Iterator<byte[]> history, StreamPeer peer) throws IOException {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(CHUNK_SIZE + VenusProtocol.PACKET_SIZE);
+		byte[] length = new byte[INT_SIZE];
+		byte[] out = new byte[CHUNK_SIZE];
+		try {
+			int count = 0;
+			while (history.hasNext()) {
+				byte[] packet = history.next();
+				BytePacker.convertIntToBytes(packet.length, length, 0);
+				raw.write(length, 0, INT_SIZE);
+				raw.write(packet, 0, packet.length);
+				++count;
+				if (raw.size() >= CHUNK_SIZE) {
+					peer.sendFrame(compress(deflater, raw, count, out));
+					raw.reset();
+					count = 0;
+				}
+			}
+			if (count > 0) {
+				peer.sendFrame(compress(deflater, raw, count, out));
+			}
+			// the end marker
+			peer.sendFrame(new byte[2 * INT_SIZE]);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param chunk one chunk frame's payload
+	 * @return the packets in the chunk, in order; empty for the end marker
+	 * @throws IOException if the chunk is corrupt, or claims to hold more than a frame could
+	 */
+	public static List<byte[]> readChunk(byte[] chunk) throws IOException {
+		if (chunk.length < 2 * INT_SIZE) {
+			throw new IOException("History chunk is too short for its header: " + chunk.length + " bytes");
+		}
+		ByteBuffer header = ByteBuffer.wrap(chunk);
+		int count = header.getInt();
+		int rawLength = header.getInt();
+		if (count == 0) {
+			return new ArrayList<byte[]>(0);
+		}
+		// every packet takes at least its length, so this also bounds the count
+		if (rawLength < 0 || rawLength > FrameDecoder.MAX_FRAME_SIZE || count < 0 || count > rawLength / INT_SIZE) {
+			throw new IOException("History chunk has a bad header: " + count + " packets in " + rawLength + " bytes");
+		}
+		List<byte[]> packets = new ArrayList<byte[]>(count);
+
+		byte[] raw = new byte[rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(chunk, 2 * INT_SIZE, chunk.length - 2 * INT_SIZE);
+			int n = 0;
+			while (n < rawLength) {
+				int got = inflater.inflate(raw, n, rawLength - n);
+				if (got == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("History chunk is truncated");
+				}
+				n += got;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("History chunk is corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(raw);
+		for (int i = 0; i < count; ++i) {
+			if (in.remaining() < INT_SIZE) {
+				throw new IOException("History chunk ends after " + i + " of its " + count + " packets");
+			}
+			int length = in.getInt();
+			if (length < 0 || length > in.remaining()) {
+				throw new IOException("History chunk has a bad packet length: " + length + " with " + in.remaining() + " bytes left");
+			}
+			byte[] packet = new byte[length];
+			in.get(packet);
+			packets.add(packet);
+		}
+		if (in.hasRemaining()) {
+			throw new IOException("History chunk has " + in.remaining() + " bytes after its " + count + " packets");
+		}
+		return packets;
+	}
+
+	private static byte[] compress(Deflater deflater, ByteArrayOutputStream raw, int count, byte[] out) {
+		byte[] input = raw.toByteArray();
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream(input.length / 2 + 2 * INT_SIZE);
+		byte[] header = new byte[2 * INT_SIZE];
+		BytePacker.convertIntToBytes(count, header, 0);
+		BytePacker.convertIntToBytes(input.length, header, INT_SIZE);
+		chunk.write(header, 0, header.length);
+
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(out);
+			chunk.write(out, 0, n);
+		}
+		return chunk.toByteArray();
+	}
+}
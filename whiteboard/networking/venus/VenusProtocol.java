@@ -18,10 +18,14 @@ import whiteboard.core.WhiteboardCore;
 import whiteboard.core.entities.BytePacker;
 import whiteboard.core.entities.ShapeConstants;
 import whiteboard.core.transaction.NetworkTransactionManager;
+import whiteboard.core.transaction.RetransmissionScheduler;
 import whiteboard.gui.whiteboard.WhiteboardWindow;
 import whiteboard.networking.StreamPeer;
 import whiteboard.networking.WhiteboardPeer;
 import whiteboard.networking.mars.MarsProtocol;
+import whiteboard.networking.nio.FrameDecoder;
+import whiteboard.networking.nio.SelectorLoop;
+import whiteboard.networking.nio.VenusFrameHandler;
 import whiteboard.networking.venus.VenusClient.CONNECT_TYPE;
 
 
@@ -31,6 +35,11 @@ import whiteboard.networking.venus.VenusClient.CONNECT_TYPE;
  */
 public class VenusProtocol implements ListModel {
 	public static final int PORT = 12345;
+	/** 
+	 * true to read every peer on one selector thread once its handshake is done, 
+	 * false for a VenusReceiveThread per peer 
+	 */
+	public static final boolean SELECTOR_TRANSPORT = true;
 	public static final int PACKET_SIZE = 4096;
 	public static final String CHARSET = "US-ASCII";
 
@@ -52,6 +61,14 @@ public class VenusProtocol implements ListModel {
 	public static final String SHAPES_HEADER = "WHITEBOARD SHAPES"+LINE_END ;
 	
 	public static final int HEADERSIZE = SHAPE_HEADER_SIZE + ShapeConstants.INTEGER_BYTE_SIZE;
+
+	/** the frame header, encoded once */
+	private static final byte[] SHAPE_HEADER_BYTES = SHAPE_HEADER.getBytes();
+	/** message words, encoded once, for routing without decoding the packet */
+	private static final byte[] ANSWER_BYTES = ANSWER.getBytes();
+	private static final byte[] ELECT_BYTES = ELECT.getBytes();
+	private static final byte[] COORD_BYTES = COORD.getBytes();
+	private static final byte[] KICK_BYTES = KICK.getBytes();
 	
 	private String userName;
 
@@ -71,6 +88,10 @@ public class VenusProtocol implements ListModel {
 	 */
 	private NetworkTransactionManager transMan = null;
 
+	/** reads every peer's connection (with SELECTOR_TRANSPORT); made when the first peer needs it */
+	private SelectorLoop selectorLoop = null;
+	private VenusFrameHandler frameHandler = null;
+
 	public VenusProtocol(WhiteboardConfiguration wConfig, WhiteboardWindow window) {
 		this.window = window;
 		this.userName = wConfig.getUserPeer().getName();
@@ -88,14 +109,14 @@ public class VenusProtocol implements ListModel {
 	/* (non-Javadoc)
 	 * @see javax.swing.ListModel#getElementAt(int)
 	 */
-	public Object getElementAt(int index) {
+	public synchronized Object getElementAt(int index) {
 		return peers.get(index);
 	}
 
 	/* (non-Javadoc)
 	 * @see javax.swing.ListModel#getSize()
 	 */
-	public int getSize() {
+	public synchronized int getSize() {
 		return peers.size();
 	}
 	
@@ -119,14 +140,19 @@ public class VenusProtocol implements ListModel {
 	 * @return
 	 */
 	public boolean removePeer(WhiteboardPeer peer) {
-		// Get the index of the the whiteboard and remove it
-		int index = peers.indexOf(peer);
-		boolean result = peers.remove(peer);
+		int index;
+		boolean result;
+		synchronized (this) {
+			// Get the index of the the whiteboard and remove it
+			index = peers.indexOf(peer);
+			result = peers.remove(peer);
+			if (result) {
+				Collections.sort(peers);
+			}
+		}
 
-		// If the whiteboard was added, notify listeners
+		// If the whiteboard was removed, notify listeners (not holding the lock, since they may call an election)
 		if (result) {
-			Collections.sort(peers);
-
 			// Create event & notify listeners
 			notifyListeners(new ListDataEvent(this, ListDataEvent.INTERVAL_REMOVED, index, index));
 		}
@@ -141,38 +167,82 @@ public class VenusProtocol implements ListModel {
 	 */
 	public void changePeerPermLevel(byte[] packet) {
 		String[] packetStr = new String(packet).split("\n");
-		WhiteboardPeer peer = getPeer(packetStr[1]);
-		if(!peers.contains(peer)) {
-			return;
+		int index;
+		synchronized (this) {
+			WhiteboardPeer peer = getPeer(packetStr[1]);
+			if(!peers.contains(peer)) {
+				return;
+			}
+			peer.setPermissionLevel(WhiteboardPeer.PERM_LEVEL.values()[Integer.parseInt(packetStr[2])]);
+			Collections.sort(peers);
+			index = peers.indexOf(peer);
 		}
-		peer.setPermissionLevel(WhiteboardPeer.PERM_LEVEL.values()[Integer.parseInt(packetStr[2])]);
-		Collections.sort(peers);
-		int index = peers.indexOf(peer);
 		notifyListeners(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, index, index));
 	}
 
-	public void sortPeers() {
+	public synchronized void sortPeers() {
 		Collections.sort(peers);
 	}
 
+	/**
+	 * Starts listening to a peer that has finished its handshake. With SELECTOR_TRANSPORT
+	 * its connection is handed over to the selector loop; otherwise (or if its socket wasn't
+	 * opened through a channel) it gets a VenusReceiveThread of its own.
+	 * @param peer
+	 * @param man
+	 * @return the thread started for the peer, or null if the selector loop reads it
+	 */
+	public synchronized CloseableThread listenTo(WhiteboardPeer peer, NetworkTransactionManager man) {
+		if (SELECTOR_TRANSPORT && (null != peer.getChannel())) {
+			try {
+				if (null == selectorLoop) {
+					selectorLoop = new SelectorLoop();
+					frameHandler = new VenusFrameHandler(this, man);
+					selectorLoop.start();
+				}
+				frameHandler.attach(peer, selectorLoop);
+				return null;
+			} catch (IOException e) {
+				System.err.println("VenusProtocol: listening to " + peer + " on a thread instead: " + e.getMessage());
+			}
+		}
+		CloseableThread thread = new VenusReceiveThread(peer, this, man);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stops the selector loop, closing every peer it reads
+	 */
+	public synchronized void close() {
+		if (null != selectorLoop) {
+			selectorLoop.close();
+			frameHandler.close();
+			selectorLoop = null;
+			frameHandler = null;
+		}
+	}
+
 	/**
 	 * @param peer
 	 * @return
 	 */
 	public boolean addPeer(WhiteboardPeer peer) {
 		boolean result = false;
+		int index = -1;
 		
-		// Add the whiteboard
-		if (!peers.contains(peer)) {
-			result = peers.add(peer);
-			Collections.sort(peers);
+		synchronized (this) {
+			// Add the whiteboard
+			if (!peers.contains(peer)) {
+				result = peers.add(peer);
+				Collections.sort(peers);
+				// Get the index of the newly added board
+				index = peers.indexOf(peer);
+			}
 		}
 
-		// If the peer was added, notify listeners
+		// If the peer was added, notify listeners (not holding the lock, since they may call an election)
 		if (result) {
-			// Get the index of the newly added board
-			int index = peers.indexOf(peer);
-
 			// Create event & notify listeners
 			notifyListeners(new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, index, index));
 		}
@@ -216,10 +286,10 @@ public class VenusProtocol implements ListModel {
 	/**
 	 * Get peers
 	 *
-	 * @return the peers
+	 * @return a copy of the peers, safe to iterate while peers come and go
 	 */
 	public synchronized List<WhiteboardPeer> getPeers() {
-		return peers;
+		return new ArrayList<WhiteboardPeer>(peers);
 	}
 
 	/**
@@ -251,17 +321,38 @@ public class VenusProtocol implements ListModel {
 	 * @return the packet wrapped in the PACKET header
 	 */
 	public static byte[] appendVenusPacketHeader(byte[] packet) {
-		int entireHeaderSize = VenusProtocol.SHAPE_HEADER_SIZE + Integer.SIZE/8;
-		byte[] headerPacket = new byte[packet.length + entireHeaderSize];
-		for(int i = 0; i < headerPacket.length; ++i) {
-			if(i < VenusProtocol.SHAPE_HEADER_SIZE)
-				headerPacket[i] = VenusProtocol.SHAPE_HEADER.getBytes()[i];
-			else if(i >= entireHeaderSize)
-				headerPacket[i] = packet[i-entireHeaderSize];
-		}
-		BytePacker.insertInto_byte_Array(BytePacker.convertIntToBytes(packet.length), headerPacket, VenusProtocol.SHAPE_HEADER_SIZE);
+		byte[] headerPacket = new byte[packet.length + HEADERSIZE];
+		writeVenusPacketHeader(headerPacket, 0, packet.length);
+		System.arraycopy(packet, 0, headerPacket, HEADERSIZE, packet.length);
 		return headerPacket;
 	}
+
+	/***
+	 * Writes a frame header in place, so callers building their own buffers don't copy twice.
+	 * @param dest where to write the header; needs HEADERSIZE bytes from offset
+	 * @param offset
+	 * @param length the length of the payload that will follow
+	 */
+	public static void writeVenusPacketHeader(byte[] dest, int offset, int length) {
+		System.arraycopy(SHAPE_HEADER_BYTES, 0, dest, offset, SHAPE_HEADER_SIZE);
+		BytePacker.convertIntToBytes(length, dest, offset + SHAPE_HEADER_SIZE);
+	}
+
+	/***
+	 * 
+	 * @param packet
+	 * @param word
+	 * @return true if the first line of the packet is exactly word
+	 */
+	private static boolean firstLineIs(byte[] packet, byte[] word) {
+		if (packet.length < word.length)
+			return false;
+		for (int i = 0; i < word.length; ++i) {
+			if (packet[i] != word[i])
+				return false;
+		}
+		return packet.length == word.length || packet[word.length] == '\n';
+	}
 	
 	/***
 	 * 
@@ -276,17 +367,57 @@ public class VenusProtocol implements ListModel {
 			throw new IOException("Null peer");
 		peer.receive(shapeHeader, VenusProtocol.HEADERSIZE);
 
-		String head = new String(shapeHeader, 0, VenusProtocol.SHAPE_HEADER.getBytes().length );
-		if (!head.equals(VenusProtocol.SHAPE_HEADER))
-			throw new IOException(peer.getName());
+		for (int i = 0; i < SHAPE_HEADER_SIZE; ++i) {
+			if (shapeHeader[i] != SHAPE_HEADER_BYTES[i])
+				throw new IOException(peer.getName());
+		}
 		// index into array := minus int-size				
 		int numBytes = (BytePacker.convertBytesToInt(shapeHeader, VenusProtocol.HEADERSIZE-ShapeConstants.INTEGER_BYTE_SIZE));
+		if (numBytes < 0 || numBytes > FrameDecoder.MAX_FRAME_SIZE)
+			throw new IOException(peer.getName() + ": bad frame length " + numBytes);
 		byte[] newPacket = new byte[numBytes];
 		
 		peer.receive(newPacket, numBytes);
 		return newPacket;
 	}
 
+	/***
+	 * Routes a packet received from a peer: election messages are handled here,
+	 * chat and shapes go to the transaction manager. This is the same whichever 
+	 * transport the packet came in on.
+	 * @param peer the peer the packet came from
+	 * @param packet the packet, without its PACKET header
+	 * @param man
+	 */
+	public void routePacket(WhiteboardPeer peer, byte[] packet, NetworkTransactionManager man) {
+		if(firstLineIs(packet, ANSWER_BYTES)) {
+			stopElectionTimeout();
+		} else if(firstLineIs(packet, ELECT_BYTES)) {
+			man.setElection(true);
+			callElection(peer, man);
+		} else if(firstLineIs(packet, COORD_BYTES)) {
+			String[] msg = new String(packet).split("\n");
+			man.setEpoch(Integer.parseInt(msg[2]));
+			stopElectionTimeout();
+			electNewHead(msg[1]);
+		} else if(firstLineIs(packet, KICK_BYTES)) {
+			kickPeer(new String(packet).split("\n")[1]);
+		} else if(ShapeConstants.WB_REQUEST_TYPE.CHAT.ordinal() == packet[0]) {
+			man.pushToLocalChat(peer, packet);
+		} else if(ShapeConstants.WB_REQUEST_TYPE.WB_PERM_CHANGE.ordinal() == packet[0]) {
+			changePeerPermLevel(packet);
+		} else if(ShapeConstants.WB_REQUEST_TYPE.SEQUENCE_RANGE_REQUEST.ordinal() == packet[0]) {
+			man.answerSequenceRanges(peer, packet);
+		} else if(ShapeConstants.WB_REQUEST_TYPE.SEQUENCE_BATCH.ordinal() == packet[0]) {
+			man.pushToLocalShapes(RetransmissionScheduler.readBatch(packet));
+		} else if(ShapeConstants.WB_REQUEST_TYPE.PROCESSED_THROUGH.ordinal() == packet[0]) {
+			man.recordProcessed(peer, packet);
+		} else {
+			// Push it on to the queue for processing
+			man.pushToLocalShape(packet);
+		}
+	}
+
 	public WhiteboardConfiguration getWhiteboardConfig() {
 		return config;
 	}
@@ -316,6 +447,7 @@ public class VenusProtocol implements ListModel {
 	 */
 	public void callElection(NetworkTransactionManager man) {
 		this.transMan = man;
+		List<WhiteboardPeer> peers = getPeers();
 		int index = peers.indexOf(config.getUserPeer());
 		if (index == 0) {
 			if(config.getUserPeer().getPermissionLevel() == WhiteboardPeer.PERM_LEVEL.OWNER)
@@ -354,7 +486,7 @@ public class VenusProtocol implements ListModel {
 		byte[] coordPacket = VenusProtocol.appendVenusPacketHeader(coord.getBytes());
 
 		electNewHead(config.getUserPeer().getName());
-		for (WhiteboardPeer p : peers)
+		for (WhiteboardPeer p : getPeers())
 		{
 			if (!config.getUserPeer().equals(p))
 			{
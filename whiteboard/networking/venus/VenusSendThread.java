@@ -3,20 +3,30 @@
  */
 package whiteboard.networking.venus;
 
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import whiteboard.core.CloseableThread;
 import whiteboard.core.transaction.NetworkTransactionManager;
 import whiteboard.networking.WhiteboardPeer;
 
 /**
+ * Takes outgoing packets from the transaction manager and fans them out to every peer. 
+ * Each peer has its own queue and writer thread (PeerSender), so one slow peer can't 
+ * hold up the rest.
+ * 
  * @author patrick
  *
  */
 public class VenusSendThread extends CloseableThread {
-	private boolean done = false;
+	private volatile boolean done = false;
 	private NetworkTransactionManager man;
 	private VenusProtocol protocol;
+	/** one sender per connected peer; peers are matched by identity, since a reconnect makes a new peer */
+	private final Map<WhiteboardPeer, PeerSender> senders = new IdentityHashMap<WhiteboardPeer, PeerSender>();
 
 	public VenusSendThread(VenusProtocol protocol, NetworkTransactionManager man) {
 		super("VenusShapeSendThread");
@@ -27,38 +37,91 @@ public class VenusSendThread extends CloseableThread {
 	
 	@Override
 	public void run() {
-		// Get objects
 		while (!done) {
-			// Get next data packet
-			byte[] shapeBytes = man.pullFromLocal();
+			// block until there's something to send, then take everything that's ready
+			List<byte[]> shapes;
+			try {
+				shapes = man.takeFromLocal();
+			} catch (InterruptedException e) {
+				continue;
+			}
 			
-			int numSent = 0;
-			// Only process valid packets
-			if (null != shapeBytes && numSent < 10) {
-				byte[] packet = VenusProtocol.appendVenusPacketHeader(shapeBytes);
+			// frame the whole batch once; every peer gets the same bytes
+			int size = 0;
+			for (byte[] shape : shapes) {
+				size += VenusProtocol.HEADERSIZE + shape.length;
+			}
+			byte[] batch = new byte[size];
+			int offset = 0;
+			for (byte[] shape : shapes) {
+				VenusProtocol.writeVenusPacketHeader(batch, offset, shape.length);
+				offset += VenusProtocol.HEADERSIZE;
+				System.arraycopy(shape, 0, batch, offset, shape.length);
+				offset += shape.length;
+			}
 
-				// Send the packet to all peers
-				for (WhiteboardPeer wbPeer : protocol.getPeers()) {
-					try {
-						if (!wbPeer.getName().equalsIgnoreCase(protocol.getName())) {
-							wbPeer.send(packet);
-						}
-					} catch (IOException ioe) {
-						System.err.println("VENUSSND: " + ioe.getMessage());
+			List<WhiteboardPeer> peers = protocol.getPeers();
+			synchronized (senders) {
+				retireSenders(peers);
+				for (WhiteboardPeer wbPeer : peers) {
+					if (!wbPeer.getName().equalsIgnoreCase(protocol.getName())) {
+						getSender(wbPeer).enqueue(batch);
 					}
-					numSent++;
-				}
-			} else {
-				try {
-					sleep(100);
-					
-				} catch (InterruptedException e) {
-					// Do nothing
 				}
-				numSent = 0;
 			}
 		}
 		
+		synchronized (senders) {
+			for (PeerSender sender : senders.values()) {
+				sender.close();
+			}
+			senders.clear();
+		}
+	}
+
+	/**
+	 * @return the number of writes waiting for each peer, by peer name
+	 */
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new HashMap<String, Integer>();
+		synchronized (senders) {
+			for (PeerSender sender : senders.values()) {
+				depths.put(sender.getPeer().getName(), sender.getQueueDepth());
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * PRE: holding the senders lock
+	 * @return the sender for the peer, starting one if needed
+	 */
+	private PeerSender getSender(WhiteboardPeer peer) {
+		PeerSender sender = senders.get(peer);
+		if (sender == null) {
+			sender = new PeerSender(peer);
+			senders.put(peer, sender);
+			sender.start();
+		}
+		return sender;
+	}
+
+	/**
+	 * PRE: holding the senders lock
+	 * Stops the senders for peers that have left.
+	 */
+	private void retireSenders(List<WhiteboardPeer> peers) {
+		Map<WhiteboardPeer, WhiteboardPeer> current = new IdentityHashMap<WhiteboardPeer, WhiteboardPeer>();
+		for (WhiteboardPeer peer : peers) {
+			current.put(peer, peer);
+		}
+		for (Iterator<Map.Entry<WhiteboardPeer, PeerSender>> it = senders.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<WhiteboardPeer, PeerSender> entry = it.next();
+			if (!current.containsKey(entry.getKey())) {
+				entry.getValue().close();
+				it.remove();
+			}
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -67,5 +130,6 @@ public class VenusSendThread extends CloseableThread {
 	@Override
 	public void close() {
 		done = true;
+		interrupt();
 	}
 }
@@ -5,16 +5,25 @@ package whiteboard.networking.venus;
 
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import whiteboard.core.CloseableThread;
 import whiteboard.core.entities.BytePacker;
+import whiteboard.core.entities.ShapeConstants;
 import whiteboard.core.transaction.NetworkTransactionManager;
 import whiteboard.networking.Peer;
+import whiteboard.networking.StreamPeer;
 import whiteboard.networking.WhiteboardPeer;
 import whiteboard.networking.mars.MarsProtocol;
 
@@ -24,7 +33,7 @@ import whiteboard.networking.mars.MarsProtocol;
  */
 public class VenusServer extends CloseableThread {
 	/** list of venus receive threads running in the server */
-	private List<CloseableThread> threads = new ArrayList<CloseableThread>();
+	private List<CloseableThread> threads = Collections.synchronizedList(new ArrayList<CloseableThread>());
 	/** the socket that's connected to the head of the whiteboard */
 	private ServerSocket serverSocket;
 	/** the protocol containing the list of peers */
@@ -34,6 +43,17 @@ public class VenusServer extends CloseableThread {
 	/** the transaction manager responsible for sequencing */
 	private NetworkTransactionManager man;
 
+	/** the most joiners handshaking and receiving history at once; the rest wait their turn */
+	public static final int MAX_CONCURRENT_JOINS = 4;
+	/** the workers that handle joiners, so the accept thread can get on with the next connection */
+	private final ExecutorService joins = Executors.newFixedThreadPool(MAX_CONCURRENT_JOINS, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "VenusServerJoin");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	/** is the thread still running */
 	private boolean isStopped = false;
 
@@ -45,7 +65,13 @@ public class VenusServer extends CloseableThread {
 		super("VenusServer");
 
 		this.userPeer = user;
-		serverSocket = new ServerSocket(port);
+		if (VenusProtocol.SELECTOR_TRANSPORT) {
+			// accepted sockets then have channels, so they can be handed to the selector loop
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(port));
+		} else {
+			serverSocket = new ServerSocket(port);
+		}
 		this.venusProtocol = venusProtocol;
 		this.man = man;
 	}
@@ -121,17 +147,7 @@ public class VenusServer extends CloseableThread {
 		// Get history
 		List<byte[]> shapes = man.getHistory();
 
-		// Send header
-		byte[] packet = new byte[VenusProtocol.SHAPES_HEADER.length() + 4];
-
-		// copy over the header-string
-		for (int i = 0; i < VenusProtocol.SHAPES_HEADER.length(); ++i) {
-			packet[i] = VenusProtocol.SHAPES_HEADER.getBytes()[i];
-		}
-
-		List<Byte> numAsBytes = BytePacker.convertIntToBytes(shapes.size());
-		BytePacker.insertInto_byte_Array(numAsBytes, packet, VenusProtocol.SHAPES_HEADER.getBytes().length);
-		peer.send(packet);
+		sendShapesHeader(peer, shapes.size());
 
 		// Send history
 		for (byte[] shape : shapes) {
@@ -139,54 +155,97 @@ public class VenusServer extends CloseableThread {
 		}
 	}
 
+	/**
+	 * Streams the history to the peer in compressed chunks (see VenusHistory), 
+	 * reading it as it goes rather than building the whole list first.
+	 * @param peer
+	 * @throws IOException
+	 */
+	public void replyHistoryChunked(StreamPeer peer) throws IOException {
+		Iterator<byte[]> history = man.getHistoryIterator();
+		sendShapesHeader(peer, VenusHistory.CHUNKED_COUNT);
+		VenusHistory.sendChunks(history, peer);
+	}
+
+	private void sendShapesHeader(Peer peer, int count) throws IOException {
+		byte[] header = VenusProtocol.SHAPES_HEADER.getBytes();
+		byte[] packet = new byte[header.length + ShapeConstants.INTEGER_BYTE_SIZE];
+		System.arraycopy(header, 0, packet, 0, header.length);
+		BytePacker.convertIntToBytes(count, packet, header.length);
+		peer.send(packet);
+	}
+
 	@Override
 	public void run() {
 
 		// Loop until socket is closed
 		while ((null != serverSocket) && (!serverSocket.isClosed()) && (!isStopped)) {
 			try {
-				// Accept connection
-				Socket socket = serverSocket.accept();
+				// Accept connection, and let a worker handle the joiner so the next one isn't held up
+				final Socket socket = serverSocket.accept();
+				joins.execute(new Runnable() {
+					public void run() {
+						try {
+							acceptPeer(socket);
+						} catch (IOException ioe) {
+							System.err.println("VenusServer: join: " + ioe.getMessage());
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// Do nothing
+							}
+						}
+					}
+				});
+			} catch (IOException ioe) {
+				if (!isStopped)
+					System.err.println("VenusServer: run: " + ioe.getMessage());
+			}
+		}
+	}
 
-				// Create peer
-				WhiteboardPeer peer = new WhiteboardPeer(socket);
+	/**
+	 * Handshakes with a peer that has just connected, sends it the peers and history it
+	 * asks for, then starts listening to it.
+	 * @param socket
+	 * @throws IOException
+	 */
+	private void acceptPeer(Socket socket) throws IOException {
+		// Create peer
+		WhiteboardPeer peer = new WhiteboardPeer(socket);
 
-				if (replyHandshake(peer)) {
-					// If peer is already in list, remove them
-					venusProtocol.removePeer(peer);
+		if (replyHandshake(peer)) {
+			// If peer is already in list, remove them
+			venusProtocol.removePeer(peer);
 
-					if (userPeer.getPermissionLevel().equals(WhiteboardPeer.PERM_LEVEL.OWNER)) {
-						// Wait for peer request
-						byte[] packet = VenusFactory.createPacket();
+			if (userPeer.getPermissionLevel().equals(WhiteboardPeer.PERM_LEVEL.OWNER)) {
+				// Wait for peer request
+				byte[] packet = VenusFactory.createPacket();
 
-						int bytesReceived = peer.receive(packet);
+				int bytesReceived = peer.receive(packet);
 
-						String[] message = VenusFactory.getMessage(packet, bytesReceived);
-						processPeerRequest(peer, message);
+				String[] message = VenusFactory.getMessage(packet, bytesReceived);
+				processPeerRequest(peer, message);
 
-						// Wait for whiteboard shape request
-						bytesReceived = peer.receive(packet);
+				// Wait for whiteboard shape request
+				bytesReceived = peer.receive(packet);
 
-						message = VenusFactory.getMessage(packet, bytesReceived);
-						processShapeRequest(peer, message);
-					}
+				message = VenusFactory.getMessage(packet, bytesReceived);
+				processShapeRequest(peer, message);
+			}
 
-					// Add peer to list
-					if (venusProtocol.addPeer(peer)) {
-						// Start a listening thread for this peer
-						VenusReceiveThread thread = new VenusReceiveThread(peer, venusProtocol, man);
-						thread.start();
-						threads.add(thread);
-					}
+			// Add peer to list
+			if (venusProtocol.addPeer(peer)) {
+				// Start listening to this peer
+				CloseableThread thread = venusProtocol.listenTo(peer, man);
+				if (null != thread) {
+					threads.add(thread);
 				}
-				else {
-					socket.close();
-				}
-			} catch (IOException ioe) {
-				if (!ioe.getMessage().equals("socket closed"))
-					System.err.println("VenusServer: run: " + ioe.getMessage());
 			}
 		}
+		else {
+			socket.close();
+		}
 	}
 
 	/**
@@ -208,7 +267,11 @@ public class VenusServer extends CloseableThread {
 	private void processShapeRequest(WhiteboardPeer peer, String[] message) throws IOException {
 		// Check if it's a valid response
 		if (message[0].equals("GET WHITEBOARD SHAPES")) {
-			replyHistory(peer);
+			if (message.length > 1 && message[1].equals(VenusHistory.CHUNKED)) {
+				replyHistoryChunked(peer);
+			} else {
+				replyHistory(peer);
+			}
 		}
 	}
 
@@ -300,5 +363,6 @@ public class VenusServer extends CloseableThread {
 			// Untidy shutdown
 			serverSocket = null;
 		}
+		joins.shutdownNow();
 	}
 }